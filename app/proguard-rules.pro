@@ -15,3 +15,8 @@
 #-keepclassmembers class fqcn.of.javascript.interface.for.webview {
 #   public *;
 #}
+
+# field read by native code to cancel RAR extraction
+-keepclassmembers class net.kervala.comicsreader.LoadToken {
+   boolean mCancelled;
+}
@@ -20,18 +20,25 @@
 package net.kervala.comicsreader;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 
 import android.graphics.Bitmap;
-import android.graphics.Canvas;
 import android.net.Uri;
+import android.os.Process;
 import android.util.Log;
 
 public class Album {
@@ -43,11 +50,17 @@ public class Album {
 	int maxImagesInMemory = 0;
 
 	List<String> mFiles = new ArrayList<String>();
+	int [] mPagesEntries; // index in archive of each page
 	private AlbumPage mPages[];
 	String mCurrentPageFilename;
 	private File mCachePagesDir;
 	private File mCacheThumbnailsDir;
+	private AlbumIndex mIndex;
+	private ExtractThread mExtractThread;
+	private SizesThread mSizesThread;
 	
+	// pages with a buffer are in this window, it's updated by I/O and decoding threads
+	private final Object mBufferWindowMutex = new Object();
 	private int mFirstBufferPageNumber = 65536;
 	private int mLastBufferPageNumber = 0;
 	boolean mAlwaysFull = false;
@@ -55,12 +68,6 @@ public class Album {
 	private final static String undefinedExtension = "";
 	private final static String undefinedMimeType = "";
 
-	private static final int ALBUM_TYPE_NONE = 0;
-	private static final int ALBUM_TYPE_CBZ = 1;
-	private static final int ALBUM_TYPE_CBR = 2;
-	private static final int ALBUM_TYPE_CBT = 3;
-	private static final int ALBUM_TYPE_FOLDER = 4;
-
 	static final int ZOOM_NONE = 0;
 	static final int ZOOM_FIT_WIDTH = 1;
 	static final int ZOOM_FIT_HEIGHT = 2;
@@ -74,22 +81,20 @@ public class Album {
 
 	private int maxBitmapsInMemory = 3;
 	private int maxBuffersInMemory = 6;
+	private static final int CACHED_PAGES_AHEAD = 8;
 
-	static Album createInstance(String filename) {
-		if (CbzAlbum.isValid(filename)) {
-			return new CbzAlbum();
-		}
-
-		if (RarFile.isLoaded() && CbrAlbum.isValid(filename)) {
-			return new CbrAlbum();
-		}
+	// pages being loaded, to cancel them when they are not displayed anymore
+	private final List<LoadToken> mLoadTokens = new ArrayList<>();
 
-		if (CbtAlbum.isValid(filename)) {
-			return new CbtAlbum();
-		}
-
-		if (FolderAlbum.isValid(filename)) {
-			return new FolderAlbum();
+	static Album createInstance(String filename) {
+		switch(AlbumFormat.detect(filename))
+		{
+			case AlbumFormat.TYPE_CBZ: return new CbzAlbum();
+			case AlbumFormat.TYPE_CBR: return new CbrAlbum();
+			case AlbumFormat.TYPE_CBT: return new CbtAlbum();
+			case AlbumFormat.TYPE_CB7: return new Cb7Album();
+			case AlbumFormat.TYPE_FOLDER: return new FolderAlbum();
+			default: break;
 		}
 
 		return new Album();
@@ -118,27 +123,7 @@ public class Album {
 			filename = Album.getFilenameFromUri(uri);
 		}
 
-		// file is a cbz
-		if (CbzAlbum.isValid(filename)) {
-			return ALBUM_TYPE_CBZ;
-		}
-
-		// file is a cbr
-		if (RarFile.isLoaded() && CbrAlbum.isValid(filename)) {
-			return ALBUM_TYPE_CBR;
-		}
-
-		// file is a cbt
-		if (CbtAlbum.isValid(filename)) {
-			return ALBUM_TYPE_CBT;
-		}
-		
-		// file is an image or a folder containing images
-		if (FolderAlbum.isValid(filename)) {
-			return ALBUM_TYPE_FOLDER;
-		}
-
-		return ALBUM_TYPE_NONE;
+		return AlbumFormat.detect(filename);
 	}
 
 	static String mimeType(String uriString) {
@@ -147,10 +132,11 @@ public class Album {
 
 		switch(getType(uriString))
 		{
-			case ALBUM_TYPE_CBZ: return CbzAlbum.getMimeType(filename);
-			case ALBUM_TYPE_CBR: return CbrAlbum.getMimeType(filename);
-			case ALBUM_TYPE_CBT: return CbtAlbum.getMimeType(filename);
-			case ALBUM_TYPE_FOLDER: return FolderAlbum.getMimeType(filename);
+			case AlbumFormat.TYPE_CBZ: return CbzAlbum.getMimeType(filename);
+			case AlbumFormat.TYPE_CBR: return CbrAlbum.getMimeType(filename);
+			case AlbumFormat.TYPE_CBT: return CbtAlbum.getMimeType(filename);
+			case AlbumFormat.TYPE_CB7: return Cb7Album.getMimeType(filename);
+			case AlbumFormat.TYPE_FOLDER: return FolderAlbum.getMimeType(filename);
 			default: break;
 		}
 
@@ -158,34 +144,10 @@ public class Album {
 	}
 
 	static boolean isUrlValid(String uriString) {
-		if (uriString == null) return false;
-
-		String filename;
-
-		if (!uriString.startsWith("/")) {
-			Uri uri = Uri.parse(uriString);
-
-			filename = Album.getFilenameFromUri(uri);
-		} else {
-			filename = uriString;
-		}
-
-		if (filename == null) return false;
-
-		if (!(new File(filename).exists())) return false;
-
-		// file is a cbz
-		if (CbzAlbum.isValid(filename)) return true;
-
-		// file is a cbr
-		if (RarFile.isLoaded() && CbrAlbum.isValid(filename)) return true;
-
-		// file is a cbt
-		if (CbtAlbum.isValid(filename)) return true;
-
-		// file is an image or a folder containing images
-		return FolderAlbum.isValid(filename);
+		if (uriString == null || uriString.startsWith("/")) return isFilenameValid(uriString);
 
+		// URI is already encoded, only its path is checked
+		return isFilenameValid(Album.getFilenameFromUri(Uri.parse(uriString)));
 	}
 	
 	static boolean isFilenameValid(String uriString) {
@@ -205,18 +167,8 @@ public class Album {
 
 		if (!(new File(filename).exists())) return false;
 
-		// file is a cbz
-		if (CbzAlbum.isValid(filename)) return true;
-
-		// file is a cbr
-		if (RarFile.isLoaded() && CbrAlbum.isValid(filename)) return true;
-
-		// file is a cbt
-		if (CbtAlbum.isValid(filename)) return true;
-
-		// file is an image or a folder containing images
-		return FolderAlbum.isValid(filename);
-
+		// file is a cbz, cbr, cbt, cb7, an image or a folder containing images
+		return AlbumFormat.detect(filename) != AlbumFormat.TYPE_NONE;
 	}
 
 	static boolean askConfirm(String filename) {
@@ -229,6 +181,9 @@ public class Album {
 		// file is a cbt
 		if (CbtAlbum.askConfirm(filename)) return true;
 
+		// file is a cb7
+		if (Cb7Album.askConfirm(filename)) return true;
+
 		// file is an image or a folder containing images
 		return FolderAlbum.askConfirm(filename);
 
@@ -237,10 +192,11 @@ public class Album {
 	static String getTitle(String filename) {
 		switch(getType(filename))
 		{
-			case ALBUM_TYPE_CBZ: return CbzAlbum.getTitle(filename);
-			case ALBUM_TYPE_CBR: return CbrAlbum.getTitle(filename);
-			case ALBUM_TYPE_CBT: return CbtAlbum.getTitle(filename);
-			case ALBUM_TYPE_FOLDER: return FolderAlbum.getTitle(filename);
+			case AlbumFormat.TYPE_CBZ: return CbzAlbum.getTitle(filename);
+			case AlbumFormat.TYPE_CBR: return CbrAlbum.getTitle(filename);
+			case AlbumFormat.TYPE_CBT: return CbtAlbum.getTitle(filename);
+			case AlbumFormat.TYPE_CB7: return Cb7Album.getTitle(filename);
+			case AlbumFormat.TYPE_FOLDER: return FolderAlbum.getTitle(filename);
 			default: break;
 		}
 
@@ -290,6 +246,26 @@ public class Album {
 	boolean loadFiles() {
 		return false;
 	}
+
+	/**
+	 * Open album using entries saved in index, mFiles is already filled
+	 * 
+	 * @param index Index saved during a previous opening
+	 * @return false if format doesn't support indices or if index can't be used
+	 */
+	boolean loadFiles(AlbumIndex index) {
+		return false;
+	}
+
+	/**
+	 * Save position of each page in index
+	 * 
+	 * @param index Index to fill, names are already set
+	 * @return false if format doesn't support indices
+	 */
+	boolean fillIndex(AlbumIndex index) {
+		return false;
+	}
 	
 	public boolean open(String file, boolean full) {
 		if (file == null) return false;
@@ -298,11 +274,35 @@ public class Album {
 
 		filename = file;
 
-		if (!loadFiles()) return false;
+		// pages are already sorted in index
+		mIndex = AlbumIndex.load(filename, getMimeType());
 
-		numPages = full ? mFiles.size():Math.min(1, mFiles.size());
+		if (mIndex != null) {
+			mFiles.addAll(Arrays.asList(mIndex.names));
+			title = mIndex.title;
+
+			if (!loadFiles(mIndex)) {
+				Log.w(ComicsParameters.APP_TAG, "Unable to use index of " + filename);
+
+				mFiles.clear();
+				mIndex = null;
+			}
+		}
+
+		if (mIndex == null) {
+			if (!loadFiles()) return false;
+
+			Collections.sort(mFiles, new NaturalOrderComparator());
 
-		Collections.sort(mFiles, new NaturalOrderComparator());
+			filesSorted();
+
+			mIndex = new AlbumIndex(filename, getMimeType(), mFiles);
+			mIndex.title = title;
+
+			if (!fillIndex(mIndex) || !mIndex.save()) mIndex = null;
+		}
+
+		numPages = full ? mFiles.size():Math.min(1, mFiles.size());
 
 		if (mCurrentPageFilename != null) {
 			currentPageNumber = mFiles.indexOf(mCurrentPageFilename);
@@ -313,7 +313,12 @@ public class Album {
 		mPages = new AlbumPage[numPages];
 
 		for(int i = 0; i < numPages; ++i) {
-			AlbumPage album = new AlbumPage(i, mFiles.get(i));
+			AlbumPage album = new AlbumPage(this, i, mFiles.get(i));
+
+			// no need to decode image to know its size
+			if (mIndex != null && mIndex.widths[i] > 0) {
+				album.setSrcSize(mIndex.widths[i], mIndex.heights[i]);
+			}
 
 			mPages[i] = album;
 		}
@@ -325,11 +330,328 @@ public class Album {
 			}
 
 			checkMaxImagesInMemory();
+
+			extractPages();
+
+			startSizesThread();
 		}
 
 		return true;
 	}
 
+	void extractPages() {
+	}
+
+	/**
+	 * @return true if album was opened to read all its pages
+	 */
+	boolean isFull() {
+		return mCachePagesDir != null;
+	}
+
+	/**
+	 * Decompress all pages in archive order in one pass and save them in cache
+	 */
+	private class ExtractThread extends Thread {
+		private final boolean [] mExtracted;
+		private volatile boolean mAbort = false;
+		private boolean mFinished = false;
+
+		// stop current page decompression when album is closed
+		private final LoadToken mToken = new LoadToken(-1);
+
+		// in ms
+		private static final int CANCEL_CHECK_DELAY = 100;
+
+		ExtractThread() {
+			super("ComicsReader pages extraction");
+
+			mExtracted = new boolean[mFiles.size()];
+		}
+
+		@Override
+		public void run() {
+			Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+
+			LoadToken.setCurrent(mToken);
+
+			final Integer [] order = new Integer[mExtracted.length];
+
+			for(int page = 0; page < order.length; ++page) {
+				order[page] = page;
+			}
+
+			// process pages in archive order, so each one continues from previous one
+			Arrays.sort(order, new Comparator<Integer>() {
+				@Override
+				public int compare(Integer page1, Integer page2) {
+					final long position1 = getPagePosition(page1);
+					final long position2 = getPagePosition(page2);
+
+					if (position1 != position2) return position1 < position2 ? -1:1;
+
+					return page1.compareTo(page2);
+				}
+			});
+
+			for(int i = 0; i < order.length && !mAbort; ++i) {
+				final int page = order[i];
+				final File file = AlbumPage.getCacheFile(mFiles.get(page));
+
+				if (!file.exists() && !extractPageToFile(page, file)) {
+					if (!mAbort) Log.e(ComicsParameters.APP_TAG, "Unable to extract " + mFiles.get(page) + " from " + filename);
+					break;
+				}
+
+				synchronized(this) {
+					mExtracted[page] = true;
+					notifyAll();
+				}
+			}
+
+			synchronized(this) {
+				mFinished = true;
+				notifyAll();
+			}
+		}
+
+		void abort() {
+			mAbort = true;
+			mToken.cancel();
+
+			try {
+				join();
+			} catch (InterruptedException e) {
+				Log.w(ComicsParameters.APP_TAG, "Interrupted while waiting for pages extraction");
+			}
+		}
+
+		/**
+		 * Wait until a page is extracted, can be cancelled by token of current thread
+		 *
+		 * @return false if page couldn't be extracted or if loading was cancelled
+		 */
+		synchronized boolean waitForPage(int page) {
+			final LoadToken token = LoadToken.current();
+
+			while(!mExtracted[page] && !mFinished) {
+				if (token != null && token.isCancelled()) return false;
+
+				try {
+					// token doesn't notify when cancelled, check it regularly
+					wait(CANCEL_CHECK_DELAY);
+				} catch (InterruptedException e) {
+					return false;
+				}
+			}
+
+			return mExtracted[page];
+		}
+	}
+
+	/**
+	 * Read sizes of pages from their headers, so they're known before decoding pages
+	 */
+	private class SizesThread extends Thread {
+		private volatile boolean mAbort = false;
+
+		SizesThread() {
+			super("ComicsReader pages sizes");
+		}
+
+		@Override
+		public void run() {
+			Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+
+			int found = 0;
+
+			// begin with current page, it's needed first
+			for(int i = 0; i < mPages.length && !mAbort; ++i) {
+				final int page = (currentPageNumber + i) % mPages.length;
+
+				if (mPages[page].bitmapSize != null) continue;
+
+				final ImageHeader header = readPageHeader(page);
+
+				if (header != null) {
+					mPages[page].updateSrcSize(header.width, header.height);
+					++found;
+				}
+			}
+
+			Log.d(ComicsParameters.APP_TAG, "Read sizes of " + String.valueOf(found) + " pages from their headers");
+		}
+
+		void abort() {
+			mAbort = true;
+
+			try {
+				join();
+			} catch (InterruptedException e) {
+				Log.w(ComicsParameters.APP_TAG, "Interrupted while waiting for pages sizes");
+			}
+		}
+	}
+
+	private void startSizesThread() {
+		if (mSizesThread != null) return;
+
+		boolean unknown = false;
+
+		for(AlbumPage page: mPages) {
+			if (page.bitmapSize == null) {
+				unknown = true;
+				break;
+			}
+		}
+
+		// all sizes were saved in index
+		if (!unknown) return;
+
+		mSizesThread = new SizesThread();
+		mSizesThread.start();
+	}
+
+	/**
+	 * Read size of a page from the beginning of its data
+	 *
+	 * @return Size or null if page must be decoded to know it
+	 */
+	private ImageHeader readPageHeader(int page) {
+		InputStream input = null;
+
+		try {
+			input = openPageHeaderStream(page);
+
+			if (input != null) return ImageHeader.read(input);
+		} catch (IOException e) {
+			Log.w(ComicsParameters.APP_TAG, "Unable to read header of page " + String.valueOf(page) + ": " + e.toString());
+		} finally {
+			try {
+				if (input != null) input.close();
+			} catch (IOException e) {
+			}
+		}
+
+		return null;
+	}
+
+	private InputStream openPageHeaderStream(int page) throws IOException {
+		File file = getPageFile(page);
+
+		if (file == null) {
+			// page already extracted
+			final File cacheFile = AlbumPage.getCacheFile(mFiles.get(page));
+
+			if (cacheFile.exists()) file = cacheFile;
+		}
+
+		if (file != null) return new FileInputStream(file);
+
+		return canReadPageHeader(page) ? openPageHeader(page):null;
+	}
+
+	/**
+	 * @return true if the beginning of a page can be read without decompressing the whole page
+	 */
+	boolean canReadPageHeader(int page) {
+		return canStreamPage(page);
+	}
+
+	/**
+	 * Open a stream on the beginning of a page, only used if canReadPageHeader returned true
+	 */
+	InputStream openPageHeader(int page) throws IOException {
+		return openPageStream(page);
+	}
+
+	/**
+	 * Extract all pages in background, pages are then read from cache
+	 *
+	 * Used by archives where reading pages separately decompresses the same data several times.
+	 */
+	void startExtractThread() {
+		if (mExtractThread != null) return;
+
+		mExtractThread = new ExtractThread();
+		mExtractThread.start();
+	}
+
+	boolean isExtractingPages() {
+		return mExtractThread != null;
+	}
+
+	/**
+	 * @return Value used to sort pages in archive order
+	 */
+	long getPagePosition(int page) {
+		return mPagesEntries[page];
+	}
+
+	/**
+	 * Save uncompressed data of a page in a file
+	 *
+	 * @param page Page number
+	 * @param file File to create, it's only created if page is complete
+	 * @return true if page was successfully saved
+	 */
+	boolean extractPageToFile(int page, File file) {
+		final byte [] buffer = readBytes(page);
+
+		if (buffer == null) return false;
+
+		final File tmpFile = new File(file.getAbsolutePath() + ".tmp");
+
+		// rename only when complete, so a page is never read partially
+		if (ComicsHelpers.saveBufferToFile(buffer, tmpFile) && tmpFile.renameTo(file)) return true;
+
+		if (tmpFile.exists() && !tmpFile.delete()) {
+			Log.w(ComicsParameters.APP_TAG, "Unable to delete file " + tmpFile.getAbsolutePath());
+		}
+
+		return false;
+	}
+
+	/**
+	 * Called when pages are in their final order
+	 */
+	void filesSorted() {
+		final ArchiveReader reader = getReader();
+
+		if (reader == null) return;
+
+		final Map<String, Integer> indices = new HashMap<String, Integer>();
+
+		for(int i = 0; i < reader.size(); ++i) {
+			indices.put(reader.getName(i), i);
+		}
+
+		mPagesEntries = new int[mFiles.size()];
+
+		// pages will be accessed by their index in archive
+		for(int i = 0; i < mPagesEntries.length; ++i) {
+			mPagesEntries[i] = indices.get(mFiles.get(i));
+		}
+	}
+
+	/**
+	 * Use when reader entries are in same order as pages
+	 */
+	void initPagesEntries() {
+		mPagesEntries = new int[mFiles.size()];
+
+		for(int i = 0; i < mPagesEntries.length; ++i) {
+			mPagesEntries[i] = i;
+		}
+	}
+
+	/**
+	 * @return Reader used to get pages data or null if album is not opened
+	 */
+	ArchiveReader getReader() {
+		return null;
+	}
+
 	public class Size implements Comparable<Size> {
 		final int width;
 		final int height;
@@ -469,112 +791,201 @@ public class Album {
 	}
 
 	public void close() {
+		if (mExtractThread != null) {
+			mExtractThread.abort();
+			mExtractThread = null;
+		}
+
+		if (mSizesThread != null) {
+			mSizesThread.abort();
+			mSizesThread = null;
+		}
+
 		if (mPages != null) {
+			if (mIndex != null) {
+				// remember sizes of decoded pages for next time
+				for(int i = 0; i < mPages.length; ++i) {
+					final AlbumPage.Size size = mPages[i].bitmapSize;
+
+					if (size != null) mIndex.setPageSize(i, size.srcWidth, size.srcHeight);
+				}
+
+				mIndex.save();
+				mIndex = null;
+			}
+
 			for(AlbumPage page: mPages) {
 				page.reset();
 			}
 
 			mPages = null;
+
+			if (BuildConfig.DEBUG) {
+				Log.d(ComicsParameters.APP_TAG, "Bitmap pool: " + BitmapPool.getStats());
+			}
 		}
 
+		mPagesEntries = null;
 		filename = null; 
 	}
 
 	protected byte [] getBytes(int page) {
-		Log.e("ComicsReader", "Album.getBytes shouldn't be called directly");
-		
-		return null;
+		if (mExtractThread != null) {
+			// wait until background extraction saved this page
+			if (mExtractThread.waitForPage(page)) {
+				final byte [] buffer = loadPageFromCache(page);
+
+				if (buffer != null) return buffer;
+			}
+
+			final LoadToken token = LoadToken.current();
+
+			// page isn't needed anymore, don't read it
+			if (token != null && token.isCancelled()) return null;
+		}
+
+		return readBytes(page);
 	}
-	
-	private boolean updateDoublePage(int page, int width, int height) {
-		if (page < 0 || (page+1 >= numPages)) return false;
 
-		if (!updateBuffer(page) || !updateBuffer(page+1)) return false;
+	/**
+	 * Read a page saved in cache by extractPageToFile
+	 */
+	byte [] loadPageFromCache(int page) {
+		final File file = AlbumPage.getCacheFile(mFiles.get(page));
 
-		mPages[page].updateSrcSize();
-		mPages[page+1].updateSrcSize();
+		try {
+			final byte [] buffer = new byte[(int)file.length()];
 
-		// compute new sizes based on aspect ratio and scales
-		mPages[page].updateBitmapDstSize(width, height);
-		mPages[page+1].updateBitmapDstSize(width, height);
+			if (ComicsHelpers.loadFileToBuffer(file, buffer)) return buffer;
+		} catch (OutOfMemoryError e) {
+			Log.e(ComicsParameters.APP_TAG, "OutOfMemoryError while allocating a buffer of " + String.valueOf(file.length()) + " bytes for page " + String.valueOf(page));
+		}
 
-		// read sizes of 2 pages
-		final AlbumPage.Size size1 = mPages[page].bitmapSize;
-		final AlbumPage.Size size2 = mPages[page+1].bitmapSize;
+		return null;
+	}
+
+	/**
+	 * Read a page from archive
+	 */
+	private byte [] readBytes(int page) {
+		final ArchiveReader reader = getReader();
 
-		if (size1 == null || size2 == null) return false;
+		if (reader == null || mPagesEntries == null) {
+			Log.e(ComicsParameters.APP_TAG, "Album.readBytes called on a closed album");
+			return null;
+		}
 
-		Bitmap bitmap = null;
-		Bitmap tmp = null;
+		final int index = mPagesEntries[page];
+		final long size = reader.getSize(index);
+
+		if (size < 0 || size > Integer.MAX_VALUE) {
+			Log.e(ComicsParameters.APP_TAG, "Wrong size " + String.valueOf(size) + " for page " + String.valueOf(page));
+			return null;
+		}
 
 		try {
-			// create a new bitmap with the size of the 2 bitmaps
-			bitmap = Bitmap.createBitmap(size1.dstWidth + size2.dstWidth, Math.max(size1.dstHeight, size2.dstHeight), AlbumParameters.highQuality ? Bitmap.Config.ARGB_8888:Bitmap.Config.RGB_565);
+			final byte [] buffer = new byte[(int)size];
 
-			Canvas canvas = new Canvas(bitmap);
+			if (reader.readInto(index, ByteBuffer.wrap(buffer)) == size) return buffer;
+		} catch (OutOfMemoryError e) {
+			Log.e(ComicsParameters.APP_TAG, "OutOfMemoryError while allocating a buffer of " + String.valueOf(size) + " bytes for page " + String.valueOf(page));
+		} catch (IOException e) {
+			Log.e(ComicsParameters.APP_TAG, "Unable to read page " + String.valueOf(page) + ": " + e.toString());
+		}
 
-			// get first page
-			Bitmap tmpRaw = mPages[page].getPageRaw(size1.dstScale);
+		return null;
+	}
 
-			if (tmpRaw == null) {
-				bitmap.recycle();
-				return false;
-			}
+	/**
+	 * Give access to page data without copying it in Java heap
+	 * 
+	 * @param page Page number
+	 * @return Buffer mapped from file or from DirectBufferPool, null if page must be read with getBytes
+	 */
+	protected ByteBuffer getDirectBytes(int page) {
+		return null;
+	}
 
-			// good quality resize
-			tmp = Bitmap.createScaledBitmap(tmpRaw, size1.dstWidth, size1.dstHeight, true);
+	/**
+	 * @return File containing page data, decoded without loading it in memory, or null if not on disk
+	 */
+	File getPageFile(int page) {
+		return null;
+	}
 
-			if (tmp != null) {
-				// don't recycle if using the same bitmap
-				if (tmp != tmpRaw) tmpRaw.recycle();
+	/**
+	 * @return true if page can be decoded from a stream each time it's needed, without keeping data in memory
+	 */
+	boolean canStreamPage(int page) {
+		return false;
+	}
 
-				canvas.drawBitmap(tmp, 0, 0, null);
-				tmp.recycle();
+	/**
+	 * Open a stream on page data, only used if canStreamPage returned true
+	 */
+	InputStream openPageStream(int page) throws IOException {
+		final ArchiveReader reader = getReader();
 
-				// get second page
-				tmpRaw = mPages[page+1].getPageRaw(size2.dstScale);
+		if (reader == null || mPagesEntries == null) throw new IOException("Album closed while reading page " + String.valueOf(page));
 
-				if (tmpRaw == null) {
-					bitmap.recycle();
-					tmp.recycle();
-					return false;
-				}
+		return reader.openStream(mPagesEntries[page]);
+	}
 
-				// good quality resize
-				tmp = Bitmap.createScaledBitmap(tmpRaw, size2.dstWidth, size2.dstHeight, true);
+	/**
+	 * Let page be decoded from a file or a stream instead of a buffer
+	 *
+	 * @return false if page must be loaded in memory
+	 */
+	private boolean updatePageSource(int page) {
+		final File file = getPageFile(page);
+
+		if (file != null) {
+			mPages[page].file = file;
+		} else if (canStreamPage(page)) {
+			mPages[page].streamed = true;
+		} else {
+			return false;
+		}
 
-				if (tmp != null) {
-					// don't recycle if using the same bitmap
-					if (tmp != tmpRaw) tmpRaw.recycle();
+		return true;
+	}
+	
+	/**
+	 * @return true if page is displayed with the next one
+	 */
+	private boolean isDoublePage(int page) {
+		return AlbumParameters.doublePage && page > 0 && (page+1) < numPages;
+	}
 
-					canvas.drawBitmap(tmp, size1.dstWidth, 0, null);
-					tmp.recycle();
+	private boolean updateDoublePage(int page, int width, int height) {
+		if (page < 0 || (page+1 >= numPages)) return false;
 
-					mPages[page].bitmap = bitmap;
+		// each page has its own bitmap, they're laid out side by side when drawn
+		for(int i = page; i <= page + 1; ++i) {
+			if (mPages[i].bitmap != null && !mPages[i].preview) continue;
 
-					return true;
-				} else {
-					Log.w(ComicsParameters.APP_TAG, "Bitmap.createScaledBitmap returned null");
-				}
-			} else {
-				Log.w(ComicsParameters.APP_TAG, "Bitmap.createScaledBitmap returned null");
-			}
-		} catch(OutOfMemoryError e) {
-			Log.e(ComicsParameters.APP_TAG, "Out of memory while assembling a double page");
-		} catch (Exception e) {
-			Log.e(ComicsParameters.APP_TAG, "Exception: " + e.getMessage());
-			e.printStackTrace();
+			if (!updateBuffer(i) || !mPages[i].updateBitmap(width, height)) return false;
 		}
 
-		if (bitmap != null) bitmap.recycle();
-		if (tmp != null) tmp.recycle();
-
-		return false;
+		return true;
 	}
 	
 	boolean updatePage(int page) {
+		return updatePage(page, false);
+	}
+
+	/**
+	 * Decode a coarse version of page, displayed until updatePage is done
+	 *
+	 * @return true if a preview can be displayed
+	 */
+	boolean updatePagePreview(int page) {
+		return updatePage(page, true);
+	}
+
+	private boolean updatePage(int page, boolean preview) {
 		if (BuildConfig.DEBUG) {
-			Log.d(ComicsParameters.APP_TAG, "updatePage " + String.valueOf(page));
+			Log.d(ComicsParameters.APP_TAG, "updatePage " + String.valueOf(page) + (preview ? " preview":""));
 		}
 
 		if (ComicsParameters.sScreenWidth < 1 || ComicsParameters.sScreenHeight < 1) return false;
@@ -582,7 +993,13 @@ public class Album {
 		if (page < 0 || page >= mPages.length) return false;
 
 		// already updated
-		if (mPages[page].bitmap != null) return false;
+		if (hasPageBitmap(page)) return false;
+
+		// no preview for double pages
+		if (preview && isDoublePage(page)) return false;
+
+		// preview already decoded
+		if (preview && mPages[page].bitmap != null) return true;
 
 		int screenWidth = ComicsParameters.sScreenWidth;
 		int screenHeight = ComicsParameters.sScreenHeight;
@@ -656,8 +1073,10 @@ public class Album {
 		}
 		}
 
-		if (AlbumParameters.doublePage && page > 0 && (page+1) < numPages) {
+		if (isDoublePage(page)) {
 			return updateDoublePage(page, divideByTwo ? width/2:width, height);
+		} else if (preview) {
+			return updateBuffer(page) && mPages[page].updatePreview(width, height);
 		} else {
 			if (!updateBuffer(page) || !mPages[page].updateBitmap(width, height)) return false;
 		}
@@ -667,16 +1086,30 @@ public class Album {
 		return true;
 	}
 
+	/**
+	 * Release bitmaps, save buffers out of the window around current page and load the new ones
+	 *
+	 * Stopped when token of current thread is cancelled, it can be called again to continue.
+	 */
 	void updateBuffers(int current, int next, int previous) {
+		final LoadToken token = LoadToken.current();
+
 		// TODO: make different algorithms depending on free memory
 
+		final int first;
+		final int last;
+
+		synchronized(mBufferWindowMutex) {
+			first = mFirstBufferPageNumber;
+			last = mLastBufferPageNumber;
+		}
+
 		// recycle all unused pages
-		for(int i = mFirstBufferPageNumber; i <= mLastBufferPageNumber; ++i) {
-			if (mPages[i].bitmap != null && i != current && (maxBitmapsInMemory < 2 || i != next) && (maxBitmapsInMemory < 3 || i != previous)) {
-				mPages[i].bitmap.recycle();
-				mPages[i].bitmap = null;
+		for(int i = first; i <= last; ++i) {
+			if (mPages[i].bitmap != null && !isPageDisplayed(i, current) && (maxBitmapsInMemory < 2 || !isPageDisplayed(i, next)) && (maxBitmapsInMemory < 3 || !isPageDisplayed(i, previous))) {
+				mPages[i].releaseBitmap();
 				
-				Log.d(ComicsParameters.APP_TAG, "Recycle page " + String.valueOf(i));
+				Log.d(ComicsParameters.APP_TAG, "Release bitmap of page " + String.valueOf(i));
 			}
 		}
 
@@ -686,27 +1119,43 @@ public class Album {
 
 		if (next < current) {
 			start = current + 2;
-			end = mLastBufferPageNumber;
-
-			// update last buffer page
-			mLastBufferPageNumber = Math.min(current + 1, numPages - 1);
+			end = last;
 		} else {
-			start = mFirstBufferPageNumber;
+			start = first;
 			end = current - 2;
-
-			// update first buffer page
-			mFirstBufferPageNumber = Math.max(current - 1, 0);
 		}
 
 		// fix bounding wrong values
 		if (start >= numPages) start = numPages - 1;
 		if (end < 0) end = 0;
 
+		boolean saved = true;
+
 		for(int i = start; i <= end; ++i) {
-			if (!mPages[i].saveBufferToCache()) {
+			if (isLoadingAborted(token)) {
+				saved = false;
+				break;
+			}
+
+			// already saved if updating buffers was stopped before
+			if (mPages[i].hasData() && !mPages[i].saveBufferToCache()) {
 				Log.w(ComicsParameters.APP_TAG, "Unable to save buffer of page " + i + " to cache");
 			}
 		}
+
+		// window is moved only once all buffers out of it are saved
+		if (saved) {
+			synchronized(mBufferWindowMutex) {
+				// unless a page has been loaded out of it in the meantime, it'll be saved next time
+				if (next < current) {
+					// update last buffer page
+					if (mLastBufferPageNumber == last) mLastBufferPageNumber = Math.min(current + 1, numPages - 1);
+				} else {
+					// update first buffer page
+					if (mFirstBufferPageNumber == first) mFirstBufferPageNumber = Math.max(current - 1, 0);
+				}
+			}
+		}
 		
 		// load new buffers to speed up loading
 		if (next < current) {
@@ -721,29 +1170,161 @@ public class Album {
 		if (start < 0) start = 0;
 		if (end >= numPages) end = numPages - 1;
 
+		// read the whole window at once if format supports it
+		if (!isLoadingAborted(token)) prefetchBuffers(start, end);
+
 		for(int i = start; i <= end; ++i) {
-			if (!AlbumPage.sAbortLoading) updateBuffer(i);
+			if (!isLoadingAborted(token)) updateBuffer(i);
 		}
-		
-		AlbumPage.sAbortLoading = false;
+
+		// prepare next pages on disk in reading direction
+		if (!isLoadingAborted(token)) {
+			if (next < current) {
+				if (start > 0) cachePages(start - 1, Math.max(0, start - CACHED_PAGES_AHEAD));
+			} else {
+				if (end < numPages - 1) cachePages(end + 1, Math.min(numPages - 1, end + CACHED_PAGES_AHEAD));
+			}
+		}
+	}
+
+	static boolean isLoadingAborted(LoadToken token) {
+		return AlbumPage.sAbortLoading || (token != null && token.isCancelled());
+	}
+
+	/**
+	 * Read data of a page, and of the next one for a double page, before decoding them
+	 */
+	boolean loadPageBuffers(int page) {
+		if (mPages == null || page < 0 || page >= mPages.length) return false;
+
+		if (!updateBuffer(page)) return false;
+
+		return !isDoublePage(page) || updateBuffer(page + 1);
+	}
+
+	/**
+	 * Load buffers of several pages in parallel, remaining ones are loaded by updateBuffer
+	 * 
+	 * @param start First page to load
+	 * @param end Last page to load
+	 */
+	void prefetchBuffers(int start, int end) {
+	}
+
+	/**
+	 * Save pages after the buffers window in cache without keeping them in memory
+	 *
+	 * @param from Nearest page from current one
+	 * @param to Farthest page, can be lower than from when reading backward
+	 */
+	void cachePages(int from, int to) {
+	}
+
+	/**
+	 * Check if page is already in memory or load it from cache
+	 */
+	boolean isBufferLoaded(int page) {
+		return mPages[page].loadBufferFromCache();
+	}
+
+	/**
+	 * Set page buffer, can be called from any thread
+	 */
+	void setBuffer(int page, byte [] data) {
+		// page can be read by I/O and decoding threads at the same time
+		synchronized(mPages[page]) {
+			// keep buffer loaded in the meantime
+			if (!mPages[page].hasData()) mPages[page].buffer = data;
+		}
+	}
+
+	/**
+	 * Begin to load a page in current thread, endLoad must be called after
+	 */
+	LoadToken beginLoad(int page) {
+		final LoadToken token = new LoadToken(page, LoadToken.current());
+
+		synchronized(mLoadTokens) {
+			mLoadTokens.add(token);
+		}
+
+		LoadToken.setCurrent(token);
+
+		return token;
+	}
+
+	void endLoad(LoadToken token) {
+		// back to the load which started this one
+		LoadToken.setCurrent(token.parent);
+
+		synchronized(mLoadTokens) {
+			mLoadTokens.remove(token);
+		}
+	}
+
+	/**
+	 * Cancel loading of all pages except displayed ones, can be called from any thread
+	 */
+	void cancelLoads(int current, int next, int previous) {
+		synchronized(mLoadTokens) {
+			for(LoadToken token: mLoadTokens) {
+				if (!isPageDisplayed(token.page, current) && !isPageDisplayed(token.page, next) && !isPageDisplayed(token.page, previous)) {
+					token.cancel();
+
+					Log.d(ComicsParameters.APP_TAG, "Cancel loading of page " + String.valueOf(token.page));
+				}
+			}
+		}
+	}
+
+	private static boolean isPageDisplayed(int page, int displayed) {
+		if (displayed < 0) return false;
+
+		// second page is displayed too
+		return page == displayed || (AlbumParameters.doublePage && page == displayed + 1);
 	}
 
 	private boolean updateBuffer(int page) {
-		if (!mPages[page].loadBufferFromCache()) {
-			 byte[] data = getBytes(page);
+		// page can be read by I/O and decoding threads at the same time
+		synchronized(mPages[page]) {
+			return updatePageBuffer(page);
+		}
+	}
 
-			// exit because we didn't succeed to load buffer
-			if (data == null) return false;
-			
-			mPages[page].buffer = data;
+	private boolean updatePageBuffer(int page) {
+		if (!mPages[page].loadBufferFromCache() && !updatePageSource(page)) {
+			final LoadToken token = beginLoad(page);
+
+			try {
+				final ByteBuffer direct = getDirectBytes(page);
+
+				if (direct != null) {
+					mPages[page].directBuffer = direct;
+				} else {
+					byte[] data = getBytes(page);
+
+					// exit because we didn't succeed to load buffer
+					if (data == null) {
+						if (token.isCancelled()) Log.d(ComicsParameters.APP_TAG, "Loading of page " + String.valueOf(page) + " cancelled");
+
+						return false;
+					}
+
+					mPages[page].buffer = data;
+				}
+			} finally {
+				endLoad(token);
+			}
 
 			Log.d(ComicsParameters.APP_TAG, "Loaded buffer for page " + String.valueOf(page));
 		} else {
-			Log.d(ComicsParameters.APP_TAG, "Buffer already in memory for page " + String.valueOf(page));
+			Log.d(ComicsParameters.APP_TAG, "Buffer already in memory or on disk for page " + String.valueOf(page));
 		}
 
-		if (page < mFirstBufferPageNumber) mFirstBufferPageNumber = page;
-		if (page > mLastBufferPageNumber) mLastBufferPageNumber = page;
+		synchronized(mBufferWindowMutex) {
+			if (page < mFirstBufferPageNumber) mFirstBufferPageNumber = page;
+			if (page > mLastBufferPageNumber) mLastBufferPageNumber = page;
+		}
 
 		return true;
 	}
@@ -754,8 +1335,9 @@ public class Album {
 	}
 	
 	boolean hasPageBitmap(int page) {
-		return !(page < 0 || page >= mPages.length) && mPages[page].bitmap != null;
+		if (page < 0 || page >= mPages.length || mPages[page].bitmap == null || mPages[page].preview) return false;
 
+		return !isDoublePage(page) || (mPages[page+1].bitmap != null && !mPages[page+1].preview);
 	}
 	
 	Bitmap getPageThumbnail(int page) {
@@ -770,15 +1352,43 @@ public class Album {
 		return mPages[page].bitmap;
 	}
 
+	/**
+	 * Get bitmaps of page, with the next one for a double page, they're kept out of pool until spread is dropped
+	 *
+	 * @return Spread to give to view or to drop, or null if not yet decoded
+	 */
+	PageSpread getPageSpread(int page) {
+		if (page < 0 || page >= mPages.length) return null;
+
+		final AlbumPage left = mPages[page];
+		final AlbumPage right = isDoublePage(page) ? mPages[page+1]:null;
+
+		final PageSpread spread = new PageSpread(left.bitmap, left.tiles, right == null ? null:right.bitmap, right == null ? null:right.tiles);
+
+		if (spread.leftBitmap == null || (right != null && spread.rightBitmap == null) || !spread.retain()) return null;
+
+		// bitmaps are forgotten before being released, if they're still used they can't have been reused
+		if (left.bitmap != spread.leftBitmap || left.tiles != spread.leftTiles || (right != null && (right.bitmap != spread.rightBitmap || right.tiles != spread.rightTiles))) {
+			spread.drop();
+			return null;
+		}
+
+		return spread;
+	}
+
 	int getPageWidth(int page) {
 		if (page < 0 || page >= mPages.length) return 0;
 
+		if (isDoublePage(page)) return mPages[page].bitmapSize.dstWidth + mPages[page+1].bitmapSize.dstWidth;
+
 		return mPages[page].bitmapSize.dstWidth;
 	}
 
 	int getPageHeight(int page) {
 		if (page < 0 || page >= mPages.length) return 0;
 
+		if (isDoublePage(page)) return Math.max(mPages[page].bitmapSize.dstHeight, mPages[page+1].bitmapSize.dstHeight);
+
 		return mPages[page].bitmapSize.dstHeight;
 	}
 	
@@ -787,8 +1397,7 @@ public class Album {
 		
 		for(int i = 0; i < numPages; ++i) {
 			if (mPages[i].bitmap != null) {
-				mPages[i].bitmap.recycle();
-				mPages[i].bitmap = null;
+				mPages[i].releaseBitmap();
 			}
 			
 			mPages[i].resetSize();
@@ -798,8 +1407,10 @@ public class Album {
 	private int getMemoryUsed() {
 		int size = 0;
 
-		for(int i = mFirstBufferPageNumber; i <= mLastBufferPageNumber; ++i) {
-			size += mPages[i].getMemoryUsed();
+		synchronized(mBufferWindowMutex) {
+			for(int i = mFirstBufferPageNumber; i <= mLastBufferPageNumber; ++i) {
+				size += mPages[i].getMemoryUsed();
+			}
 		}
 		
 		return size;
@@ -813,10 +1424,12 @@ public class Album {
 		Log.d(ComicsParameters.APP_TAG, "From page " + String.valueOf(mFirstBufferPageNumber) + " to " + String.valueOf(mLastBufferPageNumber) + " using " + String.valueOf(getMemoryUsed()) + " bytes (" + String.valueOf(used) + " on " + String.valueOf(max));
 		
 		for(int i = 0; i < numPages; ++i) {
-			String buffer = mPages[i].buffer == null ? "0":String.valueOf(mPages[i].buffer.length);
+			String buffer = String.valueOf(mPages[i].getBufferSize());
 			String bitmap = mPages[i].bitmap == null ? "0":String.valueOf(mPages[i].getMemoryUsed());
 
 			Log.d(ComicsParameters.APP_TAG, "Page " + String.valueOf(i) + ": buffer " + buffer + ", bitmap " + bitmap);
 		}
+
+		Log.d(ComicsParameters.APP_TAG, "Bitmap pool: " + BitmapPool.getStats());
 	}
 }
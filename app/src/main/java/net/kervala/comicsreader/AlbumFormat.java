@@ -0,0 +1,162 @@
+/*
+ * ComicsReader is an Android application to read comics
+ * Copyright (C) 2011-2018 Cedric OCHS
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package net.kervala.comicsreader;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.util.Log;
+
+/**
+ * Detect format of an album reading its header only once
+ *
+ * Results are kept in memory while the file path, size and date don't change,
+ * so browsing a folder then opening an album doesn't read files again.
+ */
+class AlbumFormat {
+	static final int TYPE_NONE = 0;
+	static final int TYPE_CBZ = 1;
+	static final int TYPE_CBR = 2;
+	static final int TYPE_CBT = 3;
+	static final int TYPE_FOLDER = 4;
+	static final int TYPE_CB7 = 5;
+
+	private static final int HEADER_SIZE = 512;
+	private static final int MAX_CACHED_FILES = 4096;
+
+	private static class Entry {
+		final long length;
+		final long lastModified;
+		final int type;
+
+		Entry(long length, long lastModified, int type) {
+			this.length = length;
+			this.lastModified = lastModified;
+			this.type = type;
+		}
+	}
+
+	// least recently used files are removed first
+	private static final Map<String, Entry> sCache = new LinkedHashMap<String, Entry>(256, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+			return size() > MAX_CACHED_FILES;
+		}
+	};
+
+	/**
+	 * @param filename Absolute path of a file or a folder
+	 * @return One of TYPE_* constants
+	 */
+	static int detect(String filename) {
+		if (filename == null) return TYPE_NONE;
+
+		final File file = new File(filename);
+
+		// a single stat for both cache key and detection
+		final long lastModified = file.lastModified();
+
+		// file doesn't exist
+		if (lastModified == 0) return TYPE_NONE;
+
+		final long length = file.length();
+
+		synchronized(sCache) {
+			final Entry entry = sCache.get(filename);
+
+			if (entry != null && entry.length == length && entry.lastModified == lastModified) return entry.type;
+		}
+
+		final int type = file.isDirectory() ? detectFolder(file):detectFile(file, length);
+
+		synchronized(sCache) {
+			sCache.put(filename, new Entry(length, lastModified, type));
+		}
+
+		return type;
+	}
+
+	static void clearCache() {
+		synchronized(sCache) {
+			sCache.clear();
+		}
+	}
+
+	private static int detectFolder(File dir) {
+		// folder containing at least one image
+		final String [] images = dir.list(new FolderAlbum.ImageFilter());
+
+		return images != null && images.length > 0 ? TYPE_FOLDER:TYPE_NONE;
+	}
+
+	private static int detectFile(File file, long length) {
+		final byte [] header = new byte[HEADER_SIZE];
+
+		int read = 0;
+
+		if (file.canRead()) {
+			FileInputStream ifs = null;
+
+			try {
+				ifs = new FileInputStream(file);
+
+				while(read < HEADER_SIZE) {
+					final int count = ifs.read(header, read, HEADER_SIZE - read);
+
+					if (count < 0) break;
+
+					read += count;
+				}
+			} catch (IOException e) {
+				Log.w(ComicsParameters.APP_TAG, "Unable to read header of " + file.getAbsolutePath() + " Exception: " + e.toString());
+			}
+
+			try {
+				if (ifs != null) ifs.close();
+			} catch (IOException e) {
+			}
+		}
+
+		// ZIP local file header
+		if (read >= 2 && header[0] == 'P' && header[1] == 'K') return TYPE_CBZ;
+
+		// RAR 1.5 and 5.0 signatures both start with "Rar!"
+		if (read >= 4 && header[0] == 'R' && header[1] == 'a' && header[2] == 'r' && header[3] == '!' && RarFile.isLoaded()) return TYPE_CBR;
+
+		// 7z signature
+		if (SevenZipFile.isSignature(header, read)) return TYPE_CB7;
+
+		// TAR archives are made of 512 bytes blocks and name is ended by a 0
+		if (read > 99 && length % 512 == 0 && header[99] == 0) return TYPE_CBT;
+
+		// TAR archive compressed with gzip
+		if (GzipTarFile.isTar(header, read)) return TYPE_CBT;
+
+		// a single image
+		if (Album.isValidImage(file.getAbsolutePath())) return TYPE_FOLDER;
+
+		return TYPE_NONE;
+	}
+}
@@ -0,0 +1,246 @@
+/*
+ * ComicsReader is an Android application to read comics
+ * Copyright (C) 2011-2018 Cedric OCHS
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package net.kervala.comicsreader;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+
+import android.util.Log;
+
+/**
+ * Sorted pages of an album with their position in archive and their size
+ *
+ * Saved in cache to reopen an album without listing and sorting its entries
+ * again, it's only valid while the album path, size and date don't change.
+ */
+class AlbumIndex {
+	private static final int MAGIC = 0x43524958; // CRIX
+	private static final int VERSION = 2;
+
+	// used to check index is still valid
+	private final String mFilename;
+	private final long mLength;
+	private final long mLastModified;
+	private final String mType;
+	private boolean mModified = false;
+
+	String title;
+
+	// one element per page, in pages order
+	final String [] names;
+	final int [] entries;
+	final long [] offsets;
+	final long [] sizes;
+	final long [] packedSizes;
+	final int [] methods;
+	final int [] widths;
+	final int [] heights;
+
+	// pairs of uncompressed and compressed positions where a compressed archive can be read from
+	long [] checkpoints = new long[0];
+
+	AlbumIndex(String filename, String type, List<String> pages) {
+		this(filename, type, pages.size());
+
+		pages.toArray(names);
+
+		mModified = true;
+	}
+
+	private AlbumIndex(String filename, String type, int count) {
+		final File file = new File(filename);
+
+		mFilename = filename;
+		mLength = file.length();
+		mLastModified = file.lastModified();
+		mType = type;
+
+		names = new String[count];
+		entries = new int[count];
+		offsets = new long[count];
+		sizes = new long[count];
+		packedSizes = new long[count];
+		methods = new int[count];
+		widths = new int[count];
+		heights = new int[count];
+	}
+
+	int size() {
+		return names.length;
+	}
+
+	void setPageSize(int page, int width, int height) {
+		if (width < 1 || height < 1 || (widths[page] == width && heights[page] == height)) return;
+
+		widths[page] = width;
+		heights[page] = height;
+
+		mModified = true;
+	}
+
+	private static File getFile(String filename) {
+		if (ComicsParameters.sIndicesDirectory == null) return null;
+
+		return new File(ComicsParameters.sIndicesDirectory, ComicsHelpers.md5(filename));
+	}
+
+	/**
+	 * Load index of an album
+	 *
+	 * @param filename Album filename
+	 * @param type MIME type of album
+	 * @return Index or null if there is no index or album changed since
+	 */
+	static AlbumIndex load(String filename, String type) {
+		final File indexFile = getFile(filename);
+
+		if (indexFile == null || !indexFile.exists()) return null;
+
+		final File file = new File(filename);
+
+		try {
+			// read everything at once
+			final byte [] buffer = new byte[(int)indexFile.length()];
+
+			if (!ComicsHelpers.loadFileToBuffer(indexFile, buffer)) return null;
+
+			final DataInputStream input = new DataInputStream(new ByteArrayInputStream(buffer));
+
+			if (input.readInt() != MAGIC || input.readInt() != VERSION) return null;
+
+			if (!input.readUTF().equals(filename) || input.readLong() != file.length() || input.readLong() != file.lastModified() || !input.readUTF().equals(type)) {
+				Log.d(ComicsParameters.APP_TAG, "Index of " + filename + " is outdated");
+				return null;
+			}
+
+			final String title = input.readUTF();
+			final int count = input.readInt();
+
+			if (count < 1) return null;
+
+			final AlbumIndex index = new AlbumIndex(filename, type, count);
+			index.title = title;
+
+			for(int i = 0; i < count; ++i) {
+				index.names[i] = input.readUTF();
+				index.entries[i] = input.readInt();
+				index.offsets[i] = input.readLong();
+				index.sizes[i] = input.readLong();
+				index.packedSizes[i] = input.readLong();
+				index.methods[i] = input.readInt();
+				index.widths[i] = input.readInt();
+				index.heights[i] = input.readInt();
+			}
+
+			final int checkpointsCount = input.readInt();
+
+			if (checkpointsCount < 0) return null;
+
+			index.checkpoints = new long[checkpointsCount];
+
+			for(int i = 0; i < checkpointsCount; ++i) {
+				index.checkpoints[i] = input.readLong();
+			}
+
+			return index;
+		} catch (IOException e) {
+			Log.w(ComicsParameters.APP_TAG, "Unable to read index of " + filename + ": " + e.toString());
+		} catch (OutOfMemoryError e) {
+			Log.e(ComicsParameters.APP_TAG, "OutOfMemoryError while reading index of " + filename);
+		}
+
+		return null;
+	}
+
+	boolean save() {
+		if (!mModified) return true;
+
+		final File indexFile = getFile(mFilename);
+
+		if (indexFile == null) return false;
+
+		final File tmpFile = new File(indexFile.getAbsolutePath() + ".tmp");
+
+		boolean res = false;
+
+		DataOutputStream output = null;
+
+		try {
+			output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile), 65536));
+
+			output.writeInt(MAGIC);
+			output.writeInt(VERSION);
+			output.writeUTF(mFilename);
+			output.writeLong(mLength);
+			output.writeLong(mLastModified);
+			output.writeUTF(mType);
+			output.writeUTF(title == null ? "":title);
+			output.writeInt(names.length);
+
+			for(int i = 0; i < names.length; ++i) {
+				output.writeUTF(names[i]);
+				output.writeInt(entries[i]);
+				output.writeLong(offsets[i]);
+				output.writeLong(sizes[i]);
+				output.writeLong(packedSizes[i]);
+				output.writeInt(methods[i]);
+				output.writeInt(widths[i]);
+				output.writeInt(heights[i]);
+			}
+
+			output.writeInt(checkpoints.length);
+
+			for(long checkpoint: checkpoints) {
+				output.writeLong(checkpoint);
+			}
+
+			output.close();
+			output = null;
+
+			// replace previous index only when complete
+			res = tmpFile.renameTo(indexFile);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+
+		try {
+			if (output != null) output.close();
+		} catch (IOException e) {
+		}
+
+		if (res) {
+			mModified = false;
+		} else {
+			Log.w(ComicsParameters.APP_TAG, "Unable to save index of " + mFilename);
+
+			if (tmpFile.exists() && !tmpFile.delete()) {
+				Log.w(ComicsParameters.APP_TAG, "Unable to delete file " + tmpFile.getAbsolutePath());
+			}
+		}
+
+		return res;
+	}
+}
@@ -20,26 +20,41 @@
 package net.kervala.comicsreader;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
 
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
 import android.util.Log;
 
 public class AlbumPage {
 	Bitmap bitmap;
+	PageTiles tiles; // set if page is too large, bitmap is only a preview
+	boolean preview; // bitmap is a coarse version of page, displayed until updateBitmap is done
 	Bitmap thumbnail;
 	byte [] buffer;
+	ByteBuffer directBuffer; // mapped from archive or filled by native code, used instead of buffer
+	File file; // page decoded directly from disk, used instead of buffer
+	boolean streamed; // page decoded from a stream opened by album, used instead of buffer
 	Size bitmapSize;
 	Size cachedBitmapSize;
 	Size thumbnailSize;
 
+	private Album mAlbum;
 	private int mPage;
 	private String mFilename;
 	private String mCacheFilename;
 	private File mBufferCacheFile;
 	private final Object mBitmapSizeMutex = new Object();
 
-	static boolean sAbortLoading = false;
+	// preview is at least 4 times smaller than displayed page
+	private static final int PREVIEW_SCALE = 4;
+
+	// read by several loading threads
+	static volatile boolean sAbortLoading = false;
 	
 	// class to manage in and out sizes of a page
 	public class Size {
@@ -51,7 +66,8 @@ public class AlbumPage {
 		boolean fitToScreen = false;
 	}
 	
-	AlbumPage(int page, String filename) {
+	AlbumPage(Album album, int page, String filename) {
+		mAlbum = album;
 		mPage = page;
 		mFilename = filename;
 	}
@@ -60,13 +76,10 @@ public class AlbumPage {
 		// remove cached buffer if present
 		deleteCache();
 
-		// recycle bitmap
-		if (bitmap != null) {
-			bitmap.recycle();
-			bitmap = null;
-		}
+		// give bitmap back to pool
+		releaseBitmap();
 
-		// recycle thumbnail
+		// recycle thumbnail, it can still be displayed in lists so it's not reused
 		if (thumbnail != null) {
 			thumbnail.recycle();
 			thumbnail = null;
@@ -74,12 +87,16 @@ public class AlbumPage {
 		
 		// free buffer
 		buffer = null;
+		releaseDirectBuffer();
+		file = null;
+		streamed = false;
 
 		// uninitialize other variables
 		bitmapSize = null;
 		cachedBitmapSize = null;
 		thumbnailSize = null;
 
+		mAlbum = null;
 		mFilename = null;
 		mCacheFilename = null;
 		mBufferCacheFile = null;
@@ -92,12 +109,21 @@ public class AlbumPage {
 	 * @return Bitmap representing this page
 	 */
 	Bitmap getPageRaw(int scale) {
-		if (buffer == null) return null;
+		return getPageRaw(scale, 0, 0);
+	}
 
-		if (sAbortLoading) {
-			sAbortLoading = false;
-			return null;
-		}
+	/**
+	 * Load a page from stream and let decoder resize it
+	 *
+	 * @param scale Scale to apply on page size before resizing it
+	 * @param width Width of bitmap or 0 to keep sampled size
+	 * @param height Height of bitmap, it can differ by 1 pixel due to rounding
+	 * @return Bitmap representing this page
+	 */
+	Bitmap getPageRaw(int scale, int width, int height) {
+		if (!hasData()) return null;
+
+		if (isLoadingCancelled()) return null;
 
 		final BitmapFactory.Options options = new BitmapFactory.Options();
 
@@ -113,18 +139,51 @@ public class AlbumPage {
 			options.inPreferredConfig = Bitmap.Config.RGB_565;
 		}
 
+		final int sampledWidth = bitmapSize == null ? 0:bitmapSize.srcWidth / Math.max(scale, 1);
+
+		if (width > 0 && sampledWidth > 0 && sampledWidth != width) {
+			// decoder resizes sampled image without an intermediate bitmap
+			options.inScaled = true;
+			options.inDensity = sampledWidth;
+			options.inTargetDensity = width;
+
+			BitmapPool.prepareScaledDecode(options, width + 1, height + 1);
+		} else if (bitmapSize != null) {
+			// decode into a bitmap from pool when size is known
+			BitmapPool.prepareDecode(options, bitmapSize.srcWidth, bitmapSize.srcHeight);
+		}
+
 		Bitmap b;
 
 		try {
-			// get bitmap from buffer
-			b = BitmapFactory.decodeByteArray(buffer, 0, buffer.length, options);
+			try {
+				// get bitmap from buffer
+				b = decodeBuffer(options);
+			} catch (IllegalArgumentException e) {
+				if (options.inBitmap == null) throw e;
+
+				// pooled bitmap can't be reused for this image
+				BitmapPool.release(options.inBitmap);
+				options.inBitmap = null;
+
+				b = decodeBuffer(options);
+			}
+
+			// decoding failed, bitmap wasn't used
+			if (b == null && options.inBitmap != null) BitmapPool.release(options.inBitmap);
+
+			// pixels already have their final size, canvas mustn't scale them again
+			if (b != null && options.inScaled) b.setDensity(Bitmap.DENSITY_NONE);
 
 			if (b == null) {
-				Log.e(ComicsParameters.APP_TAG, "BitmapFactory.decodeByteArray returned null for " + mFilename + " size = " + String.valueOf(buffer.length));
+				Log.e(ComicsParameters.APP_TAG, "BitmapFactory returned null for " + mFilename + " size = " + String.valueOf(getBufferSize()));
 
-				saveBufferToCache();
+				// save buffer to check it, a mapped buffer is still in archive
+				if (buffer != null || DirectBufferPool.isPooled(directBuffer)) {
+					saveBufferToCache();
 
-				Log.d(ComicsParameters.APP_TAG, "File " + mFilename + " saved in temporary directory under namme " + mCacheFilename + " to check it");
+					Log.d(ComicsParameters.APP_TAG, "File " + mFilename + " saved in temporary directory under namme " + mCacheFilename + " to check it");
+				}
 			}
 		} catch (OutOfMemoryError e) {
 			Log.e(ComicsParameters.APP_TAG, "OutOfMemory while decoding bitmap " + mFilename + ": " + e.toString());
@@ -164,6 +223,54 @@ public class AlbumPage {
 		return b;
 	}
 
+	/**
+	 * Decode page data, synchronized because buffers can be saved to cache by another thread
+	 */
+	private synchronized Bitmap decodeBuffer(BitmapFactory.Options options) {
+		if (buffer != null) return BitmapFactory.decodeByteArray(buffer, 0, buffer.length, options);
+
+		// decode directly from mapped file or native memory without copying it in Java heap
+		if (directBuffer != null) return BitmapFactory.decodeStream(new ByteBufferInputStream(directBuffer), null, options);
+
+		InputStream input = null;
+
+		try {
+			if (file != null) {
+				input = new FileInputStream(file);
+
+				// a file descriptor can be read again without buffering data
+				return BitmapFactory.decodeFileDescriptor(((FileInputStream)input).getFD(), null, options);
+			}
+
+			if (streamed && mAlbum != null) {
+				input = mAlbum.openPageStream(mPage);
+
+				return BitmapFactory.decodeStream(input, null, options);
+			}
+		} catch (IOException e) {
+			Log.e(ComicsParameters.APP_TAG, "Unable to read page " + String.valueOf(mPage) + ": " + e.toString());
+		} finally {
+			try {
+				if (input != null) input.close();
+			} catch (IOException e) {
+			}
+		}
+
+		return null;
+	}
+
+	boolean hasData() {
+		return buffer != null || directBuffer != null || file != null || streamed;
+	}
+
+	int getBufferSize() {
+		if (buffer != null) return buffer.length;
+		if (directBuffer != null) return directBuffer.limit();
+		if (file != null) return (int)file.length();
+
+		return 0;
+	}
+
 	void updateBitmapDstSize(int width, int height) {
 		if (bitmapSize == null) return;
 	
@@ -266,23 +373,42 @@ public class AlbumPage {
 			// compute new size based on aspect ratio and scales
 			updateBitmapDstSize(width, height);
 
-			final Bitmap bitmapRaw = getPageRaw(bitmapSize.dstScale);
+			// huge page, only visible parts are decoded with the right size
+			if (PageTiles.isNeeded(bitmapSize.dstWidth, bitmapSize.dstHeight) && updateTiles()) {
+				cachedBitmapSize = bitmapSize;
+
+				return true;
+			}
+
+			final Bitmap bitmapRaw = getPageRaw(bitmapSize.dstScale, bitmapSize.dstWidth, bitmapSize.dstHeight);
 
 			if (bitmapRaw == null) return false;
 
-			if (bitmapSize.srcWidth == bitmapSize.dstWidth * bitmapSize.dstScale && bitmapSize.srcHeight == bitmapSize.dstHeight * bitmapSize.dstScale) {
-				bitmap = bitmapRaw;
+			if (isResized(bitmapRaw, bitmapSize)) {
+				// use real size, it can differ by 1 pixel
+				bitmapSize.dstWidth = bitmapRaw.getWidth();
+				bitmapSize.dstHeight = bitmapRaw.getHeight();
+
+				setBitmap(bitmapRaw, null);
 				cachedBitmapSize = bitmapSize;
 
 				return true;
 			}
 
+			Bitmap scaled = null;
+
 			try {
 				// good quality resize
-				bitmap = Bitmap.createScaledBitmap(bitmapRaw, bitmapSize.dstWidth, bitmapSize.dstHeight, true);
-				cachedBitmapSize = bitmapSize;
+				scaled = BitmapPool.scale(bitmapRaw, bitmapSize.dstWidth, bitmapSize.dstHeight);
+
+				if (scaled != null) {
+					setBitmap(scaled, null);
+					cachedBitmapSize = bitmapSize;
 
-				res = true;
+					res = true;
+				} else {
+					Log.w(ComicsParameters.APP_TAG, "Unable to allocate a scaled bitmap");
+				}
 			} catch(OutOfMemoryError e) {
 				Log.e(ComicsParameters.APP_TAG, "Out of memory while creating scaled bitmap");
 				e.printStackTrace();
@@ -291,12 +417,145 @@ public class AlbumPage {
 				e.printStackTrace();
 			}
 
-			if (bitmap != bitmapRaw) bitmapRaw.recycle();
+			if (scaled != bitmapRaw) BitmapPool.release(bitmapRaw);
 		}
 
 		return res;
 	}
 
+	/**
+	 * @return true if decoder already resized bitmap to destination size
+	 */
+	private static boolean isResized(Bitmap bitmap, Size size) {
+		return Math.abs(bitmap.getWidth() - size.dstWidth) <= 1 && Math.abs(bitmap.getHeight() - size.dstHeight) <= 1;
+	}
+
+	/**
+	 * Decode page with a large sample size, much faster than updateBitmap
+	 */
+	boolean updatePreview(int width, int height) {
+		if (!updateSrcSize()) return false;
+
+		synchronized(mBitmapSizeMutex) {
+			updateBitmapDstSize(width, height);
+
+			final int scale = Math.max(bitmapSize.dstScale, 1) * PREVIEW_SCALE;
+
+			// page is small enough to be decoded entirely at once
+			if (bitmapSize.srcWidth / scale < ComicsParameters.MIN_SCALED_SIZE || bitmapSize.srcHeight / scale < ComicsParameters.MIN_SCALED_SIZE) return false;
+
+			final Bitmap coarse = getPageRaw(scale);
+
+			if (coarse == null) return false;
+
+			// displayed stretched to page size
+			bitmap = coarse;
+			tiles = new PageTiles(null, bitmapSize.dstWidth, bitmapSize.dstHeight, coarse.getConfig());
+			preview = true;
+		}
+
+		return true;
+	}
+
+	/**
+	 * Replace a preview, give it back to pool and forget its tiles
+	 */
+	private void setBitmap(Bitmap newBitmap, PageTiles newTiles) {
+		final Bitmap oldBitmap = bitmap;
+		final PageTiles oldTiles = tiles;
+
+		bitmap = newBitmap;
+		tiles = newTiles;
+		preview = false;
+
+		// pool keeps it until view doesn't display it anymore
+		if (oldBitmap != newBitmap) BitmapPool.release(oldBitmap);
+		if (oldTiles != null && oldTiles != newTiles) oldTiles.close();
+	}
+
+	/**
+	 * Decode a preview fitting in screen and prepare tiles to display page with its real size
+	 */
+	private boolean updateTiles() {
+		final BitmapRegionDecoder decoder = newRegionDecoder();
+
+		if (decoder == null) return false;
+
+		final int maxSize = Math.max(Math.max(ComicsParameters.sScreenWidth, ComicsParameters.sScreenHeight), ComicsParameters.MIN_SCALED_SIZE);
+
+		int scale = 1;
+
+		while(bitmapSize.srcWidth / scale > maxSize || bitmapSize.srcHeight / scale > maxSize) {
+			scale *= 2;
+		}
+
+		final Bitmap overview = getPageRaw(scale);
+
+		if (overview == null) {
+			decoder.recycle();
+			return false;
+		}
+
+		setBitmap(overview, new PageTiles(decoder, bitmapSize.dstWidth, bitmapSize.dstHeight, AlbumParameters.highQuality ? Bitmap.Config.ARGB_8888:Bitmap.Config.RGB_565));
+
+		Log.d(ComicsParameters.APP_TAG, "Page " + String.valueOf(mPage) + " displayed by tiles with a preview of " + String.valueOf(overview.getWidth()) + "x" + String.valueOf(overview.getHeight()));
+
+		return true;
+	}
+
+	private synchronized BitmapRegionDecoder newRegionDecoder() {
+		try {
+			// data is copied, so buffers can be saved to cache independently
+			if (buffer != null) return BitmapRegionDecoder.newInstance(buffer, 0, buffer.length, false);
+			if (directBuffer != null) return BitmapRegionDecoder.newInstance(new ByteBufferInputStream(directBuffer), false);
+			if (file != null) return BitmapRegionDecoder.newInstance(file.getAbsolutePath(), false);
+
+			if (streamed && mAlbum != null) {
+				final InputStream input = mAlbum.openPageStream(mPage);
+
+				try {
+					return BitmapRegionDecoder.newInstance(input, false);
+				} finally {
+					input.close();
+				}
+			}
+		} catch (IOException e) {
+			// format not supported by region decoder, page is decoded entirely
+			Log.w(ComicsParameters.APP_TAG, "Unable to decode parts of " + mFilename + ": " + e.getMessage());
+		} catch (OutOfMemoryError e) {
+			Log.e(ComicsParameters.APP_TAG, "OutOfMemoryError while creating a region decoder for " + mFilename);
+		}
+
+		return null;
+	}
+
+	/**
+	 * @return true if page isn't needed anymore by the thread decoding it
+	 */
+	private static boolean isLoadingCancelled() {
+		final LoadToken token = LoadToken.current();
+
+		return token != null && token.isCancelled();
+	}
+
+	/**
+	 * Give bitmap back to pool and forget tiles
+	 */
+	void releaseBitmap() {
+		final Bitmap released = bitmap;
+
+		// forget it before, a spread retaining it after can check it's not used anymore
+		bitmap = null;
+		preview = false;
+
+		BitmapPool.release(released);
+
+		if (tiles != null) {
+			tiles.close();
+			tiles = null;
+		}
+	}
+
 	boolean updateThumbnail() {
 		if (thumbnail != null) return true;
 		
@@ -305,11 +564,11 @@ public class AlbumPage {
 		// compute new size based on aspect ratio and scales
 		updateThumbnailDstSize();
 
-		final Bitmap bitmapRaw = getPageRaw(thumbnailSize.dstScale);
+		final Bitmap bitmapRaw = getPageRaw(thumbnailSize.dstScale, thumbnailSize.dstWidth, thumbnailSize.dstHeight);
 
 		if (bitmapRaw == null) return false;
 
-		if (thumbnailSize.srcWidth == thumbnailSize.dstWidth * thumbnailSize.dstScale && thumbnailSize.srcHeight == thumbnailSize.dstHeight * thumbnailSize.dstScale) {
+		if (isResized(bitmapRaw, thumbnailSize)) {
 			thumbnail = bitmapRaw;
 			
 			return true;
@@ -319,9 +578,9 @@ public class AlbumPage {
 
 		try {
 			// good quality resize
-			thumbnail = Bitmap.createScaledBitmap(bitmapRaw, thumbnailSize.dstWidth, thumbnailSize.dstHeight, true);
-		
-			res = true;
+			thumbnail = BitmapPool.scale(bitmapRaw, thumbnailSize.dstWidth, thumbnailSize.dstHeight);
+
+			res = thumbnail != null;
 		} catch(OutOfMemoryError e) {
 			Log.e(ComicsParameters.APP_TAG, "Out of memory while creating scaled bitmap");
 			e.printStackTrace();
@@ -330,19 +589,26 @@ public class AlbumPage {
 			e.printStackTrace();
 		}
 
-		if (bitmapRaw != thumbnail) bitmapRaw.recycle();
+		if (bitmapRaw != thumbnail) BitmapPool.release(bitmapRaw);
 
 		return res;
 	}
 
+	void setSrcSize(int width, int height) {
+		bitmapSize = new Size();
+		bitmapSize.srcWidth = width;
+		bitmapSize.srcHeight = height;
+
+		thumbnailSize = new Size();
+		thumbnailSize.srcWidth = width;
+		thumbnailSize.srcHeight = height;
+	}
+
 	boolean updateSrcSize() {
 		// size already loaded
 		if (bitmapSize != null) return true;
 		
-		if (sAbortLoading) {
-			sAbortLoading = false;
-			return false;
-		}
+		if (isLoadingCancelled()) return false;
 
 		final BitmapFactory.Options options = new BitmapFactory.Options();
 
@@ -351,22 +617,28 @@ public class AlbumPage {
 		
 		try {
 			// get image size
-			BitmapFactory.decodeByteArray(buffer, 0, buffer.length, options);
+			decodeBuffer(options);
 		} catch(Exception e) {
 			Log.e(ComicsParameters.APP_TAG, "Exception while reading size of page " + String.valueOf(mPage) + ": " + e.toString());
 			return false;
 		}
 
-		bitmapSize = new Size();
-		bitmapSize.srcWidth = options.outWidth;
-		bitmapSize.srcHeight = options.outHeight;
-		
-		thumbnailSize = new Size();
-		thumbnailSize.srcWidth = options.outWidth;
-		thumbnailSize.srcHeight = options.outHeight;
+		synchronized(mBitmapSizeMutex) {
+			// size can be read from header in another thread
+			if (bitmapSize == null) setSrcSize(options.outWidth, options.outHeight);
+		}
 
 		return true;
 	}
+
+	/**
+	 * Set size read from image header, unless it's already known
+	 */
+	void updateSrcSize(int width, int height) {
+		synchronized(mBitmapSizeMutex) {
+			if (bitmapSize == null) setSrcSize(width, height);
+		}
+	}
 	
 	void resetSize() {
 		if (bitmapSize == null) return;
@@ -383,44 +655,68 @@ public class AlbumPage {
 		if (mCacheFilename == null && mFilename != null) {
 			mCacheFilename = ComicsHelpers.md5(mFilename);
 
-			mBufferCacheFile = new File(ComicsParameters.sCacheCurrentAlbumDirectory, mCacheFilename);
+			mBufferCacheFile = getCacheFile(mFilename);
 		}
 	}
 
+	static File getCacheFile(String filename) {
+		return new File(ComicsParameters.sCacheCurrentAlbumDirectory, ComicsHelpers.md5(filename));
+	}
+
 	
 	boolean loadBufferFromCache() {
-		if (buffer != null) return true;
+		if (hasData()) return true;
 
 		updateCacheFilename();
 		
 		if (!mBufferCacheFile.exists() || mBufferCacheFile.length() < 10) return false;
 
-		try {
-			buffer = new byte[(int)mBufferCacheFile.length()];
-		} catch (OutOfMemoryError e) {
-			Log.e(ComicsParameters.APP_TAG, "OutOfMemoryError while allocating a buffer of " + String.valueOf(mBufferCacheFile.length()) + " bytes for page " + String.valueOf(mPage));
-			return false;
-		}
+		// decode it from disk instead of loading it in memory
+		file = mBufferCacheFile;
 
-		return ComicsHelpers.loadFileToBuffer(mBufferCacheFile, buffer);
+		return true;
 	}
 	
-	boolean saveBufferToCache() {
-		if (buffer == null) return false;
+	synchronized boolean saveBufferToCache() {
+		if (file != null || streamed) {
+			// nothing to save, it'll be read again from disk or archive
+			file = null;
+			streamed = false;
+			return true;
+		}
+
+		if (directBuffer != null) {
+			// nothing to save, it'll be mapped again from archive
+			if (!DirectBufferPool.isPooled(directBuffer)) {
+				directBuffer = null;
+				return true;
+			}
+		} else if (buffer == null) {
+			return false;
+		}
 		
 		updateCacheFilename();
 
 		boolean res = true;
 
 		if (!mBufferCacheFile.exists()) {
-			res = ComicsHelpers.saveBufferToFile(buffer, mBufferCacheFile);
+			res = buffer != null ? ComicsHelpers.saveBufferToFile(buffer, mBufferCacheFile):ComicsHelpers.saveBufferToFile(directBuffer, mBufferCacheFile);
 		}
 
-		if (res) buffer = null;
+		if (res) {
+			buffer = null;
+			releaseDirectBuffer();
+		}
 
 		return res;
 	}
 
+	private void releaseDirectBuffer() {
+		// give it back to pool to be reused by another page
+		DirectBufferPool.release(directBuffer);
+		directBuffer = null;
+	}
+
 	private void deleteCache() {
 		updateCacheFilename();
 
@@ -24,7 +24,6 @@ import java.lang.ref.WeakReference;
 
 import android.content.Context;
 import android.content.SharedPreferences;
-import android.graphics.Bitmap;
 import android.net.Uri;
 import android.os.Bundle;
 import android.os.Handler;
@@ -47,14 +46,13 @@ public class AlbumThread extends HandlerThread {
 	private boolean mLoadingPage = false;
 	private Handler mMainHandler;
 	private Handler mLoaderHandler;
+	private PageLoader mPageLoader;
 	private WeakReference<AlbumPageCallback> mCallback;
 
 	private static final int TIME_CHECK_INTERVAL = 16; // milliseconds
 	private static final int DELAY_WINDOW_CHANGED = 1000; // ms
 
 	private static final int LOADER_OPEN = 1;
-	private static final int LOADER_UPDATE_PAGE = 2;
-	private static final int LOADER_UPDATE_BUFFERS = 3;
 	private static final int LOADER_LOAD_PREFERENCES = 4;
 	private static final int LOADER_SAVE_CURRENT_ALBUM = 5;
 
@@ -70,9 +68,9 @@ public class AlbumThread extends HandlerThread {
 		int getPageWidth();
 		int getPageHeight();
 
-		void onUpdateNextPage(Bitmap bitmap);
-		void onUpdatePreviousPage(Bitmap bitmap);
-		void onUpdateCurrentPage(Bitmap bitmap);
+		void onUpdateNextPage(PageSpread spread);
+		void onUpdatePreviousPage(PageSpread spread);
+		void onUpdateCurrentPage(PageSpread spread);
 
 		void onPageChanged(int current, int next);
 
@@ -128,20 +126,21 @@ public class AlbumThread extends HandlerThread {
 
 							mCallback.get().onPageChanged(mCurrentPage, mPreviousPage);
 
-							if (album.hasPageBitmap(page)) {
+							// stop decompressing pages user won't see
+							album.cancelLoads(mCurrentPage, getNextPage(), getPreviousPage());
+
+							final PageSpread spread = album.getPageSpread(page);
+
+							if (spread != null) {
 								mWidth = album.getPageWidth(page);
 								mHeight = album.getPageHeight(page);
 
-								final Bitmap bitmap = album.getPageBitmap(page);
-
-								mCallback.get().onUpdateCurrentPage(bitmap);
+								mCallback.get().onUpdateCurrentPage(spread);
 							} else {
 //						AlbumPage.sAbortLoading = true;
 
 								// request page loading
-								msg = mLoaderHandler.obtainMessage(LOADER_UPDATE_PAGE);
-								msg.getData().putInt("page", page);
-								mLoaderHandler.sendMessage(msg);
+								mPageLoader.loadPage(album, page, PageLoader.PRIORITY_CURRENT);
 							}
 						}
 
@@ -150,33 +149,32 @@ public class AlbumThread extends HandlerThread {
 					case VIEWER_UPDATE_PAGE: {
 						Bundle b = msg.getData();
 						int page = b.getInt("page");
-						int count = b.getInt("count", 0);
 						boolean force = b.getBoolean("force", false);
 
 						if (force) {
 							album.updatePagesSizes();
 						}
 
-						final Bitmap bitmap = album.getPageBitmap(page);
+						final PageSpread spread = album.getPageSpread(page);
 
 						// display the right image if already in memory or a blank page
 						if (page == getCurrentPage()) {
-							mCallback.get().onUpdateCurrentPage(bitmap);
+							mCallback.get().onUpdateCurrentPage(spread);
 						} else if (page == getNextPage()) {
-							mCallback.get().onUpdateNextPage(bitmap);
+							mCallback.get().onUpdateNextPage(spread);
 						} else if (page == getPreviousPage()) {
-							mCallback.get().onUpdatePreviousPage(bitmap);
+							mCallback.get().onUpdatePreviousPage(spread);
+						} else if (spread != null) {
+							// page not displayed anymore
+							spread.drop();
 						}
 
 						// if image not yet in memory, load it
-						if (bitmap == null) {
+						if (spread == null) {
 //					AlbumPage.sAbortLoading = true;
 
 							// request page loading
-							msg = mLoaderHandler.obtainMessage(LOADER_UPDATE_PAGE);
-							msg.getData().putInt("page", page);
-							msg.getData().putInt("count", ++count);
-							mLoaderHandler.sendMessage(msg);
+							mPageLoader.loadPage(album, page, getPagePriority(page));
 						}
 
 						return true;
@@ -222,6 +220,9 @@ public class AlbumThread extends HandlerThread {
 		};
 
 		mMainHandler = new Handler(Looper.getMainLooper(), mainCallback);
+
+		// decoded pages are displayed by main handler
+		mPageLoader = new PageLoader(mMainHandler, VIEWER_UPDATE_PAGE);
 		
 		start();
 	}
@@ -242,11 +243,14 @@ public class AlbumThread extends HandlerThread {
 	public boolean exit() {
 		if (mLoaderHandler != null) {
 			mLoaderHandler.removeMessages(LOADER_OPEN);
-			mLoaderHandler.removeMessages(LOADER_UPDATE_PAGE);
 			mLoaderHandler.removeMessages(LOADER_LOAD_PREFERENCES);
 			mLoaderHandler = null;
 		}
 
+		if (album != null) album.cancelLoads(-1, -1, -1);
+
+		mPageLoader.shutdown();
+
 		return true;
 	}
 
@@ -290,6 +294,17 @@ public class AlbumThread extends HandlerThread {
 		return mCurrentPage;
 	}
 
+	/**
+	 * @return Priority of page in loading queues, displayed page first
+	 */
+	private int getPagePriority(int page) {
+		if (page == mCurrentPage) return PageLoader.PRIORITY_CURRENT;
+
+		if (page == getNextPage() || page == getPreviousPage()) return PageLoader.PRIORITY_ADJACENT;
+
+		return PageLoader.PRIORITY_PREFETCH;
+	}
+
 	private int getNextPage() {
 		if (AlbumParameters.rightToLeft) {
 			if (mCurrentPage == 1) return 0;
@@ -473,13 +488,10 @@ public class AlbumThread extends HandlerThread {
 	}
 	
 	void updateBuffers(int current, int next, int previous) {
-		if (!isLoaderReady()) return;
+		if (!isLoaderReady() || album == null) return;
 		
-		Message msg = mLoaderHandler.obtainMessage(LOADER_UPDATE_BUFFERS);
-		msg.getData().putInt("current", current);
-		msg.getData().putInt("next", next);
-		msg.getData().putInt("previous", previous);
-		mLoaderHandler.sendMessage(msg);
+		// done in I/O stage after pages to display
+		mPageLoader.updateBuffers(album, current, next, previous);
 	}
 
 	void loadPreferences(boolean force) {
@@ -550,6 +562,10 @@ public class AlbumThread extends HandlerThread {
 					mLoadingPage = false;
 
 					if (album != null) {
+						// wait for pages being loaded from previous album
+						album.cancelLoads(-1, -1, -1);
+						mPageLoader.clear(album);
+
 						synchronized (mAlbumMutex) {
 							album.close();
 						}
@@ -583,30 +599,6 @@ public class AlbumThread extends HandlerThread {
 				}
 				break;
 			}
-			case LOADER_UPDATE_PAGE: {
-				Bundle b = msg.getData();
-				int page = b.getInt("page");
-
-				if (album.updatePage(page)) {
-					msg = mMainHandler.obtainMessage(VIEWER_UPDATE_PAGE);
-					msg.getData().putInt("page", page);
-					mMainHandler.sendMessage(msg);
-				} else {
-					// TODO: create an error message
-					Log.w(ComicsParameters.APP_TAG, "Unable to update page " + page);
-				}
-				break;
-			}
-			case LOADER_UPDATE_BUFFERS: {
-				Bundle b = msg.getData();
-				int current = b.getInt("current");
-				int next = b.getInt("next");
-				int previous = b.getInt("previous");
-				
-				album.updateBuffers(current, next, previous);
-				
-				break;
-			}
 			case LOADER_LOAD_PREFERENCES: {
 				boolean force = msg.getData().getBoolean("force", false);
 
@@ -0,0 +1,71 @@
+/*
+ * ComicsReader is an Android application to read comics
+ * Copyright (C) 2011-2018 Cedric OCHS
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package net.kervala.comicsreader;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Common access to entries of all albums formats
+ *
+ * Entries are accessed by their index, so sizes can be checked before
+ * reading data.
+ */
+interface ArchiveReader {
+	// entry is not compressed
+	int METHOD_STORED = 0;
+	// entry is compressed with ZIP deflate
+	int METHOD_DEFLATED = 8;
+	// entry is compressed with another algorithm
+	int METHOD_OTHER = -1;
+
+	int size();
+
+	String getName(int index);
+
+	/**
+	 * @return Uncompressed size of entry
+	 */
+	long getSize(int index);
+
+	/**
+	 * @return Size of entry in archive or -1 if unknown
+	 */
+	long getCompressedSize(int index);
+
+	int getMethod(int index);
+
+	/**
+	 * Open a stream on uncompressed data of an entry, caller must close it
+	 */
+	InputStream openStream(int index) throws IOException;
+
+	/**
+	 * Copy uncompressed data of an entry at current position of buffer
+	 *
+	 * @param index Index of entry
+	 * @param buffer Buffer with at least getSize(index) bytes remaining
+	 * @return Number of bytes copied
+	 */
+	int readInto(int index, ByteBuffer buffer) throws IOException;
+
+	void close();
+}
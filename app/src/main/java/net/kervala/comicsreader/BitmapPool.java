@@ -0,0 +1,317 @@
+/*
+ * ComicsReader is an Android application to read comics
+ * Copyright (C) 2011-2018 Cedric OCHS
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package net.kervala.comicsreader;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.os.Build;
+import android.util.Log;
+
+/**
+ * Mutable bitmaps reused from one page to another instead of being recycled
+ *
+ * Since KitKat, a bitmap can be reconfigured to any size fitting in its
+ * allocation, so bitmaps are allocated by buckets of 256 KB. Before, a bitmap
+ * can only be reused for exactly the same size and configuration.
+ */
+class BitmapPool {
+	private static final int BUCKET_SIZE = 256 * 1024;
+
+	// maximum size of unused bitmaps kept in pool, enough for 2 large pages
+	private static final long MAX_FREE_SIZE = Math.min(64 * 1024 * 1024, Runtime.getRuntime().maxMemory() / 4);
+
+	private static final boolean sCanReconfigure = Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT;
+
+	private static final List<Bitmap> sFreeBitmaps = new ArrayList<Bitmap>();
+	private static long sFreeSize = 0;
+
+	// bitmaps drawn by view with the number of spreads using them
+	private static final Map<Bitmap, Integer> sDisplayedBitmaps = new IdentityHashMap<Bitmap, Integer>();
+	// released while displayed, they're put in pool when view drops them
+	private static final List<Bitmap> sPendingBitmaps = new ArrayList<Bitmap>();
+
+	private static int sHits = 0;
+	private static int sMisses = 0;
+
+	/**
+	 * Get a bitmap from pool or allocate a new one, its pixels are cleared
+	 *
+	 * @return A mutable bitmap or null if not enough memory
+	 */
+	static synchronized Bitmap acquire(int width, int height, Bitmap.Config config) {
+		Bitmap bitmap = take(width, height, config);
+
+		if (bitmap != null) {
+			// same content as a new bitmap, transparent pages would be drawn over old pixels
+			bitmap.eraseColor(0);
+			return bitmap;
+		}
+
+		try {
+			bitmap = allocate(width, height, config);
+		} catch (OutOfMemoryError e) {
+			Log.e(ComicsParameters.APP_TAG, "OutOfMemoryError while allocating a bitmap of " + String.valueOf(width) + "x" + String.valueOf(height));
+
+			// free memory used by pool and retry once
+			clear();
+
+			try {
+				bitmap = allocate(width, height, config);
+			} catch (OutOfMemoryError e2) {
+				return null;
+			}
+		}
+
+		return bitmap;
+	}
+
+	/**
+	 * Set options to decode a bitmap into a pooled one
+	 *
+	 * Decoding must be retried without inBitmap if it throws an IllegalArgumentException,
+	 * some formats can't be decoded in an existing bitmap.
+	 *
+	 * @param width Width of image before sampling
+	 * @param height Height of image before sampling
+	 */
+	static synchronized void prepareDecode(BitmapFactory.Options options, int width, int height) {
+		options.inMutable = true;
+		options.inBitmap = null;
+
+		final int sampleSize = Math.max(1, options.inSampleSize);
+
+		// only exact sizes can be reused before KitKat and they're not sampled
+		if (!sCanReconfigure && sampleSize > 1) {
+			++sMisses;
+			return;
+		}
+
+		// decoders round up sampled sizes
+		final int sampledWidth = (width + sampleSize - 1) / sampleSize;
+		final int sampledHeight = (height + sampleSize - 1) / sampleSize;
+
+		options.inBitmap = take(sampledWidth, sampledHeight, options.inPreferredConfig == null ? Bitmap.Config.ARGB_8888:options.inPreferredConfig);
+	}
+
+	/**
+	 * Set options to decode a bitmap resized by decoder into a pooled one
+	 *
+	 * Only possible since KitKat, decoder reconfigures the bitmap to its final size.
+	 *
+	 * @param width Maximum width of decoded bitmap
+	 * @param height Maximum height of decoded bitmap
+	 */
+	static synchronized void prepareScaledDecode(BitmapFactory.Options options, int width, int height) {
+		options.inMutable = true;
+		options.inBitmap = null;
+
+		if (!sCanReconfigure) {
+			++sMisses;
+			return;
+		}
+
+		options.inBitmap = take(width, height, options.inPreferredConfig == null ? Bitmap.Config.ARGB_8888:options.inPreferredConfig);
+	}
+
+	/**
+	 * Resize a bitmap into a pooled one with bilinear filtering
+	 *
+	 * @return Resized bitmap, source itself if size is the same or null if not enough memory
+	 */
+	static Bitmap scale(Bitmap source, int width, int height) {
+		if (source.getWidth() == width && source.getHeight() == height) return source;
+
+		final Bitmap bitmap = acquire(width, height, source.getConfig() == null ? Bitmap.Config.ARGB_8888:source.getConfig());
+
+		if (bitmap == null) return null;
+
+		final Canvas canvas = new Canvas(bitmap);
+		canvas.drawBitmap(source, null, new Rect(0, 0, width, height), new Paint(Paint.FILTER_BITMAP_FLAG));
+
+		return bitmap;
+	}
+
+	/**
+	 * Give a bitmap back to pool, or once view dropped it if it's still displayed
+	 *
+	 * Immutable bitmaps can't be reused, they're recycled.
+	 */
+	static synchronized void release(Bitmap bitmap) {
+		if (bitmap == null || bitmap.isRecycled()) return;
+
+		if (sDisplayedBitmaps.containsKey(bitmap)) {
+			if (!sPendingBitmaps.contains(bitmap)) sPendingBitmaps.add(bitmap);
+			return;
+		}
+
+		if (!bitmap.isMutable()) {
+			bitmap.recycle();
+			return;
+		}
+
+		for(Bitmap free: sFreeBitmaps) {
+			// already released
+			if (free == bitmap) return;
+		}
+
+		sFreeBitmaps.add(bitmap);
+		sFreeSize += getSize(bitmap);
+
+		// recycle oldest bitmaps
+		while(sFreeSize > MAX_FREE_SIZE && !sFreeBitmaps.isEmpty()) {
+			final Bitmap oldest = sFreeBitmaps.remove(0);
+
+			sFreeSize -= getSize(oldest);
+			oldest.recycle();
+		}
+	}
+
+	/**
+	 * @return true if bitmap has been recycled or released, and it shouldn't be displayed
+	 */
+	static synchronized boolean isReleased(Bitmap bitmap) {
+		if (bitmap.isRecycled() || sPendingBitmaps.contains(bitmap)) return true;
+
+		for(Bitmap free: sFreeBitmaps) {
+			if (free == bitmap) return true;
+		}
+
+		return false;
+	}
+
+	/**
+	 * Keep a bitmap out of pool while it's displayed, drop must be called after
+	 *
+	 * @return false if bitmap is already released, it can't be displayed
+	 */
+	static synchronized boolean retain(Bitmap bitmap) {
+		if (isReleased(bitmap)) return false;
+
+		final Integer count = sDisplayedBitmaps.get(bitmap);
+
+		sDisplayedBitmaps.put(bitmap, count == null ? 1:count + 1);
+
+		return true;
+	}
+
+	/**
+	 * Bitmap is not displayed anymore, give it back to pool if it has been released in the meantime
+	 */
+	static synchronized void drop(Bitmap bitmap) {
+		final Integer count = sDisplayedBitmaps.get(bitmap);
+
+		if (count == null) return;
+
+		if (count > 1) {
+			sDisplayedBitmaps.put(bitmap, count - 1);
+			return;
+		}
+
+		sDisplayedBitmaps.remove(bitmap);
+
+		if (sPendingBitmaps.remove(bitmap)) release(bitmap);
+	}
+
+	static synchronized void clear() {
+		for(Bitmap bitmap: sFreeBitmaps) {
+			bitmap.recycle();
+		}
+
+		sFreeBitmaps.clear();
+		sFreeSize = 0;
+	}
+
+	static synchronized String getStats() {
+		return String.valueOf(sHits) + " hits, " + String.valueOf(sMisses) + " misses, " + String.valueOf(sFreeBitmaps.size()) + " free bitmaps using " + String.valueOf(sFreeSize) + " bytes";
+	}
+
+	/**
+	 * Remove the smallest free bitmap able to contain an image from pool
+	 */
+	private static Bitmap take(int width, int height, Bitmap.Config config) {
+		final long size = (long)width * height * getBytesPerPixel(config);
+
+		Bitmap best = null;
+		int bestIndex = -1;
+
+		for(int i = 0; i < sFreeBitmaps.size(); ++i) {
+			final Bitmap bitmap = sFreeBitmaps.get(i);
+
+			if (sCanReconfigure) {
+				// don't waste a large bitmap for a small image, it could be kept
+				if (bitmap.getAllocationByteCount() >= size && bitmap.getAllocationByteCount() <= Math.max(size * 2, BUCKET_SIZE) && (best == null || bitmap.getAllocationByteCount() < best.getAllocationByteCount())) {
+					best = bitmap;
+					bestIndex = i;
+				}
+			} else if (bitmap.getWidth() == width && bitmap.getHeight() == height && bitmap.getConfig() == config) {
+				best = bitmap;
+				bestIndex = i;
+				break;
+			}
+		}
+
+		if (best == null) {
+			++sMisses;
+			return null;
+		}
+
+		sFreeBitmaps.remove(bestIndex);
+		sFreeSize -= getSize(best);
+
+		if (sCanReconfigure) best.reconfigure(width, height, config);
+
+		++sHits;
+
+		return best;
+	}
+
+	private static Bitmap allocate(int width, int height, Bitmap.Config config) {
+		if (!sCanReconfigure) return Bitmap.createBitmap(width, height, config);
+
+		final long rowSize = (long)width * getBytesPerPixel(config);
+		final long size = (rowSize * height + BUCKET_SIZE - 1) / BUCKET_SIZE * BUCKET_SIZE;
+
+		// allocate a whole bucket with more rows then use only needed ones
+		final Bitmap bitmap = Bitmap.createBitmap(width, (int)(size / rowSize), config);
+
+		bitmap.reconfigure(width, height, config);
+
+		return bitmap;
+	}
+
+	private static long getSize(Bitmap bitmap) {
+		return sCanReconfigure ? bitmap.getAllocationByteCount():bitmap.getByteCount();
+	}
+
+	private static int getBytesPerPixel(Bitmap.Config config) {
+		if (config == Bitmap.Config.ARGB_8888) return 4;
+		if (config == Bitmap.Config.ALPHA_8) return 1;
+
+		return 2;
+	}
+}
@@ -0,0 +1,86 @@
+/*
+ * ComicsReader is an Android application to read comics
+ * Copyright (C) 2011-2018 Cedric OCHS
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package net.kervala.comicsreader;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+// read a ByteBuffer without copying it in a byte array first
+class ByteBufferInputStream extends InputStream {
+	private final ByteBuffer mBuffer;
+
+	ByteBufferInputStream(ByteBuffer buffer) {
+		// use our own position and mark
+		mBuffer = buffer.duplicate();
+		mBuffer.rewind();
+		mBuffer.mark();
+	}
+
+	@Override
+	public int available() {
+		return mBuffer.remaining();
+	}
+
+	@Override
+	public int read() {
+		if (!mBuffer.hasRemaining()) return -1;
+
+		return mBuffer.get() & 0xff;
+	}
+
+	@Override
+	public int read(byte [] buffer, int offset, int length) {
+		if (length == 0) return 0;
+
+		if (!mBuffer.hasRemaining()) return -1;
+
+		length = Math.min(length, mBuffer.remaining());
+
+		mBuffer.get(buffer, offset, length);
+
+		return length;
+	}
+
+	@Override
+	public long skip(long n) {
+		if (n <= 0) return 0;
+
+		final int skipped = (int)Math.min(n, mBuffer.remaining());
+
+		mBuffer.position(mBuffer.position() + skipped);
+
+		return skipped;
+	}
+
+	@Override
+	public boolean markSupported() {
+		return true;
+	}
+
+	@Override
+	public synchronized void mark(int readLimit) {
+		mBuffer.mark();
+	}
+
+	@Override
+	public synchronized void reset() {
+		mBuffer.reset();
+	}
+}
@@ -0,0 +1,319 @@
+/*
+ * ComicsReader is an Android application to read comics
+ * Copyright (C) 2011-2018 Cedric OCHS
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package net.kervala.comicsreader;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.List;
+
+import android.util.Log;
+
+public class Cb7Album extends Album {
+	private SevenZipFile m7z;
+
+	// page of each entry or -1 if entry is not a page
+	private int [] mEntriesPages;
+
+	// only one solid block is decompressed at a time
+	private final Object mFolderLock = new Object();
+
+	private static final int COPY_BUFFER_SIZE = 65536;
+
+	static final String cb7MimeType = "application/x-cb7";
+	static final String cb7Extension = "cb7";
+
+	public String getExtension() {
+		return cb7Extension;
+	}
+
+	public String getMimeType() {
+		return cb7MimeType;
+	}
+
+	public static boolean isValid(String filename) {
+		return AlbumFormat.detect(filename) == AlbumFormat.TYPE_CB7;
+	}
+
+	public static boolean askConfirm(String filename) {
+		return false;
+	}
+
+	static String getTitle(String filename) {
+		String title = filename;
+
+		int posExt = title.lastIndexOf(".");
+		if (posExt > -1) title = title.substring(0, posExt);
+
+		int posPath = title.lastIndexOf("/");
+		if (posPath > -1) title = title.substring(posPath + 1);
+
+		return title;
+	}
+
+	public static String getMimeType(String filename) {
+		return cb7MimeType;
+	}
+
+	private boolean open7z() {
+		try {
+			// open 7z file
+			m7z = new SevenZipFile(filename);
+		} catch (IOException e) {
+			e.printStackTrace();
+			return false;
+		} catch (OutOfMemoryError e) {
+			Log.e(ComicsParameters.APP_TAG, "OutOfMemoryError while reading headers of " + filename);
+			return false;
+		}
+
+		return true;
+	}
+
+	boolean loadFiles() {
+		if (!open7z()) return false;
+
+		List<String> files = m7z.entries();
+
+		for(String filename: files) {
+			if (isValidImage(filename)) {
+				mFiles.add(filename);
+			}
+		}
+
+		if (mFiles.isEmpty()) return false;
+
+		// generate a title from filename
+		int first = filename.lastIndexOf("/");
+
+		if (first != -1) {
+			title = filename.substring(first+1, filename.length());
+		} else {
+			title = filename;
+		}
+
+		int last = title.lastIndexOf(".");
+
+		if (last != -1) {
+			title = title.substring(0, last);
+		}
+
+		return true;
+	}
+
+	boolean loadFiles(AlbumIndex index) {
+		// headers are needed to locate solid blocks
+		if (!open7z()) return false;
+
+		// index must describe the same entries as archive
+		for(int page = 0; page < index.entries.length; ++page) {
+			final int entry = index.entries[page];
+
+			if (entry < 0 || entry >= m7z.size() || !m7z.getName(entry).equals(index.names[page])) {
+				Log.w(ComicsParameters.APP_TAG, "Entry of page " + String.valueOf(page) + " in index doesn't match " + filename);
+
+				m7z.close();
+				m7z = null;
+
+				return false;
+			}
+		}
+
+		mPagesEntries = index.entries;
+
+		return true;
+	}
+
+	boolean fillIndex(AlbumIndex index) {
+		System.arraycopy(mPagesEntries, 0, index.entries, 0, mPagesEntries.length);
+
+		for(int page = 0; page < mPagesEntries.length; ++page) {
+			final int entry = mPagesEntries[page];
+
+			index.sizes[page] = m7z.getSize(entry);
+			index.packedSizes[page] = m7z.getCompressedSize(entry);
+			index.methods[page] = m7z.getMethod(entry);
+		}
+
+		return true;
+	}
+
+	public void close() {
+		super.close();
+
+		if (m7z != null)
+			m7z.close();
+	}
+
+	ArchiveReader getReader() {
+		return m7z;
+	}
+
+	@Override
+	boolean canStreamPage(int page) {
+		// a page in a solid block would need to decompress previous ones each time
+		return !m7z.isSolid(mPagesEntries[page]);
+	}
+
+	protected byte [] getBytes(int page) {
+		// decompress the whole solid block once instead of once per page
+		if (isFull() && m7z.isSolid(mPagesEntries[page])) {
+			if (extractPageToFile(page, AlbumPage.getCacheFile(mFiles.get(page)))) {
+				final byte [] buffer = loadPageFromCache(page);
+
+				if (buffer != null) return buffer;
+			}
+
+			final LoadToken token = LoadToken.current();
+
+			if (token != null && token.isCancelled()) return null;
+		}
+
+		return super.getBytes(page);
+	}
+
+	@Override
+	void cachePages(int from, int to) {
+		final int step = to < from ? -1:1;
+		final LoadToken parent = LoadToken.current();
+
+		for(int page = from; page != to + step && !isLoadingAborted(parent); page += step) {
+			final File file = AlbumPage.getCacheFile(mFiles.get(page));
+
+			if (file.exists()) continue;
+
+			final LoadToken token = beginLoad(page);
+
+			final boolean saved;
+
+			try {
+				// other pages of the block are saved too
+				saved = extractPageToFile(page, file);
+			} finally {
+				endLoad(token);
+			}
+
+			if (!saved) break;
+		}
+	}
+
+	/**
+	 * Decompress the solid block containing a page and save all its pages in cache
+	 */
+	@Override
+	boolean extractPageToFile(int page, File file) {
+		synchronized(mFolderLock) {
+			// saved while decompressing another page of the same block
+			if (file.exists()) return true;
+
+			final int folder = m7z.getFolder(mPagesEntries[page]);
+			final int [] entriesPages = getEntriesPages();
+			final LoadToken token = LoadToken.current();
+
+			InputStream input = null;
+
+			int saved = 0;
+
+			try {
+				input = m7z.openFolder(folder);
+
+				for(int entry: m7z.getFolderEntries(folder)) {
+					if ((token != null && token.isCancelled()) || AlbumPage.sAbortLoading) break;
+
+					final long size = m7z.getSize(entry);
+					final File entryFile = entriesPages[entry] < 0 ? null:AlbumPage.getCacheFile(mFiles.get(entriesPages[entry]));
+
+					// entries must be decompressed even if they are not needed
+					if (entryFile == null || entryFile.exists()) {
+						SevenZipFile.skipFully(input, size);
+					} else if (saveToFile(input, size, entryFile)) {
+						++saved;
+					} else {
+						break;
+					}
+				}
+			} catch (IOException e) {
+				Log.e(ComicsParameters.APP_TAG, "Unable to decompress block " + String.valueOf(folder) + " of " + filename + ": " + e.toString());
+			} catch (OutOfMemoryError e) {
+				Log.e(ComicsParameters.APP_TAG, "OutOfMemoryError while decompressing block " + String.valueOf(folder) + " of " + filename);
+			} finally {
+				try {
+					if (input != null) input.close();
+				} catch (IOException e) {
+				}
+			}
+
+			Log.d(ComicsParameters.APP_TAG, "Saved " + String.valueOf(saved) + " pages of block " + String.valueOf(folder) + " in cache");
+
+			return file.exists();
+		}
+	}
+
+	private int [] getEntriesPages() {
+		if (mEntriesPages == null) {
+			mEntriesPages = new int[m7z.size()];
+
+			Arrays.fill(mEntriesPages, -1);
+
+			for(int page = 0; page < mPagesEntries.length; ++page) {
+				mEntriesPages[mPagesEntries[page]] = page;
+			}
+		}
+
+		return mEntriesPages;
+	}
+
+	private static boolean saveToFile(InputStream input, long size, File file) throws IOException {
+		final File tmpFile = new File(file.getAbsolutePath() + ".tmp");
+		final byte [] buffer = new byte[COPY_BUFFER_SIZE];
+
+		boolean res = false;
+
+		final FileOutputStream output = new FileOutputStream(tmpFile);
+
+		try {
+			while(size > 0) {
+				final int count = input.read(buffer, 0, (int)Math.min(buffer.length, size));
+
+				if (count < 0) throw new IOException("Unexpected end of block");
+
+				output.write(buffer, 0, count);
+				size -= count;
+			}
+
+			res = true;
+		} finally {
+			output.close();
+
+			// rename only when complete, so a page is never read partially
+			if (!res || !tmpFile.renameTo(file)) {
+				res = false;
+
+				if (tmpFile.exists() && !tmpFile.delete()) {
+					Log.w(ComicsParameters.APP_TAG, "Unable to delete file " + tmpFile.getAbsolutePath());
+				}
+			}
+		}
+
+		return res;
+	}
+}
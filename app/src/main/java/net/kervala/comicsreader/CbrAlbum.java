@@ -19,15 +19,24 @@
 
 package net.kervala.comicsreader;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.util.List;
 
+import android.util.Log;
+
 public class CbrAlbum extends Album {
 	private RarFile mRar;
 
+	// on big.LITTLE devices, slowest cores would make all unpack threads wait
+	private static final int MAX_UNPACK_THREADS = 4;
+
+	// enough for the size of most pages, decompression of page is stopped after
+	private static final int MAX_HEADER_SIZE = 64 * 1024;
+
 	static final String cbrMimeType = "application/x-cbr";
 	static final String cbrExtension = "cbr";
 	
@@ -40,29 +49,7 @@ public class CbrAlbum extends Album {
 	}
 	
 	public static boolean isValid(String filename) {
-		if (!RarFile.isLoaded()) return false;
-
-		File file = new File(filename);
-
-		boolean valid = false;
-
-		if (file.isFile() && file.canRead()) {
-			try {
-				FileInputStream ifs = new FileInputStream(file);
-
-				byte [] buffer = new byte[4];
-					
-				if (ifs.read(buffer, 0, 4) == 4 && buffer[0] == 'R' && buffer[1] == 'a' && buffer[2] == 'r' && buffer[3] == '!') {
-					valid = true;
-				}
-
-				ifs.close();
-			} catch (FileNotFoundException e) {
-			} catch (IOException e) {
-			}
-		}
-
-		return valid;
+		return AlbumFormat.detect(filename) == AlbumFormat.TYPE_CBR;
 	}
 
 	public static boolean askConfirm(String filename) {
@@ -85,12 +72,16 @@ public class CbrAlbum extends Album {
 		return cbrMimeType;
 	}
 
+	private static int getUnpackThreads() {
+		return Math.max(1, Math.min(MAX_UNPACK_THREADS, Runtime.getRuntime().availableProcessors()));
+	}
+
 	boolean loadFiles() {
 		if (!RarFile.isLoaded()) return false;
 
 		try {
 			// open RAR file
-			mRar = new RarFile(filename);
+			mRar = new RarFile(filename, getUnpackThreads());
 		} catch (IOException e) {
 			return false;
 		}
@@ -123,14 +114,150 @@ public class CbrAlbum extends Album {
 		return true;
 	}
 
+	boolean loadFiles(AlbumIndex index) {
+		if (!RarFile.isLoaded()) return false;
+
+		try {
+			// native open still reads all headers, index only avoids listing and sorting entries
+			mRar = new RarFile(filename, getUnpackThreads());
+		} catch (IOException e) {
+			return false;
+		}
+
+		// index must describe the same entries as archive, names aren't compared because headers positions are enough
+		for(int page = 0; page < index.entries.length; ++page) {
+			final long position = mRar.getPosition(index.entries[page]);
+
+			if (position < 0 || position != index.offsets[page]) {
+				Log.w(ComicsParameters.APP_TAG, "Entry of page " + String.valueOf(page) + " in index doesn't match " + filename);
+
+				mRar.close();
+				mRar = null;
+
+				return false;
+			}
+		}
+
+		mPagesEntries = index.entries;
+
+		return true;
+	}
+
+	boolean fillIndex(AlbumIndex index) {
+		System.arraycopy(mPagesEntries, 0, index.entries, 0, mPagesEntries.length);
+
+		for(int page = 0; page < mPagesEntries.length; ++page) {
+			final int entry = mPagesEntries[page];
+
+			index.offsets[page] = mRar.getPosition(entry);
+			index.sizes[page] = mRar.getSize(entry);
+			index.packedSizes[page] = mRar.getCompressedSize(entry);
+			index.methods[page] = ArchiveReader.METHOD_OTHER;
+		}
+
+		return true;
+	}
+
+	/**
+	 * @return true if at least one page depends on previous entries of archive
+	 */
+	private boolean hasSolidPages() {
+		for(int entry: mPagesEntries) {
+			if (mRar.isSolid(entry)) return true;
+		}
+
+		return false;
+	}
+
+	@Override
+	void extractPages() {
+		// in solid archives, extracting pages separately decompresses the same data again and again
+		if (mRar.isSolid() && hasSolidPages()) {
+			long size = 0;
+
+			for(int entry: mPagesEntries) {
+				size += Math.max(0, mRar.getSize(entry));
+			}
+
+			Log.d(ComicsParameters.APP_TAG, "Extracting all pages of solid archive " + filename + " (" + String.valueOf(size / 1024) + " KiB)");
+
+			startExtractThread();
+		}
+	}
+
+	@Override
+	long getPagePosition(int page) {
+		return mRar.getPosition(mPagesEntries[page]);
+	}
+
+	@Override
+	boolean extractPageToFile(int page, File file) {
+		// native code writes page directly in cache
+		return mRar.extractToFile(mPagesEntries[page], file);
+	}
+
 	public void close() {
 		super.close();
 
 		if (mRar != null)
 			mRar.close();
 	}
-	protected byte [] getBytes(int page) {
-		// get a buffer on a page
-		return mRar.getBytes(mFiles.get(page));
+
+	@Override
+	void cachePages(int from, int to) {
+		// all pages of solid archives are already extracted in background
+		if (isExtractingPages()) return;
+
+		final int step = to < from ? -1:1;
+		final LoadToken parent = LoadToken.current();
+
+		for(int page = from; page != to + step && !isLoadingAborted(parent); page += step) {
+			final File file = AlbumPage.getCacheFile(mFiles.get(page));
+
+			if (file.exists()) continue;
+
+			final LoadToken token = beginLoad(page);
+
+			boolean saved;
+
+			try {
+				// native code writes page directly in cache
+				saved = mRar.extractToFile(mPagesEntries[page], file);
+			} finally {
+				endLoad(token);
+			}
+
+			if (!saved) break;
+
+			Log.d(ComicsParameters.APP_TAG, "Saved page " + String.valueOf(page) + " in cache");
+		}
+	}
+
+	ArchiveReader getReader() {
+		return mRar;
+	}
+
+	@Override
+	boolean canReadPageHeader(int page) {
+		// in solid archives, previous entries would be decompressed too
+		return !mRar.isSolid();
+	}
+
+	@Override
+	InputStream openPageHeader(int page) throws IOException {
+		final byte [] header = new byte[MAX_HEADER_SIZE];
+		final int size = mRar.getHeader(mPagesEntries[page], header);
+
+		if (size < 0) throw new IOException("Unable to read header of entry " + String.valueOf(mPagesEntries[page]) + " from " + filename);
+
+		return new ByteArrayInputStream(header, 0, size);
+	}
+
+	protected ByteBuffer getDirectBytes(int page) {
+		// pages of solid archives are read from cache
+		if (isExtractingPages()) return null;
+
+		// decompress page directly in native memory
+		return mRar.getByteBuffer(mPagesEntries[page]);
 	}
 }
@@ -19,17 +19,16 @@
 
 package net.kervala.comicsreader;
 
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.util.List;
+import java.util.Locale;
 
 public class CbtAlbum extends Album {
 	private TarFile mTar;
 
 	static final String cbtMimeType = "application/x-cbt";
 	static final String cbtExtension = "cbt";
+	static final String gzipExtension = ".gz";
 	
 	public String getExtension() {
 		return cbtExtension;
@@ -40,31 +39,7 @@ public class CbtAlbum extends Album {
 	}
 
 	public static boolean isValid(String filename) {
-		File file = new File(filename);
-
-		boolean valid = false;
-
-		if (file.isFile() && file.canRead() && (file.length() % 512 == 0)) {
-			try {
-				FileInputStream ifs = new FileInputStream(file);
-
-				if (ifs.skip(99) == 99) {
-					byte [] buffer = new byte[1];
-					
-					if (ifs.read(buffer, 0, 1) == 1) {
-						if (buffer[0] == 0) {
-							valid = true;
-						}
-					}
-				}
-
-				ifs.close();
-			} catch (FileNotFoundException e) {
-			} catch (IOException e) {
-			}
-		}
-
-		return valid;
+		return AlbumFormat.detect(filename) == AlbumFormat.TYPE_CBT;
 	}
 
 	public static boolean askConfirm(String filename) {
@@ -72,7 +47,7 @@ public class CbtAlbum extends Album {
 	}
 	
 	static String getTitle(String filename) {
-		String title = filename;
+		String title = removeGzipExtension(filename);
 
 		int posExt = title.lastIndexOf(".");
 		if (posExt > -1) title = title.substring(0, posExt);
@@ -86,11 +61,18 @@ public class CbtAlbum extends Album {
 	public static String getMimeType(String filename) {
 		return cbtMimeType;
 	}
+
+	private static String removeGzipExtension(String filename) {
+		// album.cbt.gz
+		if (filename.toLowerCase(Locale.US).endsWith(gzipExtension)) return filename.substring(0, filename.length() - gzipExtension.length());
+
+		return filename;
+	}
 	
 	boolean loadFiles() {
 		try {
-			// open RAR file
-			mTar = new TarFile(filename);
+			// open TAR file
+			mTar = GzipTarFile.isGzip(filename) ? new GzipTarFile(filename):new TarFile(filename);
 		} catch (IOException e) {
 			return false;
 		}
@@ -114,6 +96,8 @@ public class CbtAlbum extends Album {
 			title = filename;
 		}
 
+		title = removeGzipExtension(title);
+
 		int last = title.lastIndexOf(".");
 			
 		if (last != -1) {
@@ -123,6 +107,46 @@ public class CbtAlbum extends Album {
 		return true;
 	}
 
+	boolean loadFiles(AlbumIndex index) {
+		try {
+			// no need to read all headers
+			if (index.checkpoints.length > 0) {
+				mTar = new GzipTarFile(filename, index.names, index.offsets, index.sizes, index.checkpoints);
+			} else {
+				mTar = new TarFile(filename, index.names, index.offsets, index.sizes);
+			}
+		} catch (IOException e) {
+			return false;
+		}
+
+		// entries are in pages order
+		initPagesEntries();
+
+		return true;
+	}
+
+	boolean fillIndex(AlbumIndex index) {
+		for(int i = 0; i < index.size(); ++i) {
+			index.offsets[i] = mTar.getOffset(mPagesEntries[i]);
+			index.sizes[i] = mTar.getSize(mPagesEntries[i]);
+		}
+
+		if (mTar instanceof GzipTarFile) index.checkpoints = ((GzipTarFile)mTar).getCheckpoints();
+
+		return true;
+	}
+
+	@Override
+	void extractPages() {
+		// pages of a gzip stream can only be inflated sequentially
+		if (mTar instanceof GzipTarFile) startExtractThread();
+	}
+
+	@Override
+	long getPagePosition(int page) {
+		return mTar.getOffset(mPagesEntries[page]);
+	}
+
 	public void close() {
 		super.close();
 
@@ -130,8 +154,13 @@ public class CbtAlbum extends Album {
 			mTar.close();
 	}
 
-	protected byte [] getBytes(int page) {
-		// get a buffer on a page
-		return mTar.getBytes(mFiles.get(page));
+	ArchiveReader getReader() {
+		return mTar;
+	}
+
+	@Override
+	boolean canStreamPage(int page) {
+		// entries of an uncompressed TAR are read in place
+		return !(mTar instanceof GzipTarFile);
 	}
 }
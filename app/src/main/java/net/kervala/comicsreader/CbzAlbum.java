@@ -21,15 +21,13 @@ package net.kervala.comicsreader;
 
 import android.util.Log;
 
-import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.util.Enumeration;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
 
 class CbzAlbum extends Album {
-	private ZipFile mZip;
+	private ZipArchive mZip;
 
 	private static final String cbzMimeType = "application/x-cbz";
 	private static final String cbzExtension = "cbz";
@@ -43,27 +41,7 @@ class CbzAlbum extends Album {
 	}
 	
 	static boolean isValid(String filename) {
-		File file = new File(filename);
-
-		boolean valid = false;
-
-		if (file.isFile() && file.canRead()) {
-			try {
-				FileInputStream ifs = new FileInputStream(file);
-
-				byte [] buffer = new byte[2];
-
-				if (ifs.read(buffer, 0, 2) == 2 && buffer[0] == 'P' && buffer[1] == 'K') {
-					valid = true;
-				}
-
-				ifs.close();
-			} catch (IOException e) {
-				Log.w(ComicsParameters.APP_TAG, "Unable to read ZIP file: " + filename + " Exception: " + e.toString());
-			}
-		}
-
-		return valid;
+		return AlbumFormat.detect(filename) == AlbumFormat.TYPE_CBZ;
 	}
 	
 	public static boolean askConfirm(String filename) {
@@ -89,22 +67,24 @@ class CbzAlbum extends Album {
 	boolean loadFiles() {
 		try {
 			// open ZIP file
-			mZip = new ZipFile(filename);
+			mZip = new ZipArchive(filename);
 		} catch (IOException e) {
 			e.printStackTrace();
 			return false;
 		} catch (Exception e) {
 			e.printStackTrace();
 			return false;
+		} catch (OutOfMemoryError e) {
+			Log.e(ComicsParameters.APP_TAG, "OutOfMemoryError while reading central directory of " + filename);
+			return false;
 		}
 
-		Enumeration<? extends ZipEntry> zippedFiles = mZip.entries();
+		final int count = mZip.size();
 
 		// add all pages
-		while (zippedFiles.hasMoreElements()) {
-			ZipEntry entry = zippedFiles.nextElement();
-			if (!entry.isDirectory()) {
-				String filename = entry.getName();
+		for(int i = 0; i < count; ++i) {
+			if (!mZip.isDirectory(i)) {
+				String filename = mZip.getName(i);
 				if (Album.isValidImage(filename)) {
 					mFiles.add(filename);
 				}
@@ -134,33 +114,92 @@ class CbzAlbum extends Album {
 		return true;
 	}
 
-	public void close() {
-		super.close();
-
+	boolean loadFiles(AlbumIndex index) {
 		try {
-			if (mZip != null) {
-				mZip.close();
-				mZip = null;
-			}
+			// no need to read central directory
+			mZip = new ZipArchive(filename, index.names, index.offsets, index.packedSizes, index.sizes, index.methods);
 		} catch (IOException e) {
 			e.printStackTrace();
+			return false;
 		}
+
+		// entries are in pages order
+		initPagesEntries();
+
+		return true;
 	}
-	
-	protected byte [] getBytes(int page) {
-		byte [] buffer = null;
 
-		ZipEntry entry = mZip.getEntry(mFiles.get(page));
-		
-		if (entry != null) {
-			try {
-				buffer = ComicsHelpers.inputStreamToBytes(mZip.getInputStream(entry), (int)entry.getSize());
-			} catch (IOException e) {
-				buffer = null;
-				e.printStackTrace();
+	boolean fillIndex(AlbumIndex index) {
+		for(int i = 0; i < mPagesEntries.length; ++i) {
+			final int entry = mPagesEntries[i];
+
+			index.offsets[i] = mZip.getHeaderOffset(entry);
+			index.sizes[i] = mZip.getSize(entry);
+			index.packedSizes[i] = mZip.getCompressedSize(entry);
+			index.methods[i] = mZip.getMethod(entry);
+		}
+
+		return true;
+	}
+
+	public void close() {
+		super.close();
+
+		if (mZip != null) {
+			mZip.close();
+			mZip = null;
+		}
+	}
+
+	ArchiveReader getReader() {
+		return mZip;
+	}
+
+	@Override
+	boolean canReadPageHeader(int page) {
+		// entries are compressed separately
+		return true;
+	}
+
+	void prefetchBuffers(int start, int end) {
+		final List<Integer> pages = new ArrayList<Integer>();
+
+		// STORED pages are mapped, it's fast enough
+		for(int page = start; page <= end; ++page) {
+			if (mZip.getMethod(mPagesEntries[page]) == ZipArchive.METHOD_DEFLATED && !isBufferLoaded(page)) {
+				pages.add(page);
+			}
+		}
+
+		if (pages.size() < 2) return;
+
+		final int [] entries = new int[pages.size()];
+
+		for(int i = 0; i < entries.length; ++i) {
+			entries[i] = mPagesEntries[pages.get(i)];
+		}
+
+		final long time = System.currentTimeMillis();
+
+		InflatePool.inflate(mZip, entries, new InflatePool.Callback() {
+			@Override
+			public void onInflated(int position, byte [] data) {
+				// updateBuffer will try again with next page
+				if (data != null) setBuffer(pages.get(position), data);
 			}
+		});
+
+		Log.d(ComicsParameters.APP_TAG, "Decompressed " + String.valueOf(entries.length) + " pages in " + String.valueOf(System.currentTimeMillis() - time) + " ms");
+	}
+
+	protected ByteBuffer getDirectBytes(int page) {
+		try {
+			// only STORED entries can be mapped
+			return mZip.map(mPagesEntries[page]);
+		} catch (IOException e) {
+			e.printStackTrace();
 		}
 
-		return buffer;
+		return null;
 	}
 }
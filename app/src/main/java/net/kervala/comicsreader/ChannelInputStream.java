@@ -0,0 +1,76 @@
+/*
+ * ComicsReader is an Android application to read comics
+ * Copyright (C) 2011-2018 Cedric OCHS
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package net.kervala.comicsreader;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+// read a part of a file without changing channel position
+class ChannelInputStream extends InputStream {
+	private final FileChannel mChannel;
+	private long mPosition;
+	private long mRemaining;
+
+	ChannelInputStream(FileChannel channel, long position, long length) {
+		mChannel = channel;
+		mPosition = position;
+		mRemaining = length;
+	}
+
+	@Override
+	public int available() {
+		return (int)Math.min(mRemaining, Integer.MAX_VALUE);
+	}
+
+	@Override
+	public int read() throws IOException {
+		final byte [] b = new byte[1];
+
+		return read(b, 0, 1) == 1 ? b[0] & 0xff:-1;
+	}
+
+	@Override
+	public int read(byte [] buffer, int offset, int length) throws IOException {
+		if (mRemaining <= 0) return -1;
+
+		length = (int)Math.min(length, mRemaining);
+
+		final int read = mChannel.read(ByteBuffer.wrap(buffer, offset, length), mPosition);
+
+		if (read > 0) {
+			mPosition += read;
+			mRemaining -= read;
+		}
+
+		return read;
+	}
+
+	@Override
+	public long skip(long n) {
+		n = Math.max(0, Math.min(n, mRemaining));
+
+		mPosition += n;
+		mRemaining -= n;
+
+		return n;
+	}
+}
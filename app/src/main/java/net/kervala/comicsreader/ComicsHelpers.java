@@ -29,6 +29,7 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.nio.ByteBuffer;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 
@@ -260,6 +261,34 @@ class ComicsHelpers {
 		return res;
 	}
 
+	static boolean saveBufferToFile(ByteBuffer buffer, File file) {
+		boolean res = false;
+		
+		FileOutputStream output = null;
+		try {
+			output = new FileOutputStream(file);
+
+			// use a copy to not change position of original buffer
+			final ByteBuffer data = buffer.duplicate();
+			data.rewind();
+
+			while(data.hasRemaining()) {
+				output.getChannel().write(data);
+			}
+
+			res = true;
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+
+		try {
+			if (output != null) output.close();
+		} catch (IOException e) {
+		}
+		
+		return res;
+	}
+
 	static byte [] inputStreamToBytes(InputStream input, int size) {
 		byte [] buffer = null;
 
@@ -61,6 +61,7 @@ public class ComicsParameters {
 	static File sCacheCurrentAlbumDirectory;
 	static File sCoversDirectory;
 	static File sPagesDirectory;
+	static File sIndicesDirectory;
 
 	static int sScreenDensity = 0;
 	static int sBitmapDensity = 0;
@@ -301,6 +302,13 @@ public class ComicsParameters {
 			Log.e(APP_TAG, "Unable to create " + sPagesDirectory + "directory");
 		}
 
+		sIndicesDirectory = new File(sCacheDirectory, "indices");
+
+		// create albums indices directory
+		if (!sIndicesDirectory.exists() && !sIndicesDirectory.mkdirs()) {
+			Log.e(APP_TAG, "Unable to create " + sIndicesDirectory + "directory");
+		}
+
 		return true;
 	}
 
@@ -335,6 +343,18 @@ public class ComicsParameters {
 	static void clearThumbnailsCache() {
 		clearAllCoversCache();
 		clearAllPagesCache();
+		clearAllIndicesCache();
+	}
+
+	private static void clearAllIndicesCache() {
+		final File[] files = ComicsParameters.sIndicesDirectory.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				if (!file.delete()) {
+					Log.e(APP_TAG, "Unable to delete " + file.getAbsolutePath());
+				}
+			}
+		}
 	}
 
 	private static void clearAllCoversCache() {
@@ -0,0 +1,128 @@
+/*
+ * ComicsReader is an Android application to read comics
+ * Copyright (C) 2011-2018 Cedric OCHS
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package net.kervala.comicsreader;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+import android.util.Log;
+
+/**
+ * Direct buffers filled by native code and reused from one page to another
+ */
+class DirectBufferPool {
+	// buffers are allocated by blocks of 64 KB to be reused by pages of similar sizes
+	private static final int BLOCK_SIZE = 65536;
+
+	// maximum size of unused buffers kept in pool
+	private static final int MAX_FREE_SIZE = 16 * 1024 * 1024;
+
+	private static final List<ByteBuffer> sFreeBuffers = new ArrayList<ByteBuffer>();
+	private static final Set<ByteBuffer> sBuffers = Collections.newSetFromMap(new IdentityHashMap<ByteBuffer, Boolean>());
+	private static int sFreeSize = 0;
+
+	/**
+	 * Get a buffer from pool or allocate a new one
+	 *
+	 * @param size Minimum capacity of buffer
+	 * @return A buffer with its limit set to size or null if not enough memory
+	 */
+	static synchronized ByteBuffer acquire(int size) {
+		ByteBuffer best = null;
+		int bestIndex = -1;
+
+		// look for the smallest free buffer large enough
+		for(int i = 0; i < sFreeBuffers.size(); ++i) {
+			final ByteBuffer buffer = sFreeBuffers.get(i);
+
+			if (buffer.capacity() >= size && (best == null || buffer.capacity() < best.capacity())) {
+				best = buffer;
+				bestIndex = i;
+			}
+		}
+
+		if (best != null) {
+			// ByteBuffer.equals compares contents, so always use indices
+			sFreeBuffers.remove(bestIndex);
+			sFreeSize -= best.capacity();
+		} else {
+			final int capacity = (int)Math.min(Integer.MAX_VALUE, ((long)size + BLOCK_SIZE - 1) / BLOCK_SIZE * BLOCK_SIZE);
+
+			try {
+				best = ByteBuffer.allocateDirect(capacity);
+			} catch (OutOfMemoryError e) {
+				Log.e(ComicsParameters.APP_TAG, "OutOfMemoryError while allocating a direct buffer of " + String.valueOf(capacity) + " bytes");
+
+				// free memory used by pool and retry later
+				clear();
+				return null;
+			}
+
+			sBuffers.add(best);
+		}
+
+		best.clear();
+		best.limit(size);
+
+		return best;
+	}
+
+	/**
+	 * Give a buffer back to pool, other buffers are ignored
+	 *
+	 * @param buffer Buffer returned by acquire
+	 */
+	static synchronized void release(ByteBuffer buffer) {
+		if (buffer == null || !sBuffers.contains(buffer)) return;
+
+		for(ByteBuffer free: sFreeBuffers) {
+			// already released
+			if (free == buffer) return;
+		}
+
+		sFreeBuffers.add(buffer);
+		sFreeSize += buffer.capacity();
+
+		// forget oldest buffers, they'll be garbage collected
+		while(sFreeSize > MAX_FREE_SIZE && !sFreeBuffers.isEmpty()) {
+			final ByteBuffer oldest = sFreeBuffers.remove(0);
+
+			sFreeSize -= oldest.capacity();
+			sBuffers.remove(oldest);
+		}
+	}
+
+	static synchronized boolean isPooled(ByteBuffer buffer) {
+		return buffer != null && sBuffers.contains(buffer);
+	}
+
+	static synchronized void clear() {
+		for(ByteBuffer buffer: sFreeBuffers) {
+			sBuffers.remove(buffer);
+		}
+
+		sFreeBuffers.clear();
+		sFreeSize = 0;
+	}
+}
@@ -25,6 +25,7 @@ import java.util.Arrays;
 
 public class FolderAlbum extends Album {
 	private File mFolder;
+	private FolderReader mReader;
 
 	static final String folderMimeType = "";
 	static final String jpegMimeType = "image/jpeg";
@@ -58,25 +59,17 @@ public class FolderAlbum extends Album {
 			// build a full absolute path
 			filename = f.getAbsolutePath();  
 
-			return CbzAlbum.isValid(filename) || CbrAlbum.isValid(filename) || CbtAlbum.isValid(filename) || f.isDirectory();
+			if (f.isDirectory()) return true;
+
+			final int type = AlbumFormat.detect(filename);
+
+			return type == AlbumFormat.TYPE_CBZ || type == AlbumFormat.TYPE_CBR || type == AlbumFormat.TYPE_CBT || type == AlbumFormat.TYPE_CB7;
 		}
 	}
 	
 	public static boolean isValid(String filename) {
-		// if filename is an image, that's ok
-		if (isValidImage(filename)) return true;
-		
-		// if filename is a directory, check if it contains any images
-		File dir = new File(filename);
-		
-		if (dir.isDirectory()) {
-			String [] filesOk = dir.list(new ImageFilter());
-			
-			// if at least one file is an image, that's ok
-			if (filesOk != null && filesOk.length > 0) return true;
-		}
-		
-		return false;
+		// an image or a directory containing at least one image
+		return AlbumFormat.detect(filename) == AlbumFormat.TYPE_FOLDER;
 	}
 	
 	public static boolean askConfirm(String filename) {
@@ -143,6 +136,8 @@ public class FolderAlbum extends Album {
 
 		if (mFiles.isEmpty()) return false;
 
+		mReader = new FolderReader(mFolder, mFiles.toArray(new String[mFiles.size()]));
+
 		// generate a title from filename
 		int first = filename.lastIndexOf("/");
 
@@ -159,16 +154,20 @@ public class FolderAlbum extends Album {
 		super.close();
 
 		mFolder = null;
-	}
 
-	protected byte [] getBytes(int page) {
-		// get a buffer on a page
-		File file = new File(mFolder, mFiles.get(page));
+		if (mReader != null) {
+			mReader.close();
+			mReader = null;
+		}
+	}
 
-		if (!file.exists()) return null;
-		
-		byte buffer[] = new byte[(int)file.length()];
+	ArchiveReader getReader() {
+		return mReader;
+	}
 
-		return ComicsHelpers.loadFileToBuffer(file, buffer) ? buffer:null;
+	@Override
+	File getPageFile(int page) {
+		// images are already on disk
+		return mFolder == null ? null:new File(mFolder, mFiles.get(page));
 	}
 }
@@ -0,0 +1,98 @@
+/*
+ * ComicsReader is an Android application to read comics
+ * Copyright (C) 2011-2018 Cedric OCHS
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package net.kervala.comicsreader;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Images of a folder read as entries of an archive
+ */
+class FolderReader implements ArchiveReader {
+	private File mFolder;
+	private String [] mNames;
+
+	FolderReader(File folder, String [] names) {
+		mFolder = folder;
+		mNames = names;
+	}
+
+	public int size() {
+		return mNames.length;
+	}
+
+	public String getName(int index) {
+		return mNames[index];
+	}
+
+	public long getSize(int index) {
+		return getFile(index).length();
+	}
+
+	public long getCompressedSize(int index) {
+		return getSize(index);
+	}
+
+	public int getMethod(int index) {
+		return METHOD_STORED;
+	}
+
+	public InputStream openStream(int index) throws IOException {
+		return new FileInputStream(getFile(index));
+	}
+
+	public int readInto(int index, ByteBuffer buffer) throws IOException {
+		final FileInputStream input = new FileInputStream(getFile(index));
+
+		try {
+			final FileChannel channel = input.getChannel();
+			final long size = channel.size();
+
+			if (buffer.remaining() < size) throw new IOException("Buffer too small for " + mNames[index]);
+
+			int read = 0;
+
+			while(read < size) {
+				final int count = channel.read(buffer);
+
+				if (count < 0) break;
+
+				read += count;
+			}
+
+			return read;
+		} finally {
+			input.close();
+		}
+	}
+
+	public void close() {
+		mFolder = null;
+		mNames = null;
+	}
+
+	private File getFile(int index) {
+		return new File(mFolder, mNames[index]);
+	}
+}
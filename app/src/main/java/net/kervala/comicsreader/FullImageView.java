@@ -24,7 +24,6 @@ import java.lang.reflect.Method;
 
 import android.annotation.SuppressLint;
 import android.content.Context;
-import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.Paint;
 import android.graphics.Rect;
@@ -33,9 +32,9 @@ import android.util.AttributeSet;
 import android.view.View;
 
 public class FullImageView extends View {
-	private Bitmap mCurrentBitmap = null;
-	private Bitmap mNextBitmap = null;
-	private Bitmap mPreviousBitmap = null;
+	private PageSpread mCurrentSpread = null;
+	private PageSpread mNextSpread = null;
+	private PageSpread mPreviousSpread = null;
 	private int mBitmapWidth;
 	private int mBitmapHeight;
 	private int mOffset;
@@ -126,9 +125,20 @@ public class FullImageView extends View {
 	}
 
 	public synchronized void reset() {
-		mPreviousBitmap = null;
-		mNextBitmap = null;
-		mCurrentBitmap = null;
+		mPreviousSpread = replaceSpread(mPreviousSpread, null);
+		mNextSpread = replaceSpread(mNextSpread, null);
+		mCurrentSpread = replaceSpread(mCurrentSpread, null);
+	}
+
+	/**
+	 * Drop previous spread, so its bitmaps can be reused once released
+	 *
+	 * @return New spread, already retained by Album.getPageSpread
+	 */
+	private static PageSpread replaceSpread(PageSpread oldSpread, PageSpread newSpread) {
+		if (oldSpread != null) oldSpread.drop();
+
+		return newSpread;
 	}
 	
 	public int getBitmapWidth() {
@@ -140,66 +150,73 @@ public class FullImageView extends View {
 	}
 
 	/**
-	 * Return the view's current bitmap, or null if no bitmap has been assigned.
+	 * Return the view's current pages, or null if no pages have been assigned.
 	 */
-	public synchronized Bitmap getCurrentBitmap() {
-		return mCurrentBitmap;
+	synchronized PageSpread getCurrentSpread() {
+		return mCurrentSpread;
 	}
 
 	/**
-	 * Return the view's next bitmap, or null if no bitmap has been assigned.
+	 * Return the view's next pages, or null if no pages have been assigned.
 	 */
-	public synchronized Bitmap getNextBitmap() {
-		return mNextBitmap;
+	synchronized PageSpread getNextSpread() {
+		return mNextSpread;
 	}
 
 	/**
-	 * Return the view's previous bitmap, or null if no bitmap has been assigned.
+	 * Return the view's previous pages, or null if no pages have been assigned.
 	 */
-	public synchronized Bitmap getPreviousBitmap() {
-		return mPreviousBitmap;
+	synchronized PageSpread getPreviousSpread() {
+		return mPreviousSpread;
 	}
 	
 	/**
-	 * Sets a bitmap as the content of this ImageView.
+	 * Sets pages as the content of this ImageView.
 	 * 
-	 * @param bitmap
-	 *            The bitmap to set
+	 * @param spread
+	 *            The page or double page to set
 	 */
-	public synchronized void setCurrentBitmap(Bitmap bitmap) {
-		if (mCurrentBitmap != bitmap && bitmap != null) {
-			mCurrentBitmap = bitmap;
-			if (mBitmapWidth != bitmap.getWidth() || mBitmapHeight != bitmap.getHeight()) {
-				mBitmapWidth = bitmap.getWidth();
-				mBitmapHeight = bitmap.getHeight();
+	synchronized void setCurrentSpread(PageSpread spread) {
+		if (spread != null && !spread.hasSamePages(mCurrentSpread)) {
+			mCurrentSpread = replaceSpread(mCurrentSpread, spread);
+			if (mBitmapWidth != spread.getWidth() || mBitmapHeight != spread.getHeight()) {
+				mBitmapWidth = spread.getWidth();
+				mBitmapHeight = spread.getHeight();
 				requestLayout();
 			}
 			invalidate();
 			mOffset = 0;
+		} else if (spread != null) {
+			// already displayed
+			spread.drop();
 		}
 	}
 
 	/**
-	 * Sets a bitmap as the content of this FullImageView.
+	 * Sets pages as the content of this FullImageView.
 	 * 
-	 * @param bitmap
-	 *            The bitmap to set
+	 * @param spread
+	 *            The page or double page to set
 	 */
-	public synchronized void setNextBitmap(Bitmap bitmap) {
-		if (mNextBitmap != bitmap) {
-			mNextBitmap = bitmap;
+	synchronized void setNextSpread(PageSpread spread) {
+		if (spread == null || !spread.hasSamePages(mNextSpread)) {
+			mNextSpread = replaceSpread(mNextSpread, spread);
+		} else {
+			spread.drop();
 		}
 	}
 
 	/**
-	 * Sets a bitmap as the content of this FullImageView.
+	 * Sets pages as the content of this FullImageView.
 	 * 
-	 * @param bitmap
-	 *            The bitmap to set
+	 * @param spread
+	 *            The page or double page to set
 	 */
-	public synchronized void setPreviousBitmap(Bitmap bitmap) {
-		if (mPreviousBitmap != bitmap) {
-			mPreviousBitmap = bitmap;
+	synchronized void setPreviousSpread(PageSpread spread) {
+		if (spread == null || !spread.hasSamePages(mPreviousSpread)) {
+			mPreviousSpread = replaceSpread(mPreviousSpread, spread);
+		} else {
+			spread.drop();
 		}
 	}
 	
@@ -238,7 +255,7 @@ public class FullImageView extends View {
 			maxHeight = parent.getMeasuredHeight();
 		}
 
-		if (mCurrentBitmap == null) {
+		if (mCurrentSpread == null) {
 			// If no bitmap, its intrinsic size is 0.
 			mBitmapWidth = -1;
 			mBitmapHeight = -1;
@@ -278,20 +295,20 @@ public class FullImageView extends View {
 	protected synchronized void onDraw(Canvas canvas) {
 		super.onDraw(canvas);
 
-		// don't reuse bitmaps if they have been recycled
-		if (mCurrentBitmap != null && mCurrentBitmap.isRecycled()) {
-			mCurrentBitmap = null;
+		// don't reuse bitmaps if they have been recycled or given back to pool
+		if (mCurrentSpread != null && mCurrentSpread.isReleased()) {
+			mCurrentSpread = replaceSpread(mCurrentSpread, null);
 		}
 
-		if (mNextBitmap != null && mNextBitmap.isRecycled()) {
-			mNextBitmap = null;
+		if (mNextSpread != null && mNextSpread.isReleased()) {
+			mNextSpread = replaceSpread(mNextSpread, null);
 		}
 
-		if (mPreviousBitmap != null && mPreviousBitmap.isRecycled()) {
-			mPreviousBitmap = null;
+		if (mPreviousSpread != null && mPreviousSpread.isReleased()) {
+			mPreviousSpread = replaceSpread(mPreviousSpread, null);
 		}
 		
-		if (mCurrentBitmap == null || mBitmapWidth == 0 || mBitmapHeight == 0) {
+		if (mCurrentSpread == null || mBitmapWidth == 0 || mBitmapHeight == 0) {
 			return;
 		}
 		
@@ -306,13 +323,20 @@ public class FullImageView extends View {
 			mRectSrc.set(mRect.left, mRect.top, currRight, bottom);
 
 			if (AlbumParameters.rightToLeft) {
-				canvas.drawBitmap(mCurrentBitmap, mRect.right - mBitmapWidth, 0, null);
+				// page is aligned on right border
+				final int left = mRect.right - mBitmapWidth;
+
+				mRectDst.set(Math.max(mRect.left, left), mRect.top, Math.min(mRect.right, left + mBitmapWidth), bottom);
+				mRectSrc.set(mRectDst.left - left, mRect.top, mRectDst.right - left, bottom);
+
+				mCurrentSpread.draw(canvas, mRectSrc, mRectDst, this);
 			} else {
-				canvas.drawBitmap(mCurrentBitmap, mRectSrc, mRectSrc, null);
+				mCurrentSpread.draw(canvas, mRectSrc, mRectSrc, this);
 			}
 		} else if (mOffset < 0) {
-			final int prevLeft = Math.max(mRect.right, mPreviousBitmap == null ? mBitmapWidth:mPreviousBitmap.getWidth()) + mOffset;
-			final int prevRight = Math.min(mRect.right, mPreviousBitmap == null ? mBitmapWidth:mPreviousBitmap.getWidth());
+			final int prevWidth = mPreviousSpread == null ? mBitmapWidth:mPreviousSpread.getWidth();
+			final int prevLeft = Math.max(mRect.right, prevWidth) + mOffset;
+			final int prevRight = Math.min(mRect.right, prevWidth);
 			final int currWidth = Math.min(mRect.right + mOffset, mBitmapWidth);
 
 			// only display current image if its left border is visible
@@ -320,18 +344,18 @@ public class FullImageView extends View {
 				mRectSrc.set(0, mRect.top, currWidth, bottom);
 				mRectDst.set(-mOffset, mRect.top, -mOffset + currWidth, bottom);
 
-				canvas.drawBitmap(mCurrentBitmap, mRectSrc, mRectDst, null);
+				mCurrentSpread.draw(canvas, mRectSrc, mRectDst, this);
 			}
 
 			// only display previous image if its right border is visible
 			if (mOffset < prevRight - mRect.right) {
-				if (mPreviousBitmap != null) {
-					bottom = Math.min(mRect.bottom, mPreviousBitmap.getHeight());
-					mRectDst.set(0, mRect.top, mPreviousBitmap.getWidth() - prevLeft, bottom);
+				if (mPreviousSpread != null) {
+					bottom = Math.min(mRect.bottom, mPreviousSpread.getHeight());
+					mRectDst.set(0, mRect.top, prevWidth - prevLeft, bottom);
 
-					mRectSrc.set(prevLeft, mRect.top, mPreviousBitmap.getWidth(), bottom);
+					mRectSrc.set(prevLeft, mRect.top, prevWidth, bottom);
 
-					canvas.drawBitmap(mPreviousBitmap, mRectSrc, mRectDst, null);
+					mPreviousSpread.draw(canvas, mRectSrc, mRectDst, this);
 				} else {
 					mRectDst.set(0, mRect.top, mBitmapWidth - prevLeft, bottom);
 					canvas.drawRect(mRectDst, mWhitePainter);
@@ -343,18 +367,18 @@ public class FullImageView extends View {
 				mRectSrc.set(mOffset + mRect.left, mRect.top, mBitmapWidth, bottom);
 				mRectDst.set(mRect.left, mRect.top, mBitmapWidth - mOffset, bottom);
 
-				canvas.drawBitmap(mCurrentBitmap, mRectSrc, mRectDst, null);
+				mCurrentSpread.draw(canvas, mRectSrc, mRectDst, this);
 			}
 
 			final int nextLeft = Math.max(mRect.right, mBitmapWidth) - mOffset;
-			final int nextWidth = Math.min(mOffset, mNextBitmap != null ? mNextBitmap.getWidth():mBitmapWidth);  
+			final int nextWidth = Math.min(mOffset, mNextSpread != null ? mNextSpread.getWidth():mBitmapWidth);  
 
-			if (mNextBitmap != null) {
-				bottom = Math.min(mRect.bottom, mNextBitmap.getHeight());
+			if (mNextSpread != null) {
+				bottom = Math.min(mRect.bottom, mNextSpread.getHeight());
 				mRectDst.set(nextLeft, mRect.top, nextLeft + nextWidth, bottom);
 				mRectSrc.set(0, mRect.top, nextWidth, bottom);
 				
-				canvas.drawBitmap(mNextBitmap, mRectSrc, mRectDst, null);
+				mNextSpread.draw(canvas, mRectSrc, mRectDst, this);
 			} else {
 				mRectDst.set(nextLeft, mRect.top, nextLeft + nextWidth, bottom);
 
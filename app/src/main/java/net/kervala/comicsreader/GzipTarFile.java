@@ -0,0 +1,377 @@
+/*
+ * ComicsReader is an Android application to read comics
+ * Copyright (C) 2011-2018 Cedric OCHS
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package net.kervala.comicsreader;
+
+import java.io.ByteArrayInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * TAR archive compressed with gzip
+ *
+ * Data is inflated sequentially, reading backward restarts from the nearest
+ * checkpoint. Restarting inside a deflate stream would need to prime inflater
+ * with the bits preceding a block and to know where blocks begin, Inflater
+ * supports neither, so checkpoints are only at the beginning of gzip members
+ * (files compressed by bgzip or pigz -i have a lot of them, files compressed
+ * by gzip have only one and can't be read randomly).
+ */
+class GzipTarFile extends TarFile {
+	// minimum uncompressed bytes between 2 checkpoints
+	private static final long CHECKPOINT_INTERVAL = 4 * 1024 * 1024;
+	private static final int INPUT_SIZE = 65536;
+	// gzip header with a file name or a comment can be longer
+	private static final int MAX_HEADER_SIZE = 4096;
+
+	private static final int FLAG_HCRC = 2;
+	private static final int FLAG_EXTRA = 4;
+	private static final int FLAG_NAME = 8;
+	private static final int FLAG_COMMENT = 16;
+
+	private final Inflater mInflater = new Inflater(true);
+	private final byte [] mInput = new byte[INPUT_SIZE];
+	private final byte [] mSkip = new byte[INPUT_SIZE];
+
+	// position in compressed data of next bytes to pass to inflater
+	private long mInputPosition = 0;
+	// position in uncompressed data of next inflated byte, -1 if not started
+	private long mPosition = -1;
+	// size of uncompressed data, only known when end has been reached
+	private long mLength = Long.MAX_VALUE;
+	private boolean mEnd = false;
+
+	// pairs of uncompressed and compressed positions, sorted
+	private long [] mCheckpoints = new long[16];
+	private int mCheckpointsCount = 0;
+
+	GzipTarFile(String filename) throws IOException {
+		super();
+
+		if (!open(filename)) {
+			throw new IOException();
+		}
+	}
+
+	/**
+	 * Reuse entries and checkpoints from a previous reading of archive
+	 */
+	GzipTarFile(String filename, String [] names, long [] offsets, long [] sizes, long [] checkpoints) throws IOException {
+		super();
+
+		openFile(filename);
+		setEntries(names, offsets, sizes);
+
+		for(int i = 0; i + 1 < checkpoints.length; i += 2) {
+			addCheckpoint(checkpoints[i], checkpoints[i + 1]);
+		}
+	}
+
+	static boolean isGzip(byte [] header, int length) {
+		return length >= 10 && (header[0] & 0xff) == 0x1f && (header[1] & 0xff) == 0x8b && header[2] == 8;
+	}
+
+	static boolean isGzip(String filename) {
+		final byte [] header = new byte[10];
+
+		int read = 0;
+
+		FileInputStream ifs = null;
+
+		try {
+			ifs = new FileInputStream(filename);
+
+			while(read < header.length) {
+				final int count = ifs.read(header, read, header.length - read);
+
+				if (count < 0) break;
+
+				read += count;
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+
+		try {
+			if (ifs != null) ifs.close();
+		} catch (IOException e) {
+		}
+
+		return isGzip(header, read);
+	}
+
+	/**
+	 * Check if beginning of a gzip file contains a TAR header
+	 *
+	 * @param header First bytes of file
+	 * @param length Number of bytes in header
+	 */
+	static boolean isTar(byte [] header, int length) {
+		if (!isGzip(header, length)) return false;
+
+		final int headerSize = getHeaderSize(header, length);
+
+		if (headerSize <= 0) return false;
+
+		final Inflater inflater = new Inflater(true);
+		final byte [] block = new byte[BLOCK_SIZE];
+
+		int count = 0;
+
+		try {
+			inflater.setInput(header, headerSize, length - headerSize);
+
+			while(count < BLOCK_SIZE) {
+				final int inflated = inflater.inflate(block, count, BLOCK_SIZE - count);
+
+				if (inflated == 0) break;
+
+				count += inflated;
+			}
+		} catch (DataFormatException e) {
+			return false;
+		} finally {
+			inflater.end();
+		}
+
+		return isHeader(block, count);
+	}
+
+	/**
+	 * @return Size of gzip member header, 0 if data is too short or -1 if invalid
+	 */
+	private static int getHeaderSize(byte [] data, int length) {
+		if (!isGzip(data, length)) return -1;
+
+		final int flags = data[3] & 0xff;
+
+		int pos = 10;
+		final int end = length;
+
+		if ((flags & FLAG_EXTRA) != 0) {
+			if (pos + 2 > end) return 0;
+
+			pos += 2 + ((data[pos] & 0xff) | ((data[pos + 1] & 0xff) << 8));
+		}
+
+		// file name and comment are ended by a 0
+		if ((flags & FLAG_NAME) != 0) {
+			while(pos < end && data[pos] != 0) ++pos;
+
+			++pos;
+		}
+
+		if ((flags & FLAG_COMMENT) != 0) {
+			while(pos < end && data[pos] != 0) ++pos;
+
+			++pos;
+		}
+
+		if ((flags & FLAG_HCRC) != 0) pos += 2;
+
+		return pos > end ? 0:pos;
+	}
+
+	/**
+	 * @return Pairs of uncompressed and compressed positions where data can be inflated from
+	 */
+	synchronized long [] getCheckpoints() {
+		final long [] checkpoints = new long[mCheckpointsCount * 2];
+
+		System.arraycopy(mCheckpoints, 0, checkpoints, 0, checkpoints.length);
+
+		return checkpoints;
+	}
+
+	private void addCheckpoint(long position, long inputPosition) {
+		// only keep checkpoints after the last one
+		if (mCheckpointsCount > 0 && position < mCheckpoints[mCheckpointsCount * 2 - 2] + CHECKPOINT_INTERVAL) return;
+
+		if (mCheckpointsCount * 2 == mCheckpoints.length) {
+			final long [] checkpoints = new long[mCheckpoints.length * 2];
+			System.arraycopy(mCheckpoints, 0, checkpoints, 0, mCheckpoints.length);
+			mCheckpoints = checkpoints;
+		}
+
+		mCheckpoints[mCheckpointsCount * 2] = position;
+		mCheckpoints[mCheckpointsCount * 2 + 1] = inputPosition;
+
+		++mCheckpointsCount;
+	}
+
+	@Override
+	public synchronized void close() {
+		super.close();
+
+		mInflater.end();
+	}
+
+	@Override
+	public long getCompressedSize(int index) {
+		return -1;
+	}
+
+	@Override
+	public int getMethod(int index) {
+		return METHOD_OTHER;
+	}
+
+	@Override
+	public InputStream openStream(int index) throws IOException {
+		final long size = getSize(index);
+
+		if (size > Integer.MAX_VALUE) throw new IOException("Entry " + getName(index) + " is too large");
+
+		final ByteBuffer buffer = ByteBuffer.allocate((int)size);
+
+		readInto(index, buffer);
+
+		return new ByteArrayInputStream(buffer.array());
+	}
+
+	@Override
+	protected synchronized long length() {
+		return mLength;
+	}
+
+	@Override
+	protected synchronized boolean readFully(ByteBuffer buffer, long position) throws IOException {
+		if (!seek(position)) return false;
+
+		while(buffer.hasRemaining()) {
+			final int count;
+
+			if (buffer.hasArray()) {
+				count = inflate(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+
+				if (count > 0) buffer.position(buffer.position() + count);
+			} else {
+				count = inflate(mSkip, 0, Math.min(mSkip.length, buffer.remaining()));
+
+				if (count > 0) buffer.put(mSkip, 0, count);
+			}
+
+			if (count < 0) return false;
+		}
+
+		return true;
+	}
+
+	/**
+	 * Move to a position in uncompressed data
+	 *
+	 * @return false if position is after the end
+	 */
+	private boolean seek(long position) throws IOException {
+		if (position >= mLength) return false;
+
+		// nearest checkpoint before position
+		int checkpoint = -1;
+
+		for(int i = mCheckpointsCount - 1; i >= 0; --i) {
+			if (mCheckpoints[i * 2] <= position) {
+				checkpoint = i;
+				break;
+			}
+		}
+
+		final long checkpointPosition = checkpoint < 0 ? 0:mCheckpoints[checkpoint * 2];
+
+		// restart from checkpoint if going backward or if it's nearer
+		if (mPosition < 0 || position < mPosition || checkpointPosition > mPosition) {
+			mPosition = checkpointPosition;
+			mEnd = false;
+
+			startMember(checkpoint < 0 ? 0:mCheckpoints[checkpoint * 2 + 1]);
+		}
+
+		while(mPosition < position) {
+			if (inflate(mSkip, 0, (int)Math.min(mSkip.length, position - mPosition)) < 0) return false;
+		}
+
+		return true;
+	}
+
+	/**
+	 * @return Number of inflated bytes or -1 if end of data is reached
+	 */
+	private int inflate(byte [] data, int offset, int length) throws IOException {
+		while(!mEnd) {
+			try {
+				final int count = mInflater.inflate(data, offset, length);
+
+				if (count > 0) {
+					mPosition += count;
+					return count;
+				}
+			} catch (DataFormatException e) {
+				throw new IOException("Corrupted data in " + mName + " at " + String.valueOf(mPosition) + ": " + e.getMessage());
+			}
+
+			if (mInflater.finished()) {
+				// skip CRC32 and size of member
+				startMember(mInputPosition - mInflater.getRemaining() + 8);
+			} else if (mInflater.needsInput()) {
+				final int read = mChannel.read(ByteBuffer.wrap(mInput), mInputPosition);
+
+				if (read <= 0) throw new IOException("Unexpected end of " + mName);
+
+				mInflater.setInput(mInput, 0, read);
+				mInputPosition += read;
+			} else {
+				throw new IOException("Unsupported data in " + mName);
+			}
+		}
+
+		return -1;
+	}
+
+	/**
+	 * Start inflating a gzip member, or mark the end of data if there are no more members
+	 *
+	 * @param inputPosition Position of member header in compressed data
+	 */
+	private void startMember(long inputPosition) throws IOException {
+		final ByteBuffer header = ByteBuffer.wrap(mInput, 0, MAX_HEADER_SIZE);
+
+		while(header.hasRemaining()) {
+			if (mChannel.read(header, inputPosition + header.position()) < 0) break;
+		}
+
+		final int headerSize = getHeaderSize(mInput, header.position());
+
+		if (headerSize == 0) throw new IOException("Gzip header too long in " + mName);
+
+		if (headerSize < 0) {
+			// trailing garbage after last member is ignored like gzip does
+			mEnd = true;
+			mLength = mPosition;
+			return;
+		}
+
+		addCheckpoint(mPosition, inputPosition);
+
+		mInflater.reset();
+		mInputPosition = inputPosition + headerSize;
+	}
+}
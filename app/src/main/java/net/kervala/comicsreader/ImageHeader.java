@@ -0,0 +1,218 @@
+/*
+ * ComicsReader is an Android application to read comics
+ * Copyright (C) 2011-2018 Cedric OCHS
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package net.kervala.comicsreader;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Size of an image read from its header, without decoding it
+ *
+ * Supports JPEG, PNG, GIF and WebP, only the first bytes of the image are
+ * read, except for JPEG where metadata before the frame header are skipped.
+ */
+class ImageHeader {
+	// enough for all fixed size headers
+	private static final int FIXED_HEADER_SIZE = 30;
+
+	// JPEG metadata can be large, image is decoded if frame header is further
+	private static final int MAX_JPEG_HEADER_SIZE = 256 * 1024;
+
+	final int width;
+	final int height;
+
+	private ImageHeader(int width, int height) {
+		this.width = width;
+		this.height = height;
+	}
+
+	/**
+	 * Read size of an image
+	 *
+	 * @param input Stream at the beginning of image, it's not closed
+	 * @return Size of image or null if format isn't supported or header is invalid
+	 */
+	static ImageHeader read(InputStream input) throws IOException {
+		final BufferedInputStream buffered = new BufferedInputStream(input, FIXED_HEADER_SIZE);
+		final byte [] header = new byte[FIXED_HEADER_SIZE];
+
+		buffered.mark(FIXED_HEADER_SIZE);
+
+		final int count = readFully(buffered, header);
+
+		if (count < 2) return null;
+
+		// JPEG: SOI marker
+		if (getByte(header, 0) == 0xff && getByte(header, 1) == 0xd8) {
+			buffered.reset();
+			skipFully(buffered, 2);
+
+			return readJpeg(buffered);
+		}
+
+		if (count < FIXED_HEADER_SIZE) return null;
+
+		ImageHeader res = null;
+
+		if (getInt32BE(header, 0) == 0x89504e47 && getInt32BE(header, 4) == 0x0d0a1a0a && isTag(header, 12, "IHDR")) {
+			// PNG: IHDR is always the first chunk
+			res = new ImageHeader(getInt32BE(header, 16), getInt32BE(header, 20));
+		} else if (isTag(header, 0, "GIF8")) {
+			// GIF: logical screen size
+			res = new ImageHeader(getInt16LE(header, 6), getInt16LE(header, 8));
+		} else if (isTag(header, 0, "RIFF") && isTag(header, 8, "WEBP")) {
+			res = readWebp(header);
+		}
+
+		return res != null && res.width > 0 && res.height > 0 ? res:null;
+	}
+
+	private static ImageHeader readWebp(byte [] header) {
+		if (isTag(header, 12, "VP8 ")) {
+			// lossy: key frame start code then 14 bits sizes
+			if (getByte(header, 23) != 0x9d || getByte(header, 24) != 0x01 || getByte(header, 25) != 0x2a) return null;
+
+			return new ImageHeader(getInt16LE(header, 26) & 0x3fff, getInt16LE(header, 28) & 0x3fff);
+		}
+
+		if (isTag(header, 12, "VP8L")) {
+			// lossless: signature then 14 bits sizes minus 1
+			if (getByte(header, 20) != 0x2f) return null;
+
+			final int bits = getByte(header, 21) | (getByte(header, 22) << 8) | (getByte(header, 23) << 16) | (getByte(header, 24) << 24);
+
+			return new ImageHeader((bits & 0x3fff) + 1, ((bits >> 14) & 0x3fff) + 1);
+		}
+
+		if (isTag(header, 12, "VP8X")) {
+			// extended: canvas size minus 1 on 24 bits
+			return new ImageHeader(getInt24LE(header, 24) + 1, getInt24LE(header, 27) + 1);
+		}
+
+		return null;
+	}
+
+	private static ImageHeader readJpeg(InputStream input) throws IOException {
+		int position = 2;
+
+		while(position < MAX_JPEG_HEADER_SIZE) {
+			int marker = readByte(input);
+			++position;
+
+			if (marker != 0xff) return null;
+
+			// markers can be padded with several 0xff
+			while(marker == 0xff) {
+				marker = readByte(input);
+				++position;
+			}
+
+			// markers without segment
+			if (marker == 0x01 || (marker >= 0xd0 && marker <= 0xd8)) continue;
+
+			// end of image or start of scan before any frame
+			if (marker == 0xd9 || marker == 0xda) return null;
+
+			final int length = (readByte(input) << 8) | readByte(input);
+			position += 2;
+
+			if (length < 2) return null;
+
+			// SOF markers, except DHT, JPG and DAC using the same range
+			if (marker >= 0xc0 && marker <= 0xcf && marker != 0xc4 && marker != 0xc8 && marker != 0xcc) {
+				// precision
+				readByte(input);
+
+				final int height = (readByte(input) << 8) | readByte(input);
+				final int width = (readByte(input) << 8) | readByte(input);
+
+				// height can be defined later by a DNL marker, image must be decoded
+				return width > 0 && height > 0 ? new ImageHeader(width, height):null;
+			}
+
+			skipFully(input, length - 2);
+			position += length - 2;
+		}
+
+		return null;
+	}
+
+	private static boolean isTag(byte [] buffer, int offset, String tag) {
+		for(int i = 0; i < tag.length(); ++i) {
+			if (buffer[offset + i] != tag.charAt(i)) return false;
+		}
+
+		return true;
+	}
+
+	private static int getByte(byte [] buffer, int offset) {
+		return buffer[offset] & 0xff;
+	}
+
+	private static int getInt16LE(byte [] buffer, int offset) {
+		return getByte(buffer, offset) | (getByte(buffer, offset + 1) << 8);
+	}
+
+	private static int getInt24LE(byte [] buffer, int offset) {
+		return getInt16LE(buffer, offset) | (getByte(buffer, offset + 2) << 16);
+	}
+
+	private static int getInt32BE(byte [] buffer, int offset) {
+		return (getByte(buffer, offset) << 24) | (getByte(buffer, offset + 1) << 16) | (getByte(buffer, offset + 2) << 8) | getByte(buffer, offset + 3);
+	}
+
+	private static int readByte(InputStream input) throws IOException {
+		final int b = input.read();
+
+		if (b < 0) throw new EOFException("Unexpected end of image header");
+
+		return b;
+	}
+
+	private static int readFully(InputStream input, byte [] buffer) throws IOException {
+		int count = 0;
+
+		while(count < buffer.length) {
+			final int read = input.read(buffer, count, buffer.length - count);
+
+			if (read < 0) break;
+
+			count += read;
+		}
+
+		return count;
+	}
+
+	private static void skipFully(InputStream input, long size) throws IOException {
+		while(size > 0) {
+			final long skipped = input.skip(size);
+
+			if (skipped > 0) {
+				size -= skipped;
+			} else {
+				// some streams can't skip, read instead
+				readByte(input);
+				--size;
+			}
+		}
+	}
+}
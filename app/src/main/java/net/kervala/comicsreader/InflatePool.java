@@ -0,0 +1,168 @@
+/*
+ * ComicsReader is an Android application to read comics
+ * Copyright (C) 2011-2018 Cedric OCHS
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package net.kervala.comicsreader;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Inflater;
+
+import android.os.Process;
+import android.util.Log;
+
+/**
+ * Threads to decompress several ZIP entries at the same time
+ */
+class InflatePool {
+	private static final int MAX_THREADS = 8;
+
+	// idle threads stop and free their Inflater
+	private static final long KEEP_ALIVE_SECONDS = 30;
+
+	private static ExecutorService sExecutor;
+
+	// each thread keeps its own Inflater for all entries it decompresses, ended when thread stops
+	private static final ThreadLocal<Inflater> sInflater = new ThreadLocal<Inflater>();
+
+	interface Callback {
+		/**
+		 * Called from a worker thread as soon as an entry is decompressed
+		 *
+		 * @param position Position of entry in array passed to inflate
+		 * @param data Decompressed entry or null if an error occurred
+		 */
+		void onInflated(int position, byte [] data);
+	}
+
+	private static Inflater getInflater() {
+		Inflater inflater = sInflater.get();
+
+		if (inflater == null) {
+			inflater = new Inflater(true);
+			sInflater.set(inflater);
+		}
+
+		return inflater;
+	}
+
+	/**
+	 * Free native memory of the Inflater of current thread
+	 */
+	private static void endInflater() {
+		final Inflater inflater = sInflater.get();
+
+		if (inflater != null) {
+			inflater.end();
+			sInflater.remove();
+		}
+	}
+
+	private static synchronized ExecutorService getExecutor() {
+		if (sExecutor == null) {
+			final int threads = Math.max(1, Math.min(MAX_THREADS, Runtime.getRuntime().availableProcessors()));
+
+			final ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+				private int mCount = 0;
+
+				@Override
+				public Thread newThread(final Runnable runnable) {
+					final Thread thread = new Thread(new Runnable() {
+						@Override
+						public void run() {
+							Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+
+							try {
+								runnable.run();
+							} finally {
+								endInflater();
+							}
+						}
+					}, "ComicsReader inflate #" + String.valueOf(++mCount));
+
+					thread.setDaemon(true);
+
+					return thread;
+				}
+			});
+
+			// pages are decompressed by bursts, don't keep threads between them
+			executor.allowCoreThreadTimeOut(true);
+
+			sExecutor = executor;
+
+			Log.d(ComicsParameters.APP_TAG, "Using " + String.valueOf(threads) + " threads to decompress pages");
+		}
+
+		return sExecutor;
+	}
+
+	/**
+	 * Decompress entries in parallel and wait until all of them are processed
+	 *
+	 * @param zip Archive to read, it must stay opened until this method returns
+	 * @param entries Indices of entries in archive
+	 * @param callback Receives each entry when ready
+	 */
+	static void inflate(final ZipArchive zip, final int [] entries, final Callback callback) {
+		final ExecutorService executor = getExecutor();
+		final List<Future<?>> futures = new ArrayList<Future<?>>(entries.length);
+
+		// workers don't have the token of calling thread
+		final LoadToken token = LoadToken.current();
+
+		for(int i = 0; i < entries.length; ++i) {
+			final int position = i;
+
+			futures.add(executor.submit(new Runnable() {
+				@Override
+				public void run() {
+					// user changed page, these pages are not needed anymore
+					if (AlbumPage.sAbortLoading || (token != null && token.isCancelled())) return;
+
+					callback.onInflated(position, zip.getBytes(entries[position], getInflater()));
+				}
+			}));
+		}
+
+		// wait for slowest entry
+		for(Future<?> future: futures) {
+			try {
+				future.get();
+			} catch (InterruptedException e) {
+				Log.w(ComicsParameters.APP_TAG, "Interrupted while waiting for decompressed pages");
+
+				for(Future<?> f: futures) {
+					f.cancel(false);
+				}
+
+				Thread.currentThread().interrupt();
+				break;
+			} catch (ExecutionException e) {
+				Log.e(ComicsParameters.APP_TAG, "Exception while decompressing a page: " + e.getCause());
+			}
+		}
+	}
+}
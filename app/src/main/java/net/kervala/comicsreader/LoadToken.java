@@ -0,0 +1,75 @@
+/*
+ * ComicsReader is an Android application to read comics
+ * Copyright (C) 2011-2018 Cedric OCHS
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package net.kervala.comicsreader;
+
+/**
+ * Allow to cancel loading of a page while it's decompressed
+ *
+ * The token of the current thread is passed to native code which checks it
+ * each time it receives data.
+ */
+class LoadToken {
+	private static final ThreadLocal<LoadToken> sCurrent = new ThreadLocal<LoadToken>();
+
+	// read by native code, don't rename it
+	private volatile boolean mCancelled = false;
+
+	// page loaded or -1 if not related to a page
+	final int page;
+
+	// token of the load which started this one, restored when this one ends
+	// read by native code, don't rename it
+	final LoadToken parent;
+
+	LoadToken(int page) {
+		this(page, null);
+	}
+
+	LoadToken(int page, LoadToken parent) {
+		this.page = page;
+		this.parent = parent;
+	}
+
+	void cancel() {
+		mCancelled = true;
+	}
+
+	/**
+	 * @return true if this load or one of the loads which started it is cancelled, native code checks them the same way
+	 */
+	boolean isCancelled() {
+		return mCancelled || (parent != null && parent.isCancelled());
+	}
+
+	/**
+	 * @return Token used by current thread or null if loading can't be cancelled
+	 */
+	static LoadToken current() {
+		return sCurrent.get();
+	}
+
+	static void setCurrent(LoadToken token) {
+		if (token == null) {
+			sCurrent.remove();
+		} else {
+			sCurrent.set(token);
+		}
+	}
+}
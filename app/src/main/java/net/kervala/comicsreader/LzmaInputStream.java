@@ -0,0 +1,593 @@
+/*
+ * ComicsReader is an Android application to read comics
+ * Copyright (C) 2011-2018 Cedric OCHS
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package net.kervala.comicsreader;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Decompress LZMA and LZMA2 streams used by 7z archives
+ *
+ * Only the dictionary is kept in memory, its size is limited to the size of
+ * uncompressed data when it's smaller.
+ */
+class LzmaInputStream extends InputStream {
+	private static final int NUM_STATES = 12;
+	private static final int POS_BITS_MAX = 4;
+	private static final int NUM_LEN_TO_POS_STATES = 4;
+	private static final int NUM_POS_SLOT_BITS = 6;
+	private static final int END_POS_MODEL_INDEX = 14;
+	private static final int NUM_FULL_DISTANCES = 1 << (END_POS_MODEL_INDEX >>> 1);
+	private static final int NUM_ALIGN_BITS = 4;
+	private static final int MATCH_MIN_LEN = 2;
+	private static final int LITERAL_SIZE = 0x300;
+
+	private static final int PROB_BITS = 11;
+	private static final int PROB_INIT = (1 << PROB_BITS) / 2;
+	private static final int MOVE_BITS = 5;
+
+	private static final int MIN_DICTIONARY_SIZE = 4096;
+
+	// returned by decodeSymbol
+	private static final int SYMBOL_MATCH = -1;
+	private static final int SYMBOL_END = -2;
+
+	private static class LenDecoder {
+		final short [] choice = new short[2];
+		final short [] low = new short[1 << POS_BITS_MAX << 3];
+		final short [] mid = new short[1 << POS_BITS_MAX << 3];
+		final short [] high = new short[256];
+
+		void reset() {
+			Arrays.fill(choice, (short)PROB_INIT);
+			Arrays.fill(low, (short)PROB_INIT);
+			Arrays.fill(mid, (short)PROB_INIT);
+			Arrays.fill(high, (short)PROB_INIT);
+		}
+	}
+
+	private final InputStream mInput;
+	private final boolean mLzma2;
+
+	// dictionary
+	private byte [] mWindow;
+	private int mWindowPos = 0;
+	private boolean mWindowFull = false;
+	// uncompressed bytes since dictionary reset
+	private long mTotalPos = 0;
+
+	// range decoder
+	private int mRange;
+	private int mCode;
+	// compressed bytes left in current LZMA2 chunk
+	private long mPackRemaining = Long.MAX_VALUE;
+
+	// literal context, literal position and position bits
+	private int mLc;
+	private int mLp;
+	private int mPb;
+
+	private final short [] mIsMatch = new short[NUM_STATES << POS_BITS_MAX];
+	private final short [] mIsRep = new short[NUM_STATES];
+	private final short [] mIsRepG0 = new short[NUM_STATES];
+	private final short [] mIsRepG1 = new short[NUM_STATES];
+	private final short [] mIsRepG2 = new short[NUM_STATES];
+	private final short [] mIsRep0Long = new short[NUM_STATES << POS_BITS_MAX];
+	private final short [] mPosSlot = new short[NUM_LEN_TO_POS_STATES << NUM_POS_SLOT_BITS];
+	private final short [] mPosDecoders = new short[1 + NUM_FULL_DISTANCES - END_POS_MODEL_INDEX];
+	private final short [] mAlign = new short[1 << NUM_ALIGN_BITS];
+	private final LenDecoder mLenDecoder = new LenDecoder();
+	private final LenDecoder mRepLenDecoder = new LenDecoder();
+	private short [] mLiterals;
+
+	private int mState = 0;
+	private int mRep0 = 0;
+	private int mRep1 = 0;
+	private int mRep2 = 0;
+	private int mRep3 = 0;
+
+	// bytes of current match not copied yet
+	private int mMatchLen = 0;
+
+	// uncompressed bytes left in stream (LZMA) or in current chunk (LZMA2)
+	private long mRemaining;
+	private boolean mUncompressedChunk = false;
+	private boolean mEnd = false;
+
+	/**
+	 * @param input Compressed data
+	 * @param properties Coder properties from 7z header
+	 * @param size Uncompressed size or -1 if unknown
+	 * @param lzma2 true for a LZMA2 stream
+	 */
+	LzmaInputStream(InputStream input, byte [] properties, long size, boolean lzma2) throws IOException {
+		mInput = input;
+		mLzma2 = lzma2;
+
+		long dictionarySize;
+
+		if (lzma2) {
+			if (properties == null || properties.length < 1 || properties[0] > 40) throw new IOException("Wrong LZMA2 properties");
+
+			final int p = properties[0];
+
+			dictionarySize = p == 40 ? 0xFFFFFFFFL:(long)(2 | (p & 1)) << (p / 2 + 11);
+
+			// set by first chunk
+			mRemaining = 0;
+		} else {
+			if (properties == null || properties.length < 5) throw new IOException("Wrong LZMA properties");
+
+			dictionarySize = (properties[1] & 0xff) | ((properties[2] & 0xff) << 8) | ((properties[3] & 0xff) << 16) | ((long)(properties[4] & 0xff) << 24);
+
+			setProperties(properties[0] & 0xff);
+			resetState();
+			initRange();
+
+			mRemaining = size < 0 ? Long.MAX_VALUE:size;
+		}
+
+		// no need of a dictionary larger than data
+		if (size >= 0) dictionarySize = Math.min(dictionarySize, size);
+
+		mWindow = new byte[(int)Math.min(Integer.MAX_VALUE - 8, Math.max(MIN_DICTIONARY_SIZE, dictionarySize))];
+	}
+
+	@Override
+	public int read() throws IOException {
+		final byte [] b = new byte[1];
+
+		return read(b, 0, 1) == 1 ? b[0] & 0xff:-1;
+	}
+
+	@Override
+	public int read(byte [] buffer, int offset, int length) throws IOException {
+		if (length == 0) return 0;
+
+		int count = 0;
+
+		while(count < length && !mEnd) {
+			if (mMatchLen > 0) {
+				// copy remaining bytes of a match
+				final int n = (int)Math.min(Math.min(mMatchLen, length - count), mRemaining);
+
+				if (n == 0) throw new IOException("Corrupted LZMA data: match after end of chunk");
+
+				int src = mWindowPos - mRep0 - 1;
+
+				if (src < 0) src += mWindow.length;
+
+				for(int i = 0; i < n; ++i) {
+					final byte b = mWindow[src];
+
+					if (++src == mWindow.length) src = 0;
+
+					putByte(b);
+					buffer[offset + count++] = b;
+				}
+
+				mMatchLen -= n;
+				mRemaining -= n;
+			} else if (mRemaining == 0) {
+				if (!mLzma2 || !nextChunk()) mEnd = true;
+			} else if (mUncompressedChunk) {
+				final int n = mInput.read(buffer, offset + count, (int)Math.min(length - count, mRemaining));
+
+				if (n < 0) throw new EOFException("Unexpected end of LZMA2 data");
+
+				putBytes(buffer, offset + count, n);
+
+				count += n;
+				mRemaining -= n;
+			} else {
+				final int symbol = decodeSymbol();
+
+				if (symbol >= 0) {
+					buffer[offset + count++] = (byte)symbol;
+					--mRemaining;
+				} else if (symbol == SYMBOL_END) {
+					mEnd = true;
+				}
+			}
+		}
+
+		return count == 0 ? -1:count;
+	}
+
+	@Override
+	public void close() throws IOException {
+		mWindow = null;
+		mLiterals = null;
+
+		mInput.close();
+	}
+
+	/**
+	 * Read header of next LZMA2 chunk
+	 *
+	 * @return false if end of stream is reached
+	 */
+	private boolean nextChunk() throws IOException {
+		// skip unused compressed bytes of previous chunk
+		while(mPackRemaining > 0 && mPackRemaining != Long.MAX_VALUE) {
+			final long n = mInput.skip(mPackRemaining);
+
+			if (n <= 0) throw new EOFException("Unexpected end of LZMA2 data");
+
+			mPackRemaining -= n;
+		}
+
+		mPackRemaining = Long.MAX_VALUE;
+
+		final int control = readInputByte();
+
+		if (control == 0) return false;
+
+		if (control == 1 || control == 2) {
+			// stored data
+			if (control == 1) resetDictionary();
+
+			mUncompressedChunk = true;
+			mRemaining = readInputUInt16() + 1;
+
+			return true;
+		}
+
+		if (control < 0x80) throw new IOException("Wrong LZMA2 control byte " + String.valueOf(control));
+
+		mUncompressedChunk = false;
+		mRemaining = ((control & 0x1F) << 16) + readInputUInt16() + 1;
+
+		final int packSize = readInputUInt16() + 1;
+		final int reset = (control >>> 5) & 3;
+
+		if (reset == 3) resetDictionary();
+
+		if (reset >= 2) {
+			setProperties(readInputByte());
+		} else if (mLiterals == null) {
+			throw new IOException("Missing LZMA2 properties");
+		}
+
+		if (reset >= 1) resetState();
+
+		mPackRemaining = packSize;
+
+		initRange();
+
+		return true;
+	}
+
+	private void setProperties(int properties) throws IOException {
+		if (properties >= 9 * 5 * 5) throw new IOException("Wrong LZMA properties");
+
+		mLc = properties % 9;
+		properties /= 9;
+		mLp = properties % 5;
+		mPb = properties / 5;
+
+		if (mLzma2 && mLc + mLp > 4) throw new IOException("Wrong LZMA2 properties");
+
+		final int size = LITERAL_SIZE << (mLc + mLp);
+
+		if (mLiterals == null || mLiterals.length != size) mLiterals = new short[size];
+	}
+
+	private void resetState() {
+		Arrays.fill(mIsMatch, (short)PROB_INIT);
+		Arrays.fill(mIsRep, (short)PROB_INIT);
+		Arrays.fill(mIsRepG0, (short)PROB_INIT);
+		Arrays.fill(mIsRepG1, (short)PROB_INIT);
+		Arrays.fill(mIsRepG2, (short)PROB_INIT);
+		Arrays.fill(mIsRep0Long, (short)PROB_INIT);
+		Arrays.fill(mPosSlot, (short)PROB_INIT);
+		Arrays.fill(mPosDecoders, (short)PROB_INIT);
+		Arrays.fill(mAlign, (short)PROB_INIT);
+		Arrays.fill(mLiterals, (short)PROB_INIT);
+
+		mLenDecoder.reset();
+		mRepLenDecoder.reset();
+
+		mState = 0;
+		mRep0 = mRep1 = mRep2 = mRep3 = 0;
+		mMatchLen = 0;
+	}
+
+	private void resetDictionary() {
+		mWindowPos = 0;
+		mWindowFull = false;
+		mTotalPos = 0;
+	}
+
+	private void putByte(byte b) {
+		mWindow[mWindowPos] = b;
+
+		if (++mWindowPos == mWindow.length) {
+			mWindowPos = 0;
+			mWindowFull = true;
+		}
+
+		++mTotalPos;
+	}
+
+	private void putBytes(byte [] buffer, int offset, int length) {
+		while(length > 0) {
+			final int n = Math.min(length, mWindow.length - mWindowPos);
+
+			System.arraycopy(buffer, offset, mWindow, mWindowPos, n);
+
+			mWindowPos += n;
+			mTotalPos += n;
+			offset += n;
+			length -= n;
+
+			if (mWindowPos == mWindow.length) {
+				mWindowPos = 0;
+				mWindowFull = true;
+			}
+		}
+	}
+
+	/**
+	 * @param distance 1 for previous byte
+	 */
+	private int getByte(int distance) {
+		int pos = mWindowPos - distance;
+
+		if (pos < 0) pos += mWindow.length;
+
+		return mWindow[pos] & 0xff;
+	}
+
+	/**
+	 * Decode a literal or the beginning of a match
+	 *
+	 * @return Literal value, SYMBOL_MATCH if a match must be copied or SYMBOL_END at end marker
+	 */
+	private int decodeSymbol() throws IOException {
+		final int posState = (int)mTotalPos & ((1 << mPb) - 1);
+
+		if (decodeBit(mIsMatch, (mState << POS_BITS_MAX) + posState) == 0) {
+			final int prevByte = mTotalPos > 0 ? getByte(1):0;
+			final int base = LITERAL_SIZE * ((((int)mTotalPos & ((1 << mLp) - 1)) << mLc) + (prevByte >>> (8 - mLc)));
+
+			int symbol = 1;
+
+			if (mState >= 7) {
+				// use byte at last match distance to predict bits
+				int matchByte = getByte(mRep0 + 1);
+
+				do {
+					final int matchBit = (matchByte >>> 7) & 1;
+					matchByte <<= 1;
+
+					final int bit = decodeBit(mLiterals, base + ((1 + matchBit) << 8) + symbol);
+					symbol = (symbol << 1) | bit;
+
+					if (matchBit != bit) break;
+				} while(symbol < 0x100);
+			}
+
+			while(symbol < 0x100) {
+				symbol = (symbol << 1) | decodeBit(mLiterals, base + symbol);
+			}
+
+			putByte((byte)symbol);
+
+			mState = mState < 4 ? 0:(mState < 10 ? mState - 3:mState - 6);
+
+			return symbol & 0xff;
+		}
+
+		int len;
+
+		if (decodeBit(mIsRep, mState) == 0) {
+			// simple match
+			mRep3 = mRep2;
+			mRep2 = mRep1;
+			mRep1 = mRep0;
+
+			len = decodeLen(mLenDecoder, posState) + MATCH_MIN_LEN;
+
+			mState = mState < 7 ? 7:10;
+			mRep0 = decodeDistance(len - MATCH_MIN_LEN);
+
+			if (mRep0 == -1) return SYMBOL_END;
+		} else {
+			boolean shortRep = false;
+
+			if (decodeBit(mIsRepG0, mState) == 0) {
+				// a single byte at last distance
+				shortRep = decodeBit(mIsRep0Long, (mState << POS_BITS_MAX) + posState) == 0;
+			} else {
+				final int distance;
+
+				if (decodeBit(mIsRepG1, mState) == 0) {
+					distance = mRep1;
+				} else {
+					if (decodeBit(mIsRepG2, mState) == 0) {
+						distance = mRep2;
+					} else {
+						distance = mRep3;
+						mRep3 = mRep2;
+					}
+
+					mRep2 = mRep1;
+				}
+
+				mRep1 = mRep0;
+				mRep0 = distance;
+			}
+
+			if (shortRep) {
+				mState = mState < 7 ? 9:11;
+				len = 1;
+			} else {
+				len = decodeLen(mRepLenDecoder, posState) + MATCH_MIN_LEN;
+				mState = mState < 7 ? 8:11;
+			}
+		}
+
+		if (mRep0 < 0 || mRep0 >= mWindow.length || (!mWindowFull && mRep0 >= mWindowPos)) {
+			throw new IOException("Corrupted LZMA data: wrong distance " + String.valueOf(mRep0));
+		}
+
+		mMatchLen = len;
+
+		return SYMBOL_MATCH;
+	}
+
+	private int decodeLen(LenDecoder decoder, int posState) throws IOException {
+		if (decodeBit(decoder.choice, 0) == 0) return decodeBitTree(decoder.low, posState << 3, 3);
+
+		if (decodeBit(decoder.choice, 1) == 0) return 8 + decodeBitTree(decoder.mid, posState << 3, 3);
+
+		return 16 + decodeBitTree(decoder.high, 0, 8);
+	}
+
+	/**
+	 * @return Distance minus 1 or -1 for end marker
+	 */
+	private int decodeDistance(int len) throws IOException {
+		final int lenState = Math.min(len, NUM_LEN_TO_POS_STATES - 1);
+		final int posSlot = decodeBitTree(mPosSlot, lenState << NUM_POS_SLOT_BITS, NUM_POS_SLOT_BITS);
+
+		if (posSlot < 4) return posSlot;
+
+		final int numDirectBits = (posSlot >>> 1) - 1;
+
+		int distance = (2 | (posSlot & 1)) << numDirectBits;
+
+		if (posSlot < END_POS_MODEL_INDEX) {
+			distance += decodeReverseBitTree(mPosDecoders, distance - posSlot, numDirectBits);
+		} else {
+			distance += decodeDirectBits(numDirectBits - NUM_ALIGN_BITS) << NUM_ALIGN_BITS;
+			distance += decodeReverseBitTree(mAlign, 0, NUM_ALIGN_BITS);
+		}
+
+		return distance;
+	}
+
+	private void initRange() throws IOException {
+		if (readRangeByte() != 0) throw new IOException("Corrupted LZMA data");
+
+		mCode = 0;
+		mRange = 0xFFFFFFFF;
+
+		for(int i = 0; i < 4; ++i) {
+			mCode = (mCode << 8) | readRangeByte();
+		}
+	}
+
+	private int decodeBit(short [] probs, int index) throws IOException {
+		final int prob = probs[index];
+		final int bound = (mRange >>> PROB_BITS) * prob;
+
+		int bit;
+
+		// unsigned comparison
+		if ((mCode ^ 0x80000000) < (bound ^ 0x80000000)) {
+			mRange = bound;
+			probs[index] = (short)(prob + (((1 << PROB_BITS) - prob) >>> MOVE_BITS));
+			bit = 0;
+		} else {
+			mRange -= bound;
+			mCode -= bound;
+			probs[index] = (short)(prob - (prob >>> MOVE_BITS));
+			bit = 1;
+		}
+
+		if ((mRange & 0xFF000000) == 0) {
+			mRange <<= 8;
+			mCode = (mCode << 8) | readRangeByte();
+		}
+
+		return bit;
+	}
+
+	private int decodeDirectBits(int count) throws IOException {
+		int result = 0;
+
+		do {
+			mRange >>>= 1;
+			mCode -= mRange;
+
+			final int t = -(mCode >>> 31);
+
+			mCode += mRange & t;
+			result = (result << 1) + (t + 1);
+
+			if ((mRange & 0xFF000000) == 0) {
+				mRange <<= 8;
+				mCode = (mCode << 8) | readRangeByte();
+			}
+		} while(--count > 0);
+
+		return result;
+	}
+
+	private int decodeBitTree(short [] probs, int offset, int count) throws IOException {
+		int m = 1;
+
+		for(int i = 0; i < count; ++i) {
+			m = (m << 1) + decodeBit(probs, offset + m);
+		}
+
+		return m - (1 << count);
+	}
+
+	private int decodeReverseBitTree(short [] probs, int offset, int count) throws IOException {
+		int m = 1;
+		int symbol = 0;
+
+		for(int i = 0; i < count; ++i) {
+			final int bit = decodeBit(probs, offset + m);
+
+			m = (m << 1) + bit;
+			symbol |= bit << i;
+		}
+
+		return symbol;
+	}
+
+	private int readRangeByte() throws IOException {
+		if (mPackRemaining != Long.MAX_VALUE) {
+			if (mPackRemaining == 0) throw new IOException("Corrupted LZMA2 data: chunk is too long");
+
+			--mPackRemaining;
+		}
+
+		return readInputByte();
+	}
+
+	private int readInputByte() throws IOException {
+		final int b = mInput.read();
+
+		if (b < 0) throw new EOFException("Unexpected end of LZMA data");
+
+		return b;
+	}
+
+	private int readInputUInt16() throws IOException {
+		return (readInputByte() << 8) | readInputByte();
+	}
+}
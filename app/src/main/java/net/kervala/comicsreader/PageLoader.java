@@ -0,0 +1,370 @@
+/*
+ * ComicsReader is an Android application to read comics
+ * Copyright (C) 2011-2018 Cedric OCHS
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package net.kervala.comicsreader;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import android.os.Handler;
+import android.os.Message;
+import android.os.Process;
+import android.util.Log;
+
+/**
+ * Load pages in stages, each one with its own threads
+ *
+ * Page data is read from archive by a single I/O thread, then decoded by
+ * as many threads as CPU cores, and decoded pages are published to the
+ * main thread. Queues are sorted by priority, so current page overtakes
+ * pages loaded in advance and buffers maintenance.
+ */
+class PageLoader {
+	static final int PRIORITY_CURRENT = 0;
+	static final int PRIORITY_ADJACENT = 1;
+	static final int PRIORITY_PREFETCH = 2;
+
+	// no more pages than displayed ones are decoded at once, each needs a large bitmap
+	private static final int MAX_DECODE_THREADS = 3;
+
+	private final ThreadPoolExecutor mIoExecutor;
+	private final ThreadPoolExecutor mDecodeExecutor;
+	private final Handler mPublishHandler;
+	private final int mPublishMessage;
+
+	// pages queued or being loaded, a page is only loaded once at a time
+	private final Map<Integer, PageTask> mPageTasks = new HashMap<Integer, PageTask>();
+	private BuffersTask mBuffersTask;
+	private Album mClosedAlbum;
+	private int mRunning = 0;
+	private long mSequence = 0;
+	private boolean mShutdown = false;
+
+	/**
+	 * @param publishHandler Handler of main thread, a message with page number is sent when it can be displayed
+	 * @param publishMessage Message sent to publishHandler
+	 */
+	PageLoader(Handler publishHandler, int publishMessage) {
+		mPublishHandler = publishHandler;
+		mPublishMessage = publishMessage;
+
+		final int decodeThreads = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), MAX_DECODE_THREADS));
+
+		mIoExecutor = createExecutor("ComicsReader I/O", 1);
+		mDecodeExecutor = createExecutor("ComicsReader decoder", decodeThreads);
+	}
+
+	/**
+	 * Read, decode and publish a page, if it's already loading only its priority can be raised
+	 *
+	 * @param priority One of PRIORITY_* constants
+	 */
+	synchronized void loadPage(Album album, int page, int priority) {
+		if (mShutdown || album == mClosedAlbum) return;
+
+		PageTask task = mPageTasks.get(page);
+
+		if (task != null) {
+			if (priority >= task.priority || task.album != album) return;
+
+			final ThreadPoolExecutor executor = task.decoding ? mDecodeExecutor:mIoExecutor;
+
+			// already running, priority doesn't matter anymore
+			if (!executor.remove(task)) return;
+
+			task.priority = priority;
+			task.sequence = ++mSequence;
+
+			executor.execute(task);
+		} else {
+			task = new PageTask(album, page, priority, ++mSequence);
+
+			mPageTasks.put(page, task);
+			mIoExecutor.execute(task);
+		}
+
+		// buffers maintenance must not delay a displayed page, it'll be continued later
+		if (priority < PRIORITY_PREFETCH && mBuffersTask != null) mBuffersTask.token.cancel();
+	}
+
+	/**
+	 * Release bitmaps and buffers out of the window around current page, then read new buffers
+	 *
+	 * It replaces previous maintenance not yet done.
+	 */
+	synchronized void updateBuffers(Album album, int current, int next, int previous) {
+		if (mShutdown || album == mClosedAlbum) return;
+
+		if (mBuffersTask != null) {
+			mBuffersTask.token.cancel();
+			mIoExecutor.remove(mBuffersTask);
+		}
+
+		mBuffersTask = new BuffersTask(album, current, next, previous, ++mSequence);
+		mIoExecutor.execute(mBuffersTask);
+	}
+
+	/**
+	 * Forget all queued pages and wait for pages being loaded, album can be closed after
+	 *
+	 * @param album Album to close, its pages won't be loaded anymore
+	 */
+	synchronized void clear(Album album) {
+		mClosedAlbum = album;
+
+		cancelTasks();
+
+		while(mRunning > 0) {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				Log.w(ComicsParameters.APP_TAG, "Interrupted while waiting for pages loading");
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Stop all threads once current tasks are done, loader can't be used anymore
+	 */
+	synchronized void shutdown() {
+		mShutdown = true;
+
+		cancelTasks();
+
+		mIoExecutor.shutdown();
+		mDecodeExecutor.shutdown();
+	}
+
+	private void cancelTasks() {
+		for(PageTask task: mPageTasks.values()) {
+			task.cancelled = true;
+
+			mIoExecutor.remove(task);
+			mDecodeExecutor.remove(task);
+		}
+
+		mPageTasks.clear();
+
+		if (mBuffersTask != null) {
+			mBuffersTask.token.cancel();
+			mIoExecutor.remove(mBuffersTask);
+			mBuffersTask = null;
+		}
+	}
+
+	private synchronized boolean beginTask(Task task) {
+		if (task.isCancelled()) return false;
+
+		++mRunning;
+
+		return true;
+	}
+
+	private synchronized void endTask() {
+		--mRunning;
+
+		notifyAll();
+	}
+
+	private static ThreadPoolExecutor createExecutor(final String name, int threads) {
+		final ThreadFactory factory = new ThreadFactory() {
+			private int mCount = 0;
+
+			@Override
+			public Thread newThread(final Runnable runnable) {
+				return new Thread(name + " " + String.valueOf(++mCount)) {
+					@Override
+					public void run() {
+						Process.setThreadPriority(Process.THREAD_PRIORITY_MORE_FAVORABLE);
+
+						runnable.run();
+					}
+				};
+			}
+		};
+
+		// tasks must be executed and not submitted, so queue can sort them
+		final ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS, new PriorityBlockingQueue<Runnable>(), factory);
+
+		executor.allowCoreThreadTimeOut(true);
+
+		return executor;
+	}
+
+	/**
+	 * Work queued in a stage, most urgent first then oldest first
+	 */
+	private static abstract class Task implements Runnable, Comparable<Task> {
+		final Album album;
+		int priority;
+		long sequence;
+
+		Task(Album album, int priority, long sequence) {
+			this.album = album;
+			this.priority = priority;
+			this.sequence = sequence;
+		}
+
+		abstract boolean isCancelled();
+
+		@Override
+		public int compareTo(Task task) {
+			if (priority != task.priority) return priority < task.priority ? -1:1;
+
+			return sequence < task.sequence ? -1:(sequence == task.sequence ? 0:1);
+		}
+	}
+
+	/**
+	 * Page read by I/O stage then decoded by decode stage
+	 */
+	private class PageTask extends Task {
+		final int page;
+		boolean decoding = false;
+		volatile boolean cancelled = false;
+
+		PageTask(Album album, int page, int priority, long sequence) {
+			super(album, priority, sequence);
+
+			this.page = page;
+		}
+
+		@Override
+		boolean isCancelled() {
+			return cancelled;
+		}
+
+		@Override
+		public void run() {
+			if (!beginTask(this)) return;
+
+			try {
+				if (decoding) {
+					decode();
+				} else {
+					read();
+				}
+			} finally {
+				endTask();
+			}
+		}
+
+		private void read() {
+			final boolean loaded = album.loadPageBuffers(page);
+
+			synchronized(PageLoader.this) {
+				if (cancelled) return;
+
+				if (loaded) {
+					// keep priority in next stage
+					decoding = true;
+					mDecodeExecutor.execute(this);
+				} else {
+					mPageTasks.remove(page);
+				}
+			}
+		}
+
+		private void decode() {
+			// cancelled by Album.cancelLoads when page isn't displayed anymore
+			final LoadToken token = album.beginLoad(page);
+
+			try {
+				// display a coarse version of page while decoding it
+				if (album.updatePagePreview(page)) publish();
+
+				if (album.updatePage(page)) {
+					publish();
+				} else if (!token.isCancelled()) {
+					// TODO: create an error message
+					Log.w(ComicsParameters.APP_TAG, "Unable to update page " + page);
+				}
+			} finally {
+				album.endLoad(token);
+			}
+
+			synchronized(PageLoader.this) {
+				if (!cancelled) mPageTasks.remove(page);
+			}
+		}
+
+		private void publish() {
+			if (cancelled) return;
+
+			final Message msg = mPublishHandler.obtainMessage(mPublishMessage);
+			msg.getData().putInt("page", page);
+			mPublishHandler.sendMessage(msg);
+		}
+	}
+
+	/**
+	 * Buffers maintenance in I/O stage, continued later if a page needs to be read
+	 */
+	private class BuffersTask extends Task {
+		final int current;
+		final int next;
+		final int previous;
+		final LoadToken token = new LoadToken(-1);
+
+		BuffersTask(Album album, int current, int next, int previous, long sequence) {
+			super(album, PRIORITY_PREFETCH, sequence);
+
+			this.current = current;
+			this.next = next;
+			this.previous = previous;
+		}
+
+		@Override
+		boolean isCancelled() {
+			return mBuffersTask != this;
+		}
+
+		@Override
+		public void run() {
+			if (!beginTask(this)) return;
+
+			try {
+				LoadToken.setCurrent(token);
+
+				album.updateBuffers(current, next, previous);
+			} finally {
+				LoadToken.setCurrent(null);
+
+				synchronized(PageLoader.this) {
+					if (mBuffersTask == this) {
+						mBuffersTask = null;
+
+						// stopped for a page, continue after it
+						if (token.isCancelled() && !mShutdown) {
+							mBuffersTask = new BuffersTask(album, current, next, previous, ++mSequence);
+							mIoExecutor.execute(mBuffersTask);
+						}
+					}
+				}
+
+				endTask();
+			}
+		}
+	}
+}
@@ -0,0 +1,151 @@
+/*
+ * ComicsReader is an Android application to read comics
+ * Copyright (C) 2011-2018 Cedric OCHS
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package net.kervala.comicsreader;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Rect;
+import android.view.View;
+
+/**
+ * Pages displayed at the same time, a single page or a double page
+ *
+ * Each page keeps its own bitmap, the same as when displayed alone, and
+ * pages are laid out side by side when drawn.
+ */
+class PageSpread {
+	final Bitmap leftBitmap;
+	final PageTiles leftTiles;
+	final Bitmap rightBitmap;
+	final PageTiles rightTiles;
+
+	private final Rect mPageSrc = new Rect();
+	private final Rect mPageDst = new Rect();
+
+	/**
+	 * @param leftBitmap Bitmap of left page, or its preview if displayed by tiles
+	 * @param leftTiles Tiles of a large left page
+	 * @param rightBitmap Bitmap of right page or null for a single page
+	 * @param rightTiles Tiles of a large right page
+	 */
+	PageSpread(Bitmap leftBitmap, PageTiles leftTiles, Bitmap rightBitmap, PageTiles rightTiles) {
+		this.leftBitmap = leftBitmap;
+		this.leftTiles = leftTiles;
+		this.rightBitmap = rightBitmap;
+		this.rightTiles = rightTiles;
+	}
+
+	int getWidth() {
+		return getPageWidth(leftBitmap, leftTiles) + (rightBitmap == null ? 0:getPageWidth(rightBitmap, rightTiles));
+	}
+
+	int getHeight() {
+		return Math.max(getPageHeight(leftBitmap, leftTiles), rightBitmap == null ? 0:getPageHeight(rightBitmap, rightTiles));
+	}
+
+	/**
+	 * @return true if both spreads display the same bitmaps
+	 */
+	boolean hasSamePages(PageSpread spread) {
+		return spread != null && leftBitmap == spread.leftBitmap && leftTiles == spread.leftTiles && rightBitmap == spread.rightBitmap && rightTiles == spread.rightTiles;
+	}
+
+	/**
+	 * Keep bitmaps out of pool while spread is displayed, drop must be called after
+	 *
+	 * @return false if a bitmap is already released, spread can't be displayed
+	 */
+	boolean retain() {
+		if (!BitmapPool.retain(leftBitmap)) return false;
+
+		if (rightBitmap != null && !BitmapPool.retain(rightBitmap)) {
+			BitmapPool.drop(leftBitmap);
+			return false;
+		}
+
+		return true;
+	}
+
+	/**
+	 * Spread is not displayed anymore, its bitmaps can be reused once released
+	 */
+	void drop() {
+		BitmapPool.drop(leftBitmap);
+
+		if (rightBitmap != null) BitmapPool.drop(rightBitmap);
+	}
+
+	/**
+	 * @return true if a bitmap has been recycled or given back to pool, and it shouldn't be displayed
+	 */
+	boolean isReleased() {
+		return isReleased(leftBitmap, leftTiles) || (rightBitmap != null && isReleased(rightBitmap, rightTiles));
+	}
+
+	/**
+	 * Draw a part of spread, by tiles if a page is too large
+	 *
+	 * @param src Part of spread to draw
+	 * @param dst Position on canvas, with the same size as src
+	 * @param view View to invalidate when missing tiles are decoded
+	 */
+	void draw(Canvas canvas, Rect src, Rect dst, View view) {
+		final int leftWidth = getPageWidth(leftBitmap, leftTiles);
+
+		drawPage(canvas, leftBitmap, leftTiles, 0, src, dst, view);
+
+		if (rightBitmap != null) drawPage(canvas, rightBitmap, rightTiles, leftWidth, src, dst, view);
+	}
+
+	/**
+	 * Draw the part of src covered by a page
+	 *
+	 * @param left Position of page in spread
+	 */
+	private void drawPage(Canvas canvas, Bitmap bitmap, PageTiles tiles, int left, Rect src, Rect dst, View view) {
+		mPageSrc.set(left, 0, left + getPageWidth(bitmap, tiles), getPageHeight(bitmap, tiles));
+
+		if (!mPageSrc.intersect(src)) return;
+
+		mPageDst.set(mPageSrc);
+		mPageDst.offset(dst.left - src.left, dst.top - src.top);
+
+		// coordinates in page
+		mPageSrc.offset(-left, 0);
+
+		if (tiles != null) {
+			tiles.draw(canvas, bitmap, mPageSrc, mPageDst, view);
+		} else {
+			canvas.drawBitmap(bitmap, mPageSrc, mPageDst, null);
+		}
+	}
+
+	private static int getPageWidth(Bitmap bitmap, PageTiles tiles) {
+		return tiles != null ? tiles.getWidth():bitmap.getWidth();
+	}
+
+	private static int getPageHeight(Bitmap bitmap, PageTiles tiles) {
+		return tiles != null ? tiles.getHeight():bitmap.getHeight();
+	}
+
+	private static boolean isReleased(Bitmap bitmap, PageTiles tiles) {
+		return BitmapPool.isReleased(bitmap) || (tiles != null && tiles.isClosed());
+	}
+}
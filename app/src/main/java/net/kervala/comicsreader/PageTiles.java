@@ -0,0 +1,343 @@
+/*
+ * ComicsReader is an Android application to read comics
+ * Copyright (C) 2011-2018 Cedric OCHS
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package net.kervala.comicsreader;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.util.Log;
+import android.view.View;
+
+/**
+ * Page too large to be decoded in a single bitmap, displayed by tiles
+ *
+ * Only visible tiles are decoded from the original image, in a background
+ * thread, and the least recently drawn ones are forgotten. Until a tile is
+ * decoded, a low resolution preview of the whole page is displayed instead.
+ *
+ * Without decoder, only the preview is displayed, stretched to page size.
+ */
+class PageTiles {
+	// width and height of a tile on screen
+	private static final int TILE_SIZE = 256;
+
+	// larger bitmaps can't be drawn by hardware accelerated canvas
+	private static final int MAX_BITMAP_SIZE = 4096;
+
+	private static Handler sHandler;
+
+	private final BitmapRegionDecoder mDecoder;
+	private final Bitmap.Config mConfig;
+	private final int mWidth;
+	private final int mHeight;
+	private final int mColumns;
+	private final int mMaxTiles;
+
+	// decoded tiles, least recently drawn first
+	private final LinkedHashMap<Integer, Bitmap> mTiles = new LinkedHashMap<Integer, Bitmap>(16, 0.75f, true);
+	// visible tiles not yet decoded
+	private final List<Integer> mPending = new ArrayList<Integer>();
+	private boolean mDecoding = false;
+	private boolean mClosed = false;
+	private WeakReference<View> mView;
+
+	private final Paint mPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+	private final Rect mTileRect = new Rect();
+	private final Rect mClipRect = new Rect();
+	private final Rect mPreviewRect = new Rect();
+
+	/**
+	 * @param decoder Decoder of the whole page, it belongs to tiles, or null to only display preview
+	 * @param width Width of displayed page
+	 * @param height Height of displayed page
+	 */
+	PageTiles(BitmapRegionDecoder decoder, int width, int height, Bitmap.Config config) {
+		mDecoder = decoder;
+		mConfig = config;
+		mWidth = width;
+		mHeight = height;
+		mColumns = (width + TILE_SIZE - 1) / TILE_SIZE;
+
+		// keep a bit more tiles than visible on screen, whatever the size of page
+		final int screenColumns = Math.max(ComicsParameters.sScreenWidth, TILE_SIZE) / TILE_SIZE + 2;
+		final int screenRows = Math.max(ComicsParameters.sScreenHeight, TILE_SIZE) / TILE_SIZE + 2;
+
+		mMaxTiles = screenColumns * screenRows * 3 / 2;
+	}
+
+	/**
+	 * @return true if a page of this size must be displayed by tiles
+	 */
+	static boolean isNeeded(int width, int height) {
+		if (width > MAX_BITMAP_SIZE || height > MAX_BITMAP_SIZE) return true;
+
+		final long screenPixels = (long)ComicsParameters.sScreenWidth * ComicsParameters.sScreenHeight;
+
+		// more than 2 screens
+		return screenPixels > 0 && (long)width * height > screenPixels * 2;
+	}
+
+	int getWidth() {
+		return mWidth;
+	}
+
+	int getHeight() {
+		return mHeight;
+	}
+
+	synchronized boolean isClosed() {
+		return mClosed;
+	}
+
+	/**
+	 * Forget all tiles and the decoder
+	 */
+	synchronized void close() {
+		if (mClosed) return;
+
+		mClosed = true;
+
+		for(Bitmap tile: mTiles.values()) {
+			BitmapPool.release(tile);
+		}
+
+		mTiles.clear();
+		mPending.clear();
+
+		// else decoding thread recycles it after current tile
+		if (!mDecoding) recycleDecoder();
+	}
+
+	private void recycleDecoder() {
+		if (mDecoder != null) mDecoder.recycle();
+	}
+
+	/**
+	 * Draw a part of page, missing tiles are replaced by preview and decoded later
+	 *
+	 * @param preview Whole page with a lower resolution
+	 * @param src Part of page to draw, with the displayed size
+	 * @param dst Position on canvas, with the same size as src
+	 * @param view View to invalidate when missing tiles are decoded
+	 */
+	synchronized void draw(Canvas canvas, Bitmap preview, Rect src, Rect dst, View view) {
+		if (mClosed || src.width() <= 0 || src.height() <= 0) return;
+
+		if (preview != null) {
+			mPreviewRect.set(src.left * preview.getWidth() / mWidth, src.top * preview.getHeight() / mHeight,
+				(src.right * preview.getWidth() + mWidth - 1) / mWidth, (src.bottom * preview.getHeight() + mHeight - 1) / mHeight);
+
+			canvas.drawBitmap(preview, mPreviewRect, dst, mPaint);
+		}
+
+		if (mDecoder == null) return;
+
+		final int dx = dst.left - src.left;
+		final int dy = dst.top - src.top;
+
+		// only request tiles visible now
+		mPending.clear();
+
+		for(int row = Math.max(src.top, 0) / TILE_SIZE; row <= Math.min(src.bottom - 1, mHeight - 1) / TILE_SIZE; ++row) {
+			for(int column = Math.max(src.left, 0) / TILE_SIZE; column <= Math.min(src.right - 1, mWidth - 1) / TILE_SIZE; ++column) {
+				final int key = row * mColumns + column;
+				final Bitmap tile = mTiles.get(key);
+
+				if (tile == null) {
+					mPending.add(key);
+					continue;
+				}
+
+				getTileRect(key, mTileRect);
+
+				mClipRect.set(mTileRect);
+
+				if (!mClipRect.intersect(src)) continue;
+
+				// don't draw over other pages
+				mClipRect.offset(dx, dy);
+				mTileRect.offset(dx, dy);
+
+				canvas.save();
+				canvas.clipRect(mClipRect);
+				canvas.drawBitmap(tile, null, mTileRect, null);
+				canvas.restore();
+			}
+		}
+
+		if (mPending.isEmpty()) return;
+
+		mView = new WeakReference<View>(view);
+
+		if (!mDecoding) {
+			mDecoding = true;
+
+			getHandler().post(mDecodeTiles);
+		}
+	}
+
+	private final Runnable mDecodeTiles = new Runnable() {
+		public void run() {
+			while(true) {
+				final int key;
+
+				synchronized(PageTiles.this) {
+					if (mClosed || mPending.isEmpty()) {
+						if (mClosed) recycleDecoder();
+
+						mDecoding = false;
+						return;
+					}
+
+					key = mPending.remove(0);
+
+					if (mTiles.containsKey(key)) continue;
+				}
+
+				final Bitmap tile = decodeTile(key);
+
+				if (tile == null) continue;
+
+				final View view;
+
+				synchronized(PageTiles.this) {
+					if (mClosed) {
+						BitmapPool.release(tile);
+						recycleDecoder();
+						mDecoding = false;
+						return;
+					}
+
+					mTiles.put(key, tile);
+
+					trimTiles();
+
+					view = mView == null ? null:mView.get();
+				}
+
+				if (view != null) view.postInvalidate();
+			}
+		}
+	};
+
+	private void trimTiles() {
+		final Iterator<Map.Entry<Integer, Bitmap>> it = mTiles.entrySet().iterator();
+
+		while(mTiles.size() > mMaxTiles && it.hasNext()) {
+			BitmapPool.release(it.next().getValue());
+			it.remove();
+		}
+	}
+
+	private void getTileRect(int key, Rect rect) {
+		final int left = (key % mColumns) * TILE_SIZE;
+		final int top = (key / mColumns) * TILE_SIZE;
+
+		rect.set(left, top, Math.min(left + TILE_SIZE, mWidth), Math.min(top + TILE_SIZE, mHeight));
+	}
+
+	/**
+	 * Decode a tile from the original image, with the displayed size
+	 */
+	private Bitmap decodeTile(int key) {
+		final Rect tileRect = new Rect();
+		getTileRect(key, tileRect);
+
+		final int srcWidth = mDecoder.getWidth();
+		final int srcHeight = mDecoder.getHeight();
+
+		// same part of original image
+		final Rect region = new Rect((int)((long)tileRect.left * srcWidth / mWidth), (int)((long)tileRect.top * srcHeight / mHeight),
+			(int)Math.min(((long)tileRect.right * srcWidth + mWidth - 1) / mWidth, srcWidth), (int)Math.min(((long)tileRect.bottom * srcHeight + mHeight - 1) / mHeight, srcHeight));
+
+		final BitmapFactory.Options options = new BitmapFactory.Options();
+
+		// use the largest power of 2 keeping at least the displayed resolution
+		options.inSampleSize = 1;
+
+		while(region.width() / (options.inSampleSize * 2) >= tileRect.width() && region.height() / (options.inSampleSize * 2) >= tileRect.height()) {
+			options.inSampleSize *= 2;
+		}
+
+		options.inPreferredConfig = mConfig;
+
+		BitmapPool.prepareDecode(options, region.width(), region.height());
+
+		Bitmap decoded = null;
+
+		try {
+			try {
+				decoded = mDecoder.decodeRegion(region, options);
+			} catch (IllegalArgumentException e) {
+				if (options.inBitmap == null) throw e;
+
+				// pooled bitmap can't be reused for this image
+				BitmapPool.release(options.inBitmap);
+				options.inBitmap = null;
+
+				decoded = mDecoder.decodeRegion(region, options);
+			}
+
+			if (decoded == null) {
+				if (options.inBitmap != null) BitmapPool.release(options.inBitmap);
+
+				Log.e(ComicsParameters.APP_TAG, "Unable to decode tile " + String.valueOf(key));
+				return null;
+			}
+
+			// tiles have exactly the displayed size, so memory used doesn't depend on original image
+			final Bitmap tile = BitmapPool.scale(decoded, tileRect.width(), tileRect.height());
+
+			if (tile != decoded) BitmapPool.release(decoded);
+
+			return tile;
+		} catch (OutOfMemoryError e) {
+			Log.e(ComicsParameters.APP_TAG, "OutOfMemoryError while decoding tile " + String.valueOf(key));
+		}
+
+		BitmapPool.release(decoded);
+
+		return null;
+	}
+
+	private static synchronized Handler getHandler() {
+		if (sHandler == null) {
+			final HandlerThread thread = new HandlerThread("ComicsReaderTiles", Process.THREAD_PRIORITY_BACKGROUND);
+			thread.start();
+
+			sHandler = new Handler(thread.getLooper());
+		}
+
+		return sHandler;
+	}
+}
@@ -21,21 +21,42 @@ package net.kervala.comicsreader;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 
 import android.util.Log;
 
-public class RarFile {
+public class RarFile implements ArchiveReader {
 	private String mName;
 	private List<String> mEntries = new ArrayList<String>();
+	private long [] mInfos;
+	private long mHandle = 0;
 	private static String mVersion;
 	private static boolean sLoaded = false;
 
+	// values returned by nativeGetInfos for each entry, must be the same in native code
+	private static final int INFO_SIZE = 0;
+	private static final int INFO_PACKED_SIZE = 1;
+	private static final int INFO_POSITION = 2;
+	private static final int INFO_SOLID = 3;
+	private static final int INFO_CRC = 4;
+	private static final int INFO_TIME = 5;
+	private static final int INFO_COUNT = 6;
+
 	// implemented by libunrar-jni.so
-	private static native String[] nativeGetEntries(String filename);
-	private static native byte[] nativeGetData(String filename, String entry);
+	private static native long nativeOpen(String filename, int threads);
+	private static native void nativeClose(long handle);
+	private static native String[] nativeGetEntries(long handle);
+	private static native long[] nativeGetInfos(long handle);
+	private static native byte[] nativeGetData(long handle, int index, LoadToken token);
+	private static native int nativeGetDataInto(long handle, int index, ByteBuffer buffer, LoadToken token);
+	private static native int nativeGetDataIntoArray(long handle, int index, byte[] array, int offset, LoadToken token);
+	private static native int nativeGetHeader(long handle, int index, byte[] array, LoadToken token);
+	private static native long nativeExtractToFile(long handle, int index, String filename, LoadToken token);
+	private static native boolean nativeIsSolid(long handle);
 	private static native String nativeGetVersion();
 	private static native void nativeTests();
 	private static native void nativeInit();
@@ -58,33 +79,66 @@ public class RarFile {
 	}
 	
 	public RarFile(File file) throws IOException {
-		if (file == null || !open(file.getAbsolutePath())) {
+		if (file == null || !open(file.getAbsolutePath(), 0)) {
 			throw new IOException();
 		}
 	}
 
 	public RarFile(String filename) throws IOException {
-		open(filename);
+		this(filename, 0);
+	}
+
+	/**
+	 * Open a RAR archive
+	 *
+	 * @param filename Archive filename
+	 * @param threads Number of threads to unpack RAR 5.0 entries, 0 for one per CPU core
+	 */
+	public RarFile(String filename, int threads) throws IOException {
+		if (!open(filename, threads)) {
+			throw new IOException();
+		}
 	}
 
-	private boolean open(String filename) throws IOException {
+	private boolean open(String filename, int threads) throws IOException {
 		if (filename == null) {
 			throw new IOException();
 		}
 
 		mName = filename;
 
-		return true;
+		// keep archive opened until close is called
+		if (sLoaded) {
+			try {
+				mHandle = nativeOpen(mName, threads);
+			} catch(OutOfMemoryError e) {
+				Log.e(ComicsParameters.APP_TAG, "Out of memory while opening " + mName);
+			}
+		}
+
+		return mHandle != 0;
 	}
 
-	public void close() {
+	public synchronized void close() {
+		if (mHandle != 0) {
+			nativeClose(mHandle);
+			mHandle = 0;
+		}
+
 		mEntries = null;
+		mInfos = null;
 		mName = null;
 	}
 
-	public List<String> entries() {
-		if (sLoaded && mEntries.isEmpty()) {
-			String [] entries = nativeGetEntries(mName);
+	public synchronized List<String> entries() {
+		if (mHandle != 0 && mEntries.isEmpty()) {
+			String [] entries = null;
+
+			try {
+				entries = nativeGetEntries(mHandle);
+			} catch(OutOfMemoryError e) {
+				Log.e(ComicsParameters.APP_TAG, "Out of memory while listing entries of " + mName);
+			}
 
 			// load all entries if not already processed
 			if (entries != null) {
@@ -94,24 +148,215 @@ public class RarFile {
 		return mEntries;
 	}
 
+	/**
+	 * Get a value of an entry, all entries are read with a single native call
+	 *
+	 * @return Value or -1 if unknown
+	 */
+	private synchronized long getInfo(int index, int info) {
+		if (mInfos == null && mHandle != 0) {
+			try {
+				mInfos = nativeGetInfos(mHandle);
+			} catch(OutOfMemoryError e) {
+				Log.e(ComicsParameters.APP_TAG, "Out of memory while reading entries of " + mName);
+			}
+		}
+
+		if (mInfos == null || index < 0 || (index + 1) * INFO_COUNT > mInfos.length) return -1;
+
+		return mInfos[index * INFO_COUNT + info];
+	}
+
 	byte [] getBytes(String entry) {
-		if (!sLoaded) return null;
+		return getBytes(entries().indexOf(entry));
+	}
+
+	synchronized byte [] getBytes(int index) {
+		if (mHandle == 0 || index < 0) return null;
 
 		try {
-			return nativeGetData(mName, entry);
+			return nativeGetData(mHandle, index, LoadToken.current());
 		} catch(OutOfMemoryError e) {
-			Log.e(ComicsParameters.APP_TAG, "Out of memory while getting file " + entry + " from " + mName);
+			Log.e(ComicsParameters.APP_TAG, "Out of memory while getting entry " + String.valueOf(index) + " from " + mName);
 		}
 
 		return null;
 	}
 
+	/**
+	 * @return true if loading of current thread was cancelled, it's not an error
+	 */
+	private static boolean isCancelled() {
+		final LoadToken token = LoadToken.current();
+
+		return token != null && token.isCancelled();
+	}
+
+	/**
+	 * Decompress an entry in a direct buffer from DirectBufferPool
+	 *
+	 * @param index Index of entry
+	 * @return Buffer to give back to DirectBufferPool or null if an error occurred
+	 */
+	synchronized ByteBuffer getByteBuffer(int index) {
+		if (mHandle == 0 || index < 0) return null;
+
+		final long size = getInfo(index, INFO_SIZE);
+
+		if (size < 1 || size > Integer.MAX_VALUE) return null;
+
+		final ByteBuffer buffer = DirectBufferPool.acquire((int)size);
+
+		if (buffer == null) return null;
+
+		// native code copies data directly in buffer memory
+		if (nativeGetDataInto(mHandle, index, buffer, LoadToken.current()) == size) return buffer;
+
+		if (!isCancelled()) Log.e(ComicsParameters.APP_TAG, "Unable to get entry " + String.valueOf(index) + " from " + mName);
+
+		DirectBufferPool.release(buffer);
+
+		return null;
+	}
+
+	/**
+	 * Decompress only the beginning of an entry, rest of entry is not decompressed
+	 *
+	 * @param index Index of entry
+	 * @param array Array to fill, entry is read until it's full
+	 * @return Number of bytes read or -1 if an error occurred or if archive is solid
+	 */
+	synchronized int getHeader(int index, byte [] array) {
+		if (mHandle == 0 || index < 0) return -1;
+
+		return nativeGetHeader(mHandle, index, array, LoadToken.current());
+	}
+
+	/**
+	 * Decompress an entry directly in a file, data never go through Java memory
+	 *
+	 * @param index Index of entry
+	 * @param file File to create, it's only created if entry is complete
+	 * @return true if entry was successfully saved
+	 */
+	synchronized boolean extractToFile(int index, File file) {
+		if (mHandle == 0 || index < 0) return false;
+
+		final File tmpFile = new File(file.getAbsolutePath() + ".tmp");
+
+		long size = -1;
+
+		try {
+			size = nativeExtractToFile(mHandle, index, tmpFile.getAbsolutePath(), LoadToken.current());
+		} catch(OutOfMemoryError e) {
+			Log.e(ComicsParameters.APP_TAG, "Out of memory while extracting entry " + String.valueOf(index) + " from " + mName);
+		}
+
+		// rename only when complete, so a page is never read partially
+		if (size >= 0 && size == getInfo(index, INFO_SIZE) && tmpFile.renameTo(file)) return true;
+
+		if (!isCancelled()) Log.e(ComicsParameters.APP_TAG, "Unable to extract entry " + String.valueOf(index) + " from " + mName + " to " + file.getAbsolutePath());
+
+		if (tmpFile.exists() && !tmpFile.delete()) {
+			Log.w(ComicsParameters.APP_TAG, "Unable to delete file " + tmpFile.getAbsolutePath());
+		}
+
+		return false;
+	}
+
+	public long getSize(int index) {
+		return getInfo(index, INFO_SIZE);
+	}
+
+	public long getCompressedSize(int index) {
+		return getInfo(index, INFO_PACKED_SIZE);
+	}
+
+	/**
+	 * @return Position of entry header in archive
+	 */
+	long getPosition(int index) {
+		return getInfo(index, INFO_POSITION);
+	}
+
+	/**
+	 * @return true if previous entries must be decompressed before this one or if unknown
+	 */
+	boolean isSolid(int index) {
+		return getInfo(index, INFO_SOLID) != 0;
+	}
+
+	/**
+	 * @return CRC32 of uncompressed data or -1 if archive uses another hash
+	 */
+	long getCrc(int index) {
+		return getInfo(index, INFO_CRC);
+	}
+
+	/**
+	 * @return Modification time of entry in milliseconds
+	 */
+	long getTime(int index) {
+		return getInfo(index, INFO_TIME);
+	}
+
+	public int getMethod(int index) {
+		return METHOD_OTHER;
+	}
+
+	public String getName(int index) {
+		return entries().get(index);
+	}
+
+	public InputStream openStream(int index) throws IOException {
+		final ByteBuffer buffer = getByteBuffer(index);
+
+		if (buffer == null) throw new IOException("Unable to get entry " + String.valueOf(index) + " from " + mName);
+
+		return new ByteBufferInputStream(buffer) {
+			@Override
+			public void close() {
+				// buffer can be reused by another entry
+				DirectBufferPool.release(buffer);
+			}
+		};
+	}
+
+	public synchronized int readInto(int index, ByteBuffer buffer) throws IOException {
+		if (mHandle == 0 || index < 0) throw new IOException("Archive " + mName + " is closed");
+
+		final long size = getInfo(index, INFO_SIZE);
+
+		if (size < 0 || buffer.remaining() < size) throw new IOException("Buffer too small for entry " + String.valueOf(index) + " of " + mName);
+
+		int read;
+
+		// native code writes at the beginning of direct buffers
+		if (buffer.isDirect()) {
+			read = nativeGetDataInto(mHandle, index, buffer.slice(), LoadToken.current());
+		} else if (buffer.hasArray()) {
+			read = nativeGetDataIntoArray(mHandle, index, buffer.array(), buffer.arrayOffset() + buffer.position(), LoadToken.current());
+		} else {
+			throw new IOException("Unsupported buffer for entry " + String.valueOf(index) + " of " + mName);
+		}
+
+		if (read != size) throw new IOException("Unable to get entry " + String.valueOf(index) + " from " + mName);
+
+		buffer.position(buffer.position() + read);
+
+		return read;
+	}
+
+	synchronized boolean isSolid() {
+		return mHandle != 0 && nativeIsSolid(mHandle);
+	}
+
 	public String getName() {
 		return mName;
 	}
 
 	public int size() {
-		return mEntries.size();
+		return entries().size();
 	}
 
 	// load our native library
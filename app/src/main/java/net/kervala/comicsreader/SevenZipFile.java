@@ -0,0 +1,904 @@
+/*
+ * ComicsReader is an Android application to read comics
+ * Copyright (C) 2011-2018 Cedric OCHS
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package net.kervala.comicsreader;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import android.util.Log;
+
+/**
+ * Read entries of a 7z archive
+ *
+ * 7z archives are made of folders (solid blocks), each one is compressed
+ * as a single stream containing several entries. Reading an entry needs to
+ * decompress all previous entries of its folder, so they should be read in
+ * folder order.
+ *
+ * Only folders with a single coder are supported: Copy, LZMA, LZMA2 and
+ * Deflate.
+ */
+class SevenZipFile implements ArchiveReader {
+	private static final byte [] SIGNATURE = { '7', 'z', (byte)0xBC, (byte)0xAF, 0x27, 0x1C };
+	private static final int SIGNATURE_HEADER_SIZE = 32;
+	private static final int INPUT_BUFFER_SIZE = 65536;
+
+	// properties of headers
+	private static final int ID_END = 0x00;
+	private static final int ID_HEADER = 0x01;
+	private static final int ID_ARCHIVE_PROPERTIES = 0x02;
+	private static final int ID_ADDITIONAL_STREAMS_INFO = 0x03;
+	private static final int ID_MAIN_STREAMS_INFO = 0x04;
+	private static final int ID_FILES_INFO = 0x05;
+	private static final int ID_PACK_INFO = 0x06;
+	private static final int ID_UNPACK_INFO = 0x07;
+	private static final int ID_SUBSTREAMS_INFO = 0x08;
+	private static final int ID_SIZE = 0x09;
+	private static final int ID_CRC = 0x0A;
+	private static final int ID_FOLDER = 0x0B;
+	private static final int ID_CODERS_UNPACK_SIZE = 0x0C;
+	private static final int ID_NUM_UNPACK_STREAM = 0x0D;
+	private static final int ID_EMPTY_STREAM = 0x0E;
+	private static final int ID_NAME = 0x11;
+	private static final int ID_ENCODED_HEADER = 0x17;
+
+	// coders
+	private static final int CODER_UNSUPPORTED = -1;
+	private static final int CODER_COPY = 0x00;
+	private static final int CODER_LZMA2 = 0x21;
+	private static final int CODER_LZMA = 0x030101;
+	private static final int CODER_DEFLATE = 0x040108;
+
+	private static class Folder {
+		int coder = CODER_UNSUPPORTED;
+		byte [] properties;
+		long packPosition;
+		long packSize;
+		long unpackSize;
+		boolean crcDefined;
+		// number of packed streams used by folder
+		int packedStreams;
+		// indices of entries in folder, in stream order
+		int [] entries = new int[0];
+	}
+
+	private static class StreamsInfo {
+		Folder [] folders = new Folder[0];
+		// number of entries in each folder
+		int [] unpackStreams;
+		// size of each entry in all folders
+		long [] unpackSizes;
+	}
+
+	private static class Entry {
+		String name;
+		long size;
+		int folder;
+		// position in uncompressed data of folder
+		long offset;
+	}
+
+	private String mName;
+	private RandomAccessFile mFile;
+	private FileChannel mChannel;
+	private Folder [] mFolders = new Folder[0];
+	private final List<Entry> mEntries = new ArrayList<Entry>();
+
+	SevenZipFile(String filename) throws IOException {
+		if (filename == null) {
+			throw new IOException();
+		}
+
+		mName = filename;
+		mFile = new RandomAccessFile(mName, "r");
+		mChannel = mFile.getChannel();
+
+		try {
+			readHeaders();
+		} catch (IOException e) {
+			close();
+			throw e;
+		} catch (BufferUnderflowException e) {
+			close();
+			throw new IOException("Truncated header in " + filename);
+		}
+	}
+
+	static boolean isSignature(byte [] header, int length) {
+		if (length < SIGNATURE.length) return false;
+
+		for(int i = 0; i < SIGNATURE.length; ++i) {
+			if (header[i] != SIGNATURE[i]) return false;
+		}
+
+		return true;
+	}
+
+	public void close() {
+		if (mFile != null) {
+			try {
+				mFile.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+
+			mFile = null;
+		}
+
+		mChannel = null;
+		mName = null;
+	}
+
+	public List<String> entries() {
+		List<String> entries = new ArrayList<String>();
+
+		for(Entry entry: mEntries) {
+			entries.add(entry.name);
+		}
+
+		return entries;
+	}
+
+	public int size() {
+		return mEntries.size();
+	}
+
+	public String getName(int index) {
+		return mEntries.get(index).name;
+	}
+
+	public long getSize(int index) {
+		return mEntries.get(index).size;
+	}
+
+	public long getCompressedSize(int index) {
+		final Folder folder = mFolders[mEntries.get(index).folder];
+
+		// only known when entry is alone in its folder
+		return folder.entries.length == 1 ? folder.packSize:-1;
+	}
+
+	public int getMethod(int index) {
+		return mFolders[mEntries.get(index).folder].coder == CODER_COPY ? METHOD_STORED:METHOD_OTHER;
+	}
+
+	/**
+	 * @return Folder containing an entry
+	 */
+	int getFolder(int index) {
+		return mEntries.get(index).folder;
+	}
+
+	/**
+	 * @return Entries of a folder in the order they are decompressed
+	 */
+	int [] getFolderEntries(int folder) {
+		return mFolders[folder].entries;
+	}
+
+	/**
+	 * @return true if reading entry needs to decompress other entries
+	 */
+	boolean isSolid(int index) {
+		return mFolders[mEntries.get(index).folder].entries.length > 1;
+	}
+
+	/**
+	 * Open a stream on uncompressed data of a whole folder, caller must close it
+	 */
+	InputStream openFolder(int folder) throws IOException {
+		if (mChannel == null) throw new IOException("Archive is closed");
+
+		return openFolder(mFolders[folder]);
+	}
+
+	public InputStream openStream(int index) throws IOException {
+		final Entry entry = mEntries.get(index);
+
+		final InputStream input = openFolder(entry.folder);
+
+		try {
+			// previous entries of folder must be decompressed
+			skipFully(input, entry.offset);
+		} catch (IOException e) {
+			input.close();
+			throw e;
+		}
+
+		// decompressed while read, without copying the whole entry
+		return new EntryInputStream(input, entry.size);
+	}
+
+	public int readInto(int index, ByteBuffer buffer) throws IOException {
+		final Entry entry = mEntries.get(index);
+
+		if (buffer.remaining() < entry.size) throw new IOException("Buffer too small for " + entry.name);
+
+		final InputStream input = openFolder(entry.folder);
+
+		try {
+			// previous entries of folder must be decompressed
+			skipFully(input, entry.offset);
+
+			final byte [] data = buffer.hasArray() ? buffer.array():new byte[INPUT_BUFFER_SIZE];
+
+			long remaining = entry.size;
+
+			while(remaining > 0) {
+				final int count;
+
+				if (buffer.hasArray()) {
+					count = input.read(data, buffer.arrayOffset() + buffer.position(), (int)remaining);
+
+					if (count > 0) buffer.position(buffer.position() + count);
+				} else {
+					count = input.read(data, 0, (int)Math.min(data.length, remaining));
+
+					if (count > 0) buffer.put(data, 0, count);
+				}
+
+				if (count < 0) throw new EOFException("Unexpected end of " + entry.name);
+
+				remaining -= count;
+			}
+		} finally {
+			input.close();
+		}
+
+		return (int)entry.size;
+	}
+
+	/**
+	 * Stream stopping at the end of an entry in a folder
+	 */
+	private static class EntryInputStream extends FilterInputStream {
+		private long mRemaining;
+
+		EntryInputStream(InputStream input, long size) {
+			super(input);
+
+			mRemaining = size;
+		}
+
+		@Override
+		public int available() throws IOException {
+			return (int)Math.min(super.available(), mRemaining);
+		}
+
+		@Override
+		public int read() throws IOException {
+			if (mRemaining <= 0) return -1;
+
+			final int b = super.read();
+
+			if (b >= 0) --mRemaining;
+
+			return b;
+		}
+
+		@Override
+		public int read(byte [] buffer, int offset, int length) throws IOException {
+			if (mRemaining <= 0) return -1;
+
+			final int count = super.read(buffer, offset, (int)Math.min(length, mRemaining));
+
+			if (count > 0) mRemaining -= count;
+
+			return count;
+		}
+
+		@Override
+		public long skip(long count) throws IOException {
+			final long skipped = super.skip(Math.min(count, mRemaining));
+
+			if (skipped > 0) mRemaining -= skipped;
+
+			return skipped;
+		}
+
+		@Override
+		public boolean markSupported() {
+			return false;
+		}
+	}
+
+	static void skipFully(InputStream input, long count) throws IOException {
+		while(count > 0) {
+			final long skipped = input.skip(count);
+
+			if (skipped <= 0) {
+				// InputStream.skip of decompressing streams can return 0 before the end
+				if (input.read() < 0) throw new EOFException("Unexpected end of stream");
+
+				--count;
+			} else {
+				count -= skipped;
+			}
+		}
+	}
+
+	private static InputStream openDeflate(InputStream input) {
+		final Inflater inflater = new Inflater(true);
+
+		return new InflaterInputStream(input, inflater, INPUT_BUFFER_SIZE) {
+			@Override
+			public void close() throws IOException {
+				super.close();
+
+				// inflater is not released when it's not the default one
+				inflater.end();
+			}
+		};
+	}
+
+	private InputStream openFolder(Folder folder) throws IOException {
+		final InputStream input = new BufferedInputStream(new ChannelInputStream(mChannel, folder.packPosition, folder.packSize), INPUT_BUFFER_SIZE);
+
+		try {
+			switch(folder.coder) {
+				case CODER_COPY: return input;
+				case CODER_LZMA: return new LzmaInputStream(input, folder.properties, folder.unpackSize, false);
+				case CODER_LZMA2: return new LzmaInputStream(input, folder.properties, folder.unpackSize, true);
+				case CODER_DEFLATE: return openDeflate(input);
+				default: break;
+			}
+		} catch (IOException e) {
+			input.close();
+			throw e;
+		}
+
+		input.close();
+
+		throw new IOException("Unsupported compression method in " + mName);
+	}
+
+	private void readHeaders() throws IOException {
+		final ByteBuffer start = readBuffer(0, SIGNATURE_HEADER_SIZE);
+
+		if (!isSignature(start.array(), SIGNATURE_HEADER_SIZE)) throw new IOException(mName + " is not a 7z archive");
+
+		start.position(12);
+
+		final long nextHeaderOffset = start.getLong();
+		final long nextHeaderSize = start.getLong();
+		final int nextHeaderCrc = start.getInt();
+
+		// empty archive
+		if (nextHeaderSize == 0) return;
+
+		if (nextHeaderOffset < 0 || nextHeaderSize > Integer.MAX_VALUE || SIGNATURE_HEADER_SIZE + nextHeaderOffset + nextHeaderSize > mChannel.size()) {
+			throw new IOException("Wrong header position in " + mName);
+		}
+
+		ByteBuffer header = readBuffer(SIGNATURE_HEADER_SIZE + nextHeaderOffset, (int)nextHeaderSize);
+
+		final CRC32 crc = new CRC32();
+		crc.update(header.array());
+
+		if ((int)crc.getValue() != nextHeaderCrc) throw new IOException("Wrong header CRC in " + mName);
+
+		int type = header.get();
+
+		// header is usually compressed
+		while(type == ID_ENCODED_HEADER) {
+			final StreamsInfo info = readStreamsInfo(header);
+
+			if (info.folders.length == 0 || info.folders[0].unpackSize > Integer.MAX_VALUE) throw new IOException("Wrong encoded header in " + mName);
+
+			final Folder folder = info.folders[0];
+			final byte [] data = new byte[(int)folder.unpackSize];
+			final InputStream input = openFolder(folder);
+
+			try {
+				int read = 0;
+
+				while(read < data.length) {
+					final int count = input.read(data, read, data.length - read);
+
+					if (count < 0) throw new EOFException("Unexpected end of header in " + mName);
+
+					read += count;
+				}
+			} finally {
+				input.close();
+			}
+
+			header = ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+			type = header.get();
+		}
+
+		if (type != ID_HEADER) throw new IOException("Wrong header in " + mName);
+
+		StreamsInfo info = new StreamsInfo();
+
+		type = header.get();
+
+		if (type == ID_ARCHIVE_PROPERTIES) {
+			while(header.get() != ID_END) {
+				skip(header, readNumber(header));
+			}
+
+			type = header.get();
+		}
+
+		if (type == ID_ADDITIONAL_STREAMS_INFO) throw new IOException("Additional streams are not supported in " + mName);
+
+		if (type == ID_MAIN_STREAMS_INFO) {
+			info = readStreamsInfo(header);
+			type = header.get();
+		}
+
+		if (type == ID_FILES_INFO) {
+			readFilesInfo(header, info);
+			type = header.get();
+		}
+
+		if (type != ID_END) throw new IOException("Wrong header in " + mName);
+
+		mFolders = info.folders;
+	}
+
+	private ByteBuffer readBuffer(long position, int size) throws IOException {
+		final ByteBuffer buffer = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+
+		while(buffer.hasRemaining()) {
+			if (mChannel.read(buffer, position + buffer.position()) < 0) throw new EOFException("Unexpected end of " + mName);
+		}
+
+		buffer.flip();
+
+		return buffer;
+	}
+
+	private StreamsInfo readStreamsInfo(ByteBuffer header) throws IOException {
+		final StreamsInfo info = new StreamsInfo();
+
+		long packPosition = 0;
+		long [] packSizes = new long[0];
+
+		int type = header.get();
+
+		if (type == ID_PACK_INFO) {
+			packPosition = readNumber(header);
+			packSizes = new long[readCount(header)];
+
+			type = header.get();
+
+			if (type == ID_SIZE) {
+				for(int i = 0; i < packSizes.length; ++i) {
+					packSizes[i] = readNumber(header);
+				}
+
+				type = header.get();
+			}
+
+			if (type == ID_CRC) {
+				readDigests(header, packSizes.length);
+				type = header.get();
+			}
+
+			if (type != ID_END) throw new IOException("Wrong pack info in " + mName);
+
+			type = header.get();
+		}
+
+		if (type == ID_UNPACK_INFO) {
+			readUnpackInfo(header, info);
+			type = header.get();
+		}
+
+		// by default, each folder contains one entry
+		info.unpackStreams = new int[info.folders.length];
+		info.unpackSizes = new long[info.folders.length];
+
+		for(int i = 0; i < info.folders.length; ++i) {
+			info.unpackStreams[i] = 1;
+			info.unpackSizes[i] = info.folders[i].unpackSize;
+		}
+
+		if (type == ID_SUBSTREAMS_INFO) {
+			readSubStreamsInfo(header, info);
+			type = header.get();
+		}
+
+		if (type != ID_END) throw new IOException("Wrong streams info in " + mName);
+
+		// folders use packed streams in order
+		long position = SIGNATURE_HEADER_SIZE + packPosition;
+		int packIndex = 0;
+
+		for(Folder folder: info.folders) {
+			if (packIndex + folder.packedStreams > packSizes.length) throw new IOException("Wrong packed streams in " + mName);
+
+			folder.packPosition = position;
+			folder.packSize = folder.packedStreams > 0 ? packSizes[packIndex]:0;
+
+			for(int i = 0; i < folder.packedStreams; ++i) {
+				position += packSizes[packIndex++];
+			}
+		}
+
+		return info;
+	}
+
+	private void readUnpackInfo(ByteBuffer header, StreamsInfo info) throws IOException {
+		if (header.get() != ID_FOLDER) throw new IOException("Wrong unpack info in " + mName);
+
+		info.folders = new Folder[readCount(header)];
+
+		if (header.get() != 0) throw new IOException("External folders are not supported in " + mName);
+
+		// index of main output stream of each folder
+		final int [] mainOutStreams = new int[info.folders.length];
+		final int [] foldersOutStreams = new int[info.folders.length];
+
+		for(int i = 0; i < info.folders.length; ++i) {
+			final Folder folder = new Folder();
+
+			final int coders = readCount(header);
+
+			int totalInStreams = 0;
+			int totalOutStreams = 0;
+			int coderId = CODER_UNSUPPORTED;
+			byte [] properties = null;
+
+			for(int j = 0; j < coders; ++j) {
+				final int flags = header.get() & 0xff;
+
+				if ((flags & 0x80) != 0) throw new IOException("Alternative coders are not supported in " + mName);
+
+				final int idSize = flags & 0x0F;
+
+				long id = 0;
+
+				for(int k = 0; k < idSize; ++k) {
+					id = (id << 8) | (header.get() & 0xff);
+				}
+
+				int inStreams = 1;
+				int outStreams = 1;
+
+				if ((flags & 0x10) != 0) {
+					inStreams = readCount(header);
+					outStreams = readCount(header);
+				}
+
+				if ((flags & 0x20) != 0) {
+					properties = new byte[readCount(header)];
+					header.get(properties);
+				}
+
+				totalInStreams += inStreams;
+				totalOutStreams += outStreams;
+
+				coderId = id > Integer.MAX_VALUE ? CODER_UNSUPPORTED:(int)id;
+			}
+
+			if (totalOutStreams == 0) throw new IOException("Wrong folder in " + mName);
+
+			final boolean [] boundOutStreams = new boolean[totalOutStreams];
+
+			// coders chained together
+			for(int j = 0; j < totalOutStreams - 1; ++j) {
+				readNumber(header);
+
+				final int outIndex = readCount(header);
+
+				if (outIndex >= totalOutStreams) throw new IOException("Wrong bind pair in " + mName);
+
+				boundOutStreams[outIndex] = true;
+			}
+
+			folder.packedStreams = totalInStreams - (totalOutStreams - 1);
+
+			if (folder.packedStreams > 1) {
+				for(int j = 0; j < folder.packedStreams; ++j) {
+					readNumber(header);
+				}
+			}
+
+			for(int j = 0; j < totalOutStreams; ++j) {
+				if (!boundOutStreams[j]) {
+					mainOutStreams[i] = j;
+					break;
+				}
+			}
+
+			foldersOutStreams[i] = totalOutStreams;
+
+			// filters like BCJ and encryption are not supported
+			if (coders == 1 && totalInStreams == 1 && totalOutStreams == 1 &&
+					(coderId == CODER_COPY || coderId == CODER_LZMA || coderId == CODER_LZMA2 || coderId == CODER_DEFLATE)) {
+				folder.coder = coderId;
+				folder.properties = properties;
+			}
+
+			info.folders[i] = folder;
+		}
+
+		if (header.get() != ID_CODERS_UNPACK_SIZE) throw new IOException("Wrong unpack info in " + mName);
+
+		for(int i = 0; i < info.folders.length; ++i) {
+			for(int j = 0; j < foldersOutStreams[i]; ++j) {
+				final long size = readNumber(header);
+
+				if (j == mainOutStreams[i]) info.folders[i].unpackSize = size;
+			}
+		}
+
+		int type = header.get();
+
+		if (type == ID_CRC) {
+			final boolean [] defined = readDigests(header, info.folders.length);
+
+			for(int i = 0; i < info.folders.length; ++i) {
+				info.folders[i].crcDefined = defined[i];
+			}
+
+			type = header.get();
+		}
+
+		if (type != ID_END) throw new IOException("Wrong unpack info in " + mName);
+	}
+
+	private void readSubStreamsInfo(ByteBuffer header, StreamsInfo info) throws IOException {
+		int type = header.get();
+
+		if (type == ID_NUM_UNPACK_STREAM) {
+			for(int i = 0; i < info.folders.length; ++i) {
+				info.unpackStreams[i] = readCount(header);
+			}
+
+			type = header.get();
+		}
+
+		int total = 0;
+
+		for(int streams: info.unpackStreams) {
+			total += streams;
+		}
+
+		info.unpackSizes = new long[total];
+
+		int index = 0;
+
+		for(int i = 0; i < info.folders.length; ++i) {
+			final int streams = info.unpackStreams[i];
+
+			if (streams == 0) continue;
+
+			long sum = 0;
+
+			// size of last entry is deduced from folder size
+			if (type == ID_SIZE) {
+				for(int j = 0; j < streams - 1; ++j) {
+					final long size = readNumber(header);
+
+					info.unpackSizes[index++] = size;
+					sum += size;
+				}
+			}
+
+			info.unpackSizes[index++] = info.folders[i].unpackSize - sum;
+		}
+
+		if (type == ID_SIZE) type = header.get();
+
+		// CRCs of entries not already known from their folder
+		int digests = 0;
+
+		for(int i = 0; i < info.folders.length; ++i) {
+			if (info.unpackStreams[i] != 1 || !info.folders[i].crcDefined) digests += info.unpackStreams[i];
+		}
+
+		while(type != ID_END) {
+			if (type != ID_CRC) throw new IOException("Wrong substreams info in " + mName);
+
+			readDigests(header, digests);
+			type = header.get();
+		}
+	}
+
+	private void readFilesInfo(ByteBuffer header, StreamsInfo info) throws IOException {
+		final int count = readCount(header);
+
+		final String [] names = new String[count];
+		boolean [] emptyStreams = new boolean[count];
+
+		while(true) {
+			final long type = readNumber(header);
+
+			if (type == ID_END) break;
+
+			final long size = readNumber(header);
+
+			if (size > header.remaining()) throw new IOException("Wrong files info in " + mName);
+
+			final int end = header.position() + (int)size;
+
+			if (type == ID_EMPTY_STREAM) {
+				emptyStreams = readBits(header, count);
+			} else if (type == ID_NAME) {
+				if (header.get() != 0) throw new IOException("External names are not supported in " + mName);
+
+				// names are in UTF-16 and ended by a 0
+				for(int i = 0; i < count; ++i) {
+					final StringBuilder name = new StringBuilder();
+
+					char c;
+
+					while((c = header.getChar()) != 0) {
+						name.append(c);
+					}
+
+					names[i] = name.toString().replace('\\', '/');
+				}
+			}
+
+			// times, attributes and other properties are not used
+			header.position(end);
+		}
+
+		int folder = 0;
+		int stream = 0;
+		int streamInFolder = 0;
+		long offset = 0;
+
+		final List<List<Integer>> folderEntries = new ArrayList<List<Integer>>();
+
+		for(int i = 0; i < info.folders.length; ++i) {
+			folderEntries.add(new ArrayList<Integer>());
+		}
+
+		for(int i = 0; i < count; ++i) {
+			// directories and empty files
+			if (emptyStreams[i]) continue;
+
+			while(folder < info.folders.length && info.unpackStreams[folder] == 0) ++folder;
+
+			if (folder >= info.folders.length || stream >= info.unpackSizes.length) throw new IOException("Wrong number of entries in " + mName);
+
+			final Entry entry = new Entry();
+			entry.name = names[i] == null ? "":names[i];
+			entry.size = info.unpackSizes[stream++];
+			entry.folder = folder;
+			entry.offset = offset;
+
+			folderEntries.get(folder).add(mEntries.size());
+			mEntries.add(entry);
+
+			offset += entry.size;
+
+			if (++streamInFolder >= info.unpackStreams[folder]) {
+				++folder;
+				streamInFolder = 0;
+				offset = 0;
+			}
+		}
+
+		for(int i = 0; i < info.folders.length; ++i) {
+			final List<Integer> entries = folderEntries.get(i);
+			final int [] indices = new int[entries.size()];
+
+			for(int j = 0; j < indices.length; ++j) {
+				indices[j] = entries.get(j);
+			}
+
+			info.folders[i].entries = indices;
+
+			if (info.folders[i].coder == CODER_UNSUPPORTED) {
+				Log.w(ComicsParameters.APP_TAG, "Unsupported compression method for " + String.valueOf(indices.length) + " entries of " + mName);
+			}
+		}
+	}
+
+	/**
+	 * @return CRCs defined for each element, values are not used
+	 */
+	private static boolean [] readDigests(ByteBuffer header, int count) {
+		boolean [] defined;
+
+		if (header.get() != 0) {
+			defined = new boolean[count];
+
+			for(int i = 0; i < count; ++i) {
+				defined[i] = true;
+			}
+		} else {
+			defined = readBits(header, count);
+		}
+
+		for(boolean d: defined) {
+			if (d) header.getInt();
+		}
+
+		return defined;
+	}
+
+	private static boolean [] readBits(ByteBuffer header, int count) {
+		final boolean [] bits = new boolean[count];
+
+		int mask = 0;
+		int b = 0;
+
+		for(int i = 0; i < count; ++i) {
+			if (mask == 0) {
+				b = header.get() & 0xff;
+				mask = 0x80;
+			}
+
+			bits[i] = (b & mask) != 0;
+			mask >>>= 1;
+		}
+
+		return bits;
+	}
+
+	private static void skip(ByteBuffer header, long count) throws IOException {
+		if (count > header.remaining()) throw new IOException("Wrong property size");
+
+		header.position(header.position() + (int)count);
+	}
+
+	private static int readCount(ByteBuffer header) throws IOException {
+		final long count = readNumber(header);
+
+		// each element uses at least one byte
+		if (count < 0 || count > header.capacity()) throw new IOException("Wrong number of elements " + String.valueOf(count));
+
+		return (int)count;
+	}
+
+	/**
+	 * Read a number encoded on 1 to 9 bytes, number of bytes is given by first byte
+	 */
+	private static long readNumber(ByteBuffer header) {
+		final int first = header.get() & 0xff;
+
+		int mask = 0x80;
+		long value = 0;
+
+		for(int i = 0; i < 8; ++i) {
+			if ((first & mask) == 0) {
+				final long high = first & (mask - 1);
+
+				return value | (high << (8 * i));
+			}
+
+			value |= (long)(header.get() & 0xff) << (8 * i);
+			mask >>>= 1;
+		}
+
+		return value;
+	}
+}
@@ -19,24 +19,55 @@
 
 package net.kervala.comicsreader;
 
-import java.io.BufferedInputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+
+import android.util.Log;
+
+public class TarFile implements ArchiveReader {
+	static final int BLOCK_SIZE = 512;
+
+	// offsets and lengths of fields in a header block
+	private static final int NAME_OFFSET = 0;
+	private static final int NAME_LENGTH = 100;
+	private static final int SIZE_OFFSET = 124;
+	private static final int SIZE_LENGTH = 12;
+	private static final int CHECKSUM_OFFSET = 148;
+	private static final int CHECKSUM_LENGTH = 8;
+	private static final int TYPE_OFFSET = 156;
+	private static final int MAGIC_OFFSET = 257;
+	private static final int PREFIX_OFFSET = 345;
+	private static final int PREFIX_LENGTH = 155;
+
+	private static final byte TYPE_FILE = '0';
+	private static final byte TYPE_OLD_FILE = 0;
+	private static final byte TYPE_CONTIGUOUS_FILE = '7';
+	private static final byte TYPE_GNU_LONG_NAME = 'L';
+	private static final byte TYPE_PAX_HEADER = 'x';
+
+	// a long name or its PAX header never needs more, larger ones are corrupted
+	private static final int MAX_EXTENDED_HEADER_SIZE = 64 * 1024;
 
-public class TarFile {
 	private class TarEntry {
 		String filename;
-		int offset = 0;
-		int filesize = 0;
+		long offset = 0;
+		long filesize = 0;
 	}
 
 	protected String mName;
 	protected List<TarEntry> mEntries = new ArrayList<TarEntry>();
+	private Map<String, TarEntry> mIndex = new HashMap<String, TarEntry>();
+	private RandomAccessFile mFile;
+	protected FileChannel mChannel;
 
 	public TarFile(File file) throws IOException {
 		if (file == null || !open(file.getAbsolutePath())) {
@@ -45,21 +76,72 @@ public class TarFile {
 	}
 
 	public TarFile(String filename) throws IOException {
-		open(filename);
+		if (!open(filename)) {
+			throw new IOException();
+		}
+	}
+
+	/**
+	 * Reuse entries from a previous reading of archive
+	 */
+	public TarFile(String filename, String [] names, long [] offsets, long [] sizes) throws IOException {
+		openFile(filename);
+		setEntries(names, offsets, sizes);
 	}
 
-	private boolean open(String filename) throws IOException {
+	/**
+	 * Used by derived classes which must be initialized before reading entries
+	 */
+	protected TarFile() {
+	}
+
+	protected void openFile(String filename) throws IOException {
 		if (filename == null) {
 			throw new IOException();
 		}
-		
+
 		mName = filename;
 
-		return readEntries();
+		// keep file opened to read pages at their positions
+		mFile = new RandomAccessFile(mName, "r");
+		mChannel = mFile.getChannel();
+	}
+
+	protected void setEntries(String [] names, long [] offsets, long [] sizes) {
+		for(int i = 0; i < names.length; ++i) {
+			TarEntry entry = new TarEntry();
+			entry.filename = names[i];
+			entry.offset = offsets[i];
+			entry.filesize = sizes[i];
+			mEntries.add(entry);
+			mIndex.put(entry.filename, entry);
+		}
+	}
+
+	protected boolean open(String filename) throws IOException {
+		openFile(filename);
+
+		if (readEntries()) return true;
+
+		close();
+
+		return false;
 	}
 
 	public void close() {
+		if (mFile != null) {
+			try {
+				mFile.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+
+			mFile = null;
+			mChannel = null;
+		}
+
 		mEntries = null;
+		mIndex = null;
 		mName = null;
 	}
 
@@ -74,32 +156,76 @@ public class TarFile {
 	}
 
 	public byte [] getBytes(String entry) {
-		byte [] buffer = null;
-		
-		for(TarEntry ent: mEntries) {
-			if (ent.filename != null && ent.filename.equals(entry)) {
-				File file = new File(mName);
-
-				try {
-					InputStream is = new FileInputStream(file);
-					BufferedInputStream in = new BufferedInputStream(is);
-
-					if (in.skip(ent.offset) == ent.offset) {
-						buffer = ComicsHelpers.inputStreamToBytes(in, ent.filesize);
-					}
-					
-					is.close();
-				} catch (FileNotFoundException e) {
-					e.printStackTrace();
-				} catch (IOException e) {
-					e.printStackTrace();
-				}
-			
-				break;
-			}
+		final TarEntry ent = mIndex.get(entry);
+
+		if (ent == null || mChannel == null) return null;
+
+		if (ent.filesize > Integer.MAX_VALUE) {
+			Log.e(ComicsParameters.APP_TAG, "File " + entry + " is too large: " + String.valueOf(ent.filesize) + " bytes");
+			return null;
+		}
+
+		byte [] buffer;
+
+		try {
+			buffer = new byte[(int)ent.filesize];
+		} catch (OutOfMemoryError e) {
+			Log.e(ComicsParameters.APP_TAG, "OutOfMemoryError while allocating a buffer of " + String.valueOf(ent.filesize) + " bytes");
+			return null;
 		}
 
-		return buffer;
+		try {
+			// only one positioned read, FileChannel is safe to use from several threads
+			if (readFully(ByteBuffer.wrap(buffer), ent.offset)) return buffer;
+
+			Log.e(ComicsParameters.APP_TAG, "Unable to read " + entry + " from " + mName);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+
+		return null;
+	}
+
+	long getOffset(int index) {
+		return mEntries.get(index).offset;
+	}
+
+	public String getName(int index) {
+		return mEntries.get(index).filename;
+	}
+
+	public long getSize(int index) {
+		return mEntries.get(index).filesize;
+	}
+
+	public long getCompressedSize(int index) {
+		return mEntries.get(index).filesize;
+	}
+
+	public int getMethod(int index) {
+		return METHOD_STORED;
+	}
+
+	public InputStream openStream(int index) throws IOException {
+		final TarEntry ent = mEntries.get(index);
+
+		return new ChannelInputStream(mChannel, ent.offset, ent.filesize);
+	}
+
+	public int readInto(int index, ByteBuffer buffer) throws IOException {
+		final TarEntry ent = mEntries.get(index);
+
+		if (buffer.remaining() < ent.filesize) throw new IOException("Buffer too small for " + ent.filename);
+
+		// read directly in buffer
+		final ByteBuffer data = buffer.slice();
+		data.limit((int)ent.filesize);
+
+		if (!readFully(data, ent.offset)) throw new IOException("Unable to read " + ent.filename + " from " + mName);
+
+		buffer.position(buffer.position() + (int)ent.filesize);
+
+		return (int)ent.filesize;
 	}
 
 	public String getName() {
@@ -109,104 +235,219 @@ public class TarFile {
 	public int size() {
 		return mEntries.size();
 	}
-	
+
+	/**
+	 * @return Size of TAR data
+	 */
+	protected long length() throws IOException {
+		return mChannel.size();
+	}
+
+	/**
+	 * Read TAR data at a position until buffer is full
+	 *
+	 * @return false if end of data was reached before
+	 */
+	protected boolean readFully(ByteBuffer buffer, long position) throws IOException {
+		while(buffer.hasRemaining()) {
+			int read = mChannel.read(buffer, position);
+
+			if (read < 0) return false;
+
+			position += read;
+		}
+
+		return true;
+	}
+
+	private static String readString(byte [] block, int offset, int length) throws UnsupportedEncodingException {
+		int end = offset;
+
+		// strings are terminated by 0 only if shorter than the field
+		while(end < offset + length && block[end] != 0) ++end;
+
+		return new String(block, offset, end - offset, "UTF-8");
+	}
+
+	/**
+	 * Check if a block is a valid TAR header
+	 *
+	 * @param block Block data
+	 * @param length Number of bytes of block available, checksum is only checked on full blocks
+	 */
+	static boolean isHeader(byte [] block, int length) {
+		// name is ended by a 0
+		if (length <= 99 || block[NAME_OFFSET] == 0 || block[99] != 0) return false;
+
+		if (length < BLOCK_SIZE) return true;
+
+		long checksum = 0;
+
+		// checksum is an octal number padded with spaces or 0
+		for(int i = CHECKSUM_OFFSET; i < CHECKSUM_OFFSET + CHECKSUM_LENGTH; ++i) {
+			final byte b = block[i];
+
+			if (b >= '0' && b <= '7') {
+				checksum = (checksum << 3) + (b - '0');
+			} else if (b != ' ' || checksum > 0) {
+				break;
+			}
+		}
+
+		long sum = 0;
+
+		// sum of all header bytes with checksum field filled with spaces
+		for(int i = 0; i < BLOCK_SIZE; ++i) {
+			sum += (i >= CHECKSUM_OFFSET && i < CHECKSUM_OFFSET + CHECKSUM_LENGTH) ? ' ':(block[i] & 0xff);
+		}
+
+		return sum == checksum;
+	}
+
+	private static long readSize(byte [] block) {
+		// GNU extension for files larger than 8 GB, size is stored in big endian binary
+		if ((block[SIZE_OFFSET] & 0x80) != 0) {
+			long size = block[SIZE_OFFSET] & 0x7f;
+
+			for(int i = SIZE_OFFSET + 1; i < SIZE_OFFSET + SIZE_LENGTH; ++i) {
+				size = (size << 8) | (block[i] & 0xff);
+			}
+
+			return size;
+		}
+
+		long size = 0;
+
+		// octal number padded with spaces or 0
+		for(int i = SIZE_OFFSET; i < SIZE_OFFSET + SIZE_LENGTH; ++i) {
+			final byte b = block[i];
+
+			if (b >= '0' && b <= '7') {
+				size = (size << 3) + (b - '0');
+			} else if (b != ' ' || size > 0) {
+				break;
+			}
+		}
+
+		return size;
+	}
+
+	private static boolean isUstar(byte [] block) {
+		return block[MAGIC_OFFSET] == 'u' && block[MAGIC_OFFSET + 1] == 's' && block[MAGIC_OFFSET + 2] == 't' &&
+				block[MAGIC_OFFSET + 3] == 'a' && block[MAGIC_OFFSET + 4] == 'r';
+	}
+
+	private static String readPaxPath(byte [] data) throws UnsupportedEncodingException {
+		int pos = 0;
+
+		// each record is "<length> <key>=<value>\n"
+		while(pos < data.length) {
+			int space = pos;
+
+			while(space < data.length && data[space] != ' ') ++space;
+
+			int length;
+
+			try {
+				length = Integer.parseInt(new String(data, pos, space - pos, "UTF-8"));
+			} catch (NumberFormatException e) {
+				break;
+			}
+
+			if (length <= 0 || pos + length > data.length) break;
+
+			// record must contain at least the separator and the newline
+			if (space + 1 >= pos + length) break;
+
+			final String record = new String(data, space + 1, pos + length - space - 2, "UTF-8");
+
+			if (record.startsWith("path=")) return record.substring(5);
+
+			pos += length;
+		}
+
+		return null;
+	}
+
 	private boolean readEntries() {
-		byte [] bufferFilename = new byte[100];
-		byte [] bufferFilesize = new byte[12];
-		
-		BufferedInputStream in = null;
-		
-		File file = new File(mName);
-		
+		final byte [] block = new byte[BLOCK_SIZE];
+		final ByteBuffer blockBuffer = ByteBuffer.wrap(block);
+
 		boolean res = false;
-		int offset = 0;
-		
+		long offset = 0;
+
+		// name of next entry given by a GNU or PAX extended header
+		String longName = null;
+
 		try {
-			in = new BufferedInputStream(new FileInputStream(file));
+			while(offset + BLOCK_SIZE <= length()) {
+				blockBuffer.clear();
 
-			while(in.read(bufferFilename, 0, bufferFilename.length) == bufferFilename.length) {
-				String filename = new String(bufferFilename, "UTF-8");
+				if (!readFully(blockBuffer, offset)) break;
 
 				// we are in padding, this is the end
-				if (bufferFilename[0] == 0) {
+				if (block[NAME_OFFSET] == 0) {
 					res = true;
 					break;
 				}
 
-				int filesize = 0;
-				
-				// file mode
-				in.skip(8);
-
-				// owner
-				in.skip(8);
+				final long filesize = readSize(block);
+				final byte type = block[TYPE_OFFSET];
 
-				// group
-				in.skip(8);
+				// skip header
+				offset += BLOCK_SIZE;
 
-				if (in.read(bufferFilesize, 0, bufferFilesize.length) == bufferFilesize.length) {
-					String s = new String(bufferFilesize, "UTF-8");
-					
-					try {
-						filesize = Integer.parseInt(s.trim(), 8);
-					} catch(NumberFormatException e) {
+				if (type == TYPE_GNU_LONG_NAME || type == TYPE_PAX_HEADER) {
+					if (filesize <= 0 || filesize > MAX_EXTENDED_HEADER_SIZE) {
+						Log.e(ComicsParameters.APP_TAG, "Invalid extended header size " + String.valueOf(filesize) + " in " + mName);
 						break;
 					}
-				}
 
-				// date
-				in.skip(12);
+					final byte [] data = new byte[(int)filesize];
 
-				// checksum
-				in.skip(8);
+					if (!readFully(ByteBuffer.wrap(data), offset)) break;
 
-				// file type
-				in.skip(1);
+					if (type == TYPE_GNU_LONG_NAME) {
+						longName = readString(data, 0, data.length);
+					} else {
+						final String path = readPaxPath(data);
 
-				// linked filename
-				in.skip(100);
-				
-				// misc
-				in.skip(255);
-				
-				// skip header
-				offset += 512;
-				
-				if (filesize > 0) {
-					// skip file content
-					in.skip(filesize);
-					
-					int len = 512 - (filesize % 512);
-					
-					if (len > 0) {
-						in.skip(len);
+						if (path != null) longName = path;
 					}
+				} else {
+					if (filesize > 0 && (type == TYPE_FILE || type == TYPE_OLD_FILE || type == TYPE_CONTIGUOUS_FILE)) {
+						String filename = longName;
+
+						if (filename == null) {
+							filename = readString(block, NAME_OFFSET, NAME_LENGTH);
+
+							// ustar splits long names in 2 parts
+							if (isUstar(block) && block[PREFIX_OFFSET] != 0) {
+								filename = readString(block, PREFIX_OFFSET, PREFIX_LENGTH) + "/" + filename;
+							}
+						}
 
-					if (filename != null) {
 						TarEntry entry = new TarEntry();
 						entry.filename = filename.trim();
 						entry.filesize = filesize;
 						entry.offset = offset;
 						mEntries.add(entry);
+						mIndex.put(entry.filename, entry);
 					}
-					
-					offset += filesize + len;
+
+					longName = null;
 				}
+
+				// skip file content and padding
+				offset += (filesize + BLOCK_SIZE - 1) / BLOCK_SIZE * BLOCK_SIZE;
 			}
-		} catch (FileNotFoundException e) {
-			e.printStackTrace();
+
+			// some archives don't have padding at the end
+			if (offset >= length()) res = true;
 		} catch (IOException e) {
 			e.printStackTrace();
-		} finally {
-			if (in != null) {
-				try {
-					in.close();
-				} catch (IOException e) {
-					e.printStackTrace();
-				}
-			}
 		}
-		
+
 		return res;
 	}
 }
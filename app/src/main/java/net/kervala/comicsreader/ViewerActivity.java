@@ -32,7 +32,6 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.pm.ActivityInfo;
 import android.content.res.Resources;
-import android.graphics.Bitmap;
 import android.graphics.PixelFormat;
 import android.graphics.drawable.ColorDrawable;
 import android.graphics.drawable.Drawable;
@@ -634,21 +633,21 @@ public class ViewerActivity extends Activity implements OnTouchListener, FullScr
 		return mImageView.getBitmapHeight();
 	}
 
-	public void onUpdateNextPage(Bitmap bitmap) {
-		mImageView.setNextBitmap(bitmap);
+	public void onUpdateNextPage(PageSpread spread) {
+		mImageView.setNextSpread(spread);
 	}
 
-	public void onUpdatePreviousPage(Bitmap bitmap) {
-		mImageView.setPreviousBitmap(bitmap);
+	public void onUpdatePreviousPage(PageSpread spread) {
+		mImageView.setPreviousSpread(spread);
 	}
 
-	public void onUpdateCurrentPage(Bitmap bitmap) {
+	public void onUpdateCurrentPage(PageSpread spread) {
 		mImageView.setOffset(0);
 
 		// automatically rotate the screen to best fit the image
-		if (bitmap != null && AlbumParameters.autoRotate)
+		if (spread != null && AlbumParameters.autoRotate)
 		{
-			if (bitmap.getWidth() > bitmap.getHeight()) {
+			if (spread.getWidth() > spread.getHeight()) {
 				setRequestedOrientation(ActivityInfo.SCREEN_ORIENTATION_LANDSCAPE);
 			}
 			else {
@@ -656,7 +655,7 @@ public class ViewerActivity extends Activity implements OnTouchListener, FullScr
 			}
 		}
 
-		mImageView.setCurrentBitmap(bitmap);
+		mImageView.setCurrentSpread(spread);
 	}
 
 	public void onPageChanged(int current, int previous) {
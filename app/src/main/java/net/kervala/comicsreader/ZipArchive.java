@@ -0,0 +1,462 @@
+/*
+ * ComicsReader is an Android application to read comics
+ * Copyright (C) 2011-2018 Cedric OCHS
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package net.kervala.comicsreader;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import android.util.Log;
+
+/**
+ * Minimal ZIP reader keeping only what we need to read pages
+ *
+ * Entries are stored in parallel arrays and accessed by their index
+ * in central directory, ZIP64 archives are supported.
+ */
+class ZipArchive implements ArchiveReader {
+	private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+	private static final int LOCAL_HEADER_SIZE = 30;
+	private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+	private static final int CENTRAL_HEADER_SIZE = 46;
+	private static final int END_HEADER_SIGNATURE = 0x06054b50;
+	private static final int END_HEADER_SIZE = 22;
+	private static final int ZIP64_LOCATOR_SIGNATURE = 0x07064b50;
+	private static final int ZIP64_LOCATOR_SIZE = 20;
+	private static final int ZIP64_END_HEADER_SIGNATURE = 0x06064b50;
+	private static final int ZIP64_END_HEADER_SIZE = 56;
+	private static final int ZIP64_EXTRA_ID = 0x0001;
+	private static final int MAX_COMMENT_SIZE = 65535;
+
+	private static final int FLAG_ENCRYPTED = 1;
+
+	private static final long UINT32_MAX = 0xffffffffL;
+	private static final int UINT16_MAX = 0xffff;
+
+	private String mName;
+	private RandomAccessFile mFile;
+	private FileChannel mChannel;
+
+	private int mCount = 0;
+	private String [] mNames;
+	private long [] mHeaderOffsets;
+	private long [] mDataOffsets;
+	private long [] mCompressedSizes;
+	private long [] mSizes;
+	private short [] mMethods;
+
+	ZipArchive(String filename) throws IOException {
+		mName = filename;
+		mFile = new RandomAccessFile(filename, "r");
+		mChannel = mFile.getChannel();
+
+		try {
+			readCentralDirectory();
+		} catch (IOException e) {
+			close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Reuse entries from a previous reading of central directory
+	 */
+	ZipArchive(String filename, String [] names, long [] headerOffsets, long [] compressedSizes, long [] sizes, int [] methods) throws IOException {
+		mName = filename;
+		mFile = new RandomAccessFile(filename, "r");
+		mChannel = mFile.getChannel();
+
+		mCount = names.length;
+		mNames = names;
+		mHeaderOffsets = headerOffsets;
+		mCompressedSizes = compressedSizes;
+		mSizes = sizes;
+		mMethods = new short[mCount];
+
+		for(int i = 0; i < mCount; ++i) {
+			mMethods[i] = (short)methods[i];
+		}
+
+		mDataOffsets = new long[mCount];
+		Arrays.fill(mDataOffsets, -1);
+	}
+
+	public void close() {
+		if (mFile != null) {
+			try {
+				mFile.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+
+			mFile = null;
+			mChannel = null;
+		}
+
+		mCount = 0;
+		mNames = null;
+		mHeaderOffsets = null;
+		mDataOffsets = null;
+		mCompressedSizes = null;
+		mSizes = null;
+		mMethods = null;
+	}
+
+	String getFilename() {
+		return mName;
+	}
+
+	public int size() {
+		return mCount;
+	}
+
+	public String getName(int index) {
+		return mNames[index];
+	}
+
+	public long getSize(int index) {
+		return mSizes[index];
+	}
+
+	long getHeaderOffset(int index) {
+		return mHeaderOffsets[index];
+	}
+
+	public long getCompressedSize(int index) {
+		return mCompressedSizes[index];
+	}
+
+	public int getMethod(int index) {
+		final int method = mMethods[index];
+
+		return method == METHOD_STORED || method == METHOD_DEFLATED ? method:METHOD_OTHER;
+	}
+
+	boolean isDirectory(int index) {
+		return mNames[index].endsWith("/");
+	}
+
+	/**
+	 * Map an uncompressed entry in memory
+	 *
+	 * @param index Index of entry
+	 * @return Read-only buffer or null if entry is compressed
+	 */
+	ByteBuffer map(int index) throws IOException {
+		if (mMethods[index] != METHOD_STORED || mSizes[index] != mCompressedSizes[index]) return null;
+
+		return mChannel.map(FileChannel.MapMode.READ_ONLY, getDataOffset(index), mSizes[index]);
+	}
+
+	public InputStream openStream(int index) throws IOException {
+		final InputStream input = getRawInputStream(index);
+
+		if (mMethods[index] == METHOD_STORED) return input;
+
+		final Inflater inflater = new Inflater(true);
+
+		return new InflaterInputStream(input, inflater, getInflateBufferSize(index)) {
+			@Override
+			public void close() throws IOException {
+				super.close();
+
+				// inflater is not released when it's not the default one
+				inflater.end();
+			}
+		};
+	}
+
+	public int readInto(int index, ByteBuffer buffer) throws IOException {
+		if (buffer.remaining() < mSizes[index]) throw new IOException("Buffer too small for " + mNames[index]);
+
+		final int size = (int)mSizes[index];
+
+		if (mMethods[index] == METHOD_STORED) {
+			// read directly in buffer
+			final ByteBuffer data = buffer.slice();
+			data.limit(size);
+
+			readFully(data, getDataOffset(index));
+		} else if (buffer.hasArray()) {
+			final InputStream input = openStream(index);
+
+			try {
+				// decompress directly in buffer array
+				int offset = 0;
+
+				while(offset < size) {
+					int read = input.read(buffer.array(), buffer.arrayOffset() + buffer.position() + offset, size - offset);
+
+					if (read < 0) throw new EOFException();
+
+					offset += read;
+				}
+			} finally {
+				input.close();
+			}
+		} else {
+			final InputStream input = openStream(index);
+			final byte [] chunk = new byte[getInflateBufferSize(index)];
+
+			try {
+				final ByteBuffer data = buffer.duplicate();
+				int remaining = size;
+
+				while(remaining > 0) {
+					int read = input.read(chunk, 0, Math.min(chunk.length, remaining));
+
+					if (read < 0) throw new EOFException();
+
+					data.put(chunk, 0, read);
+					remaining -= read;
+				}
+			} finally {
+				input.close();
+			}
+		}
+
+		buffer.position(buffer.position() + size);
+
+		return size;
+	}
+
+	private InputStream getRawInputStream(int index) throws IOException {
+		if (mMethods[index] != METHOD_STORED && mMethods[index] != METHOD_DEFLATED) {
+			throw new IOException("Unsupported compression method " + String.valueOf(mMethods[index]) + " for " + mNames[index]);
+		}
+
+		return new ChannelInputStream(mChannel, getDataOffset(index), mCompressedSizes[index]);
+	}
+
+	private int getInflateBufferSize(int index) {
+		return (int)Math.max(1024, Math.min(65536, mCompressedSizes[index]));
+	}
+
+	byte [] getBytes(int index) {
+		final Inflater inflater = new Inflater(true);
+
+		try {
+			return getBytes(index, inflater);
+		} finally {
+			inflater.end();
+		}
+	}
+
+	/**
+	 * Decompress an entry with an Inflater reused for several entries
+	 *
+	 * @param index Index of entry
+	 * @param inflater Inflater created with nowrap parameter
+	 * @return Entry data or null if an error occurred
+	 */
+	byte [] getBytes(int index, Inflater inflater) {
+		if (mSizes[index] > Integer.MAX_VALUE) {
+			Log.e(ComicsParameters.APP_TAG, "File " + mNames[index] + " is too large: " + String.valueOf(mSizes[index]) + " bytes");
+			return null;
+		}
+
+		try {
+			InputStream input = getRawInputStream(index);
+
+			if (mMethods[index] == METHOD_DEFLATED) {
+				inflater.reset();
+
+				input = new InflaterInputStream(input, inflater, getInflateBufferSize(index));
+			}
+
+			return ComicsHelpers.inputStreamToBytes(input, (int)mSizes[index]);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+
+		return null;
+	}
+
+	private synchronized long getDataOffset(int index) throws IOException {
+		if (mDataOffsets[index] > -1) return mDataOffsets[index];
+
+		// local header can have a different extra field than central one
+		final ByteBuffer header = ByteBuffer.allocate(LOCAL_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+
+		readFully(header, mHeaderOffsets[index]);
+
+		if (header.getInt(0) != LOCAL_HEADER_SIGNATURE) {
+			throw new IOException("Wrong local header for " + mNames[index]);
+		}
+
+		mDataOffsets[index] = mHeaderOffsets[index] + LOCAL_HEADER_SIZE + (header.getShort(26) & UINT16_MAX) + (header.getShort(28) & UINT16_MAX);
+
+		return mDataOffsets[index];
+	}
+
+	private void readFully(ByteBuffer buffer, long position) throws IOException {
+		while(buffer.hasRemaining()) {
+			int read = mChannel.read(buffer, position);
+
+			if (read < 0) throw new EOFException();
+
+			position += read;
+		}
+	}
+
+	private void readCentralDirectory() throws IOException {
+		final long length = mChannel.size();
+
+		// end of central directory is followed by a comment
+		final int tailSize = (int)Math.min(length, END_HEADER_SIZE + MAX_COMMENT_SIZE);
+		final ByteBuffer tail = ByteBuffer.allocate(tailSize).order(ByteOrder.LITTLE_ENDIAN);
+
+		readFully(tail, length - tailSize);
+
+		int end = tailSize - END_HEADER_SIZE;
+
+		while(end >= 0 && tail.getInt(end) != END_HEADER_SIGNATURE) --end;
+
+		if (end < 0) throw new IOException("End of central directory not found in " + mName);
+
+		long count = tail.getShort(end + 10) & UINT16_MAX;
+		long directorySize = tail.getInt(end + 12) & UINT32_MAX;
+		long directoryOffset = tail.getInt(end + 16) & UINT32_MAX;
+
+		// ZIP64 locator is just before end of central directory
+		final long locatorOffset = length - tailSize + end - ZIP64_LOCATOR_SIZE;
+
+		if (locatorOffset >= 0) {
+			final ByteBuffer locator = ByteBuffer.allocate(ZIP64_LOCATOR_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+
+			readFully(locator, locatorOffset);
+
+			if (locator.getInt(0) == ZIP64_LOCATOR_SIGNATURE) {
+				final ByteBuffer header = ByteBuffer.allocate(ZIP64_END_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+
+				readFully(header, locator.getLong(8));
+
+				if (header.getInt(0) != ZIP64_END_HEADER_SIGNATURE) {
+					throw new IOException("Wrong ZIP64 end of central directory in " + mName);
+				}
+
+				count = header.getLong(32);
+				directorySize = header.getLong(40);
+				directoryOffset = header.getLong(48);
+			}
+		}
+
+		if (count > Integer.MAX_VALUE || directoryOffset + directorySize > length) {
+			throw new IOException("Wrong central directory in " + mName);
+		}
+
+		final int capacity = (int)count;
+
+		mNames = new String[capacity];
+		mHeaderOffsets = new long[capacity];
+		mCompressedSizes = new long[capacity];
+		mSizes = new long[capacity];
+		mMethods = new short[capacity];
+
+		// don't load the whole directory in memory
+		final InputStream input = new BufferedInputStream(new ChannelInputStream(mChannel, directoryOffset, directorySize), 65536);
+		final ByteBuffer header = ByteBuffer.allocate(CENTRAL_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+		byte [] variable = new byte[1024];
+
+		try {
+			for(long i = 0; i < count; ++i) {
+				readFully(input, header.array(), CENTRAL_HEADER_SIZE);
+
+				if (header.getInt(0) != CENTRAL_HEADER_SIGNATURE) {
+					throw new IOException("Wrong central header in " + mName);
+				}
+
+				final int flags = header.getShort(8) & UINT16_MAX;
+				final int method = header.getShort(10) & UINT16_MAX;
+				long compressedSize = header.getInt(20) & UINT32_MAX;
+				long size = header.getInt(24) & UINT32_MAX;
+				final int nameLength = header.getShort(28) & UINT16_MAX;
+				final int extraLength = header.getShort(30) & UINT16_MAX;
+				final int commentLength = header.getShort(32) & UINT16_MAX;
+				long headerOffset = header.getInt(42) & UINT32_MAX;
+
+				final int variableLength = nameLength + extraLength + commentLength;
+
+				if (variable.length < variableLength) variable = new byte[variableLength];
+
+				readFully(input, variable, variableLength);
+
+				// real values are in ZIP64 extra field
+				if (size == UINT32_MAX || compressedSize == UINT32_MAX || headerOffset == UINT32_MAX) {
+					final ByteBuffer extra = ByteBuffer.wrap(variable, nameLength, extraLength).order(ByteOrder.LITTLE_ENDIAN);
+
+					while(extra.remaining() >= 4) {
+						final int id = extra.getShort() & UINT16_MAX;
+						final int dataLength = extra.getShort() & UINT16_MAX;
+						final int next = extra.position() + dataLength;
+
+						if (next > nameLength + extraLength) break;
+
+						if (id == ZIP64_EXTRA_ID) {
+							// only fields set to 0xffffffff are present, in this order
+							if (size == UINT32_MAX && extra.position() + 8 <= next) size = extra.getLong();
+							if (compressedSize == UINT32_MAX && extra.position() + 8 <= next) compressedSize = extra.getLong();
+							if (headerOffset == UINT32_MAX && extra.position() + 8 <= next) headerOffset = extra.getLong();
+							break;
+						}
+
+						extra.position(next);
+					}
+				}
+
+				// we don't support encrypted pages
+				if ((flags & FLAG_ENCRYPTED) != 0) continue;
+
+				mNames[mCount] = new String(variable, 0, nameLength, "UTF-8");
+				mHeaderOffsets[mCount] = headerOffset;
+				mCompressedSizes[mCount] = compressedSize;
+				mSizes[mCount] = size;
+				mMethods[mCount] = (short)method;
+
+				++mCount;
+			}
+		} finally {
+			input.close();
+		}
+
+		mDataOffsets = new long[mCount];
+		Arrays.fill(mDataOffsets, -1);
+	}
+
+	private static void readFully(InputStream input, byte [] buffer, int length) throws IOException {
+		int offset = 0;
+
+		while(offset < length) {
+			int read = input.read(buffer, offset, length - offset);
+
+			if (read < 0) throw new EOFException();
+
+			offset += read;
+		}
+	}
+}
@@ -5,7 +5,7 @@ include $(CLEAR_VARS)
 LOCAL_MODULE := unrar-jni
 LOCAL_CFLAGS += -Wall -fvisibility=hidden
 
-LOCAL_SRC_FILES := strings.cpp net_kervala_comicsreader_RarFile.cpp
+LOCAL_SRC_FILES := strings.cpp rarsession.cpp net_kervala_comicsreader_RarFile.cpp
 LOCAL_SHARED_LIBRARIES :=
 LOCAL_STATIC_LIBRARIES := unrar
 
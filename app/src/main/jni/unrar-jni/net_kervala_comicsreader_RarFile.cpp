@@ -19,23 +19,17 @@
 
 #include "net_kervala_comicsreader_RarFile.h"
 
-#include <android/log.h>
+#include <stdio.h>
 #include <string.h>
+#include <limits.h>
 #include "strings.h"
+#include "rarsession.h"
 
-#include "rartypes.hpp"
-#include "rar.hpp"
 #include "version.hpp"
-#include "dll.hpp"
-
-//#define USE_DIRECTBYTEBUFFER
 
 static jclass stringClass = NULL;
-
-#define  LOG_TAG    "libunrar-jni"
-#define  LOGI(...)  __android_log_print(ANDROID_LOG_INFO, LOG_TAG, __VA_ARGS__)
-#define  LOGE(...)  __android_log_print(ANDROID_LOG_ERROR, LOG_TAG, __VA_ARGS__)
-#define  LOGD(...)  __android_log_print(ANDROID_LOG_DEBUG, LOG_TAG, __VA_ARGS__)
+static jfieldID cancelledField = NULL;
+static jfieldID parentField = NULL;
 
 #ifdef __arm__
 typedef long unsigned int *_Unwind_Ptr;
@@ -78,6 +72,38 @@ jint JNI_OnLoad(JavaVM* vm, void* reserved)
 		env->DeleteLocalRef(c);
 	}
 
+	c = env->FindClass("net/kervala/comicsreader/LoadToken");
+
+	if (c == NULL)
+	{
+		env->ExceptionClear();
+
+		LOGE("Can't find class net.kervala.comicsreader.LoadToken");
+	}
+	else
+	{
+		// field IDs stay valid while class is loaded
+		cancelledField = env->GetFieldID(c, "mCancelled", "Z");
+
+		if (cancelledField == NULL)
+		{
+			env->ExceptionClear();
+
+			LOGE("Can't find field LoadToken.mCancelled");
+		}
+
+		parentField = env->GetFieldID(c, "parent", "Lnet/kervala/comicsreader/LoadToken;");
+
+		if (parentField == NULL)
+		{
+			env->ExceptionClear();
+
+			LOGE("Can't find field LoadToken.parent");
+		}
+
+		env->DeleteLocalRef(c);
+	}
+
 #ifdef __arm__
 	LOGI("Loading unrar ARM library");
 #else
@@ -99,68 +125,41 @@ void JNI_OnUnload(JavaVM *vm, void *reserved)
 	stringClass = NULL;
 }
 
-void displayError(int error, const char *filename)
+JNIEXPORT jlong JNICALL Java_net_kervala_comicsreader_RarFile_nativeOpen(JNIEnv *env, jclass, jstring jFilename, jint threads)
 {
-	switch(error)
-	{
-		case ERAR_END_ARCHIVE:
-		LOGE("Unable to open %s, ERAR_END_ARCHIVE", filename);
-		break;
-
-		case ERAR_NO_MEMORY:
-		LOGE("Unable to open %s, ERAR_NO_MEMORY", filename);
-		break;
-
-		case ERAR_BAD_DATA:
-		LOGE("Unable to open %s, ERAR_BAD_DATA", filename);
-		break;
-
-		case ERAR_BAD_ARCHIVE:
-		LOGE("Unable to open %s, ERAR_BAD_ARCHIVE", filename);
-		break;
-
-		case ERAR_UNKNOWN_FORMAT:
-		LOGE("Unable to open %s, ERAR_UNKNOWN_FORMAT", filename);
-		break;
-
-		case ERAR_EOPEN:
-		LOGE("Unable to open %s, ERAR_EOPEN", filename);
-		break;
+	const char *filename = env->GetStringUTFChars(jFilename, NULL);
 
-		case ERAR_ECREATE:
-		LOGE("Unable to open %s, ERAR_ECREATE", filename);
-		break;
+	// OutOfMemoryError is thrown in Java
+	if (env->ExceptionCheck()) return 0;
 
-		case ERAR_ECLOSE:
-		LOGE("Unable to open %s, ERAR_ECLOSE", filename);
-		break;
+	if (filename == NULL)
+	{
+		LOGE("Unable to get filename C string");
+		return 0;
+	}
 
-		case ERAR_EREAD:
-		LOGE("Unable to open %s, ERAR_EREAD", filename);
-		break;
+	RarSession *session = new RarSession();
 
-		case ERAR_EWRITE:
-		LOGE("Unable to open %s, ERAR_EWRITE", filename);
-		break;
+	// read all entries only once
+	if (!session->open(filename, threads))
+	{
+		delete session;
+		session = NULL;
+	}
 
-		case ERAR_SMALL_BUF:
-		LOGE("Unable to open %s, ERAR_SMALL_BUF", filename);
-		break;
+	env->ReleaseStringUTFChars(jFilename, filename);
 
-		case ERAR_UNKNOWN:
-		LOGE("Unable to open %s, ERAR_UNKNOWN", filename);
-		break;
+	return (jlong)(intptr_t)session;
+}
 
-		case ERAR_MISSING_PASSWORD:
-		LOGE("Unable to open %s, ERAR_MISSING_PASSWORD", filename);
-		break;
+JNIEXPORT void JNICALL Java_net_kervala_comicsreader_RarFile_nativeClose(JNIEnv *env, jclass, jlong handle)
+{
+	RarSession *session = (RarSession*)(intptr_t)handle;
 
-		default:
-		LOGE("Unable to open %s, unknown error: %d", filename, error);
-	}
+	if (session) delete session;
 }
 
-JNIEXPORT jobjectArray JNICALL Java_net_kervala_comicsreader_RarFile_nativeGetEntries(JNIEnv *env, jclass, jstring jFilename)
+JNIEXPORT jobjectArray JNICALL Java_net_kervala_comicsreader_RarFile_nativeGetEntries(JNIEnv *env, jclass, jlong handle)
 {
 	jobjectArray ret = NULL;
 
@@ -171,221 +170,388 @@ JNIEXPORT jobjectArray JNICALL Java_net_kervala_comicsreader_RarFile_nativeGetEn
 		return ret;
 	}
 
-	const char *filename = env->GetStringUTFChars(jFilename, NULL);
+	RarSession *session = (RarSession*)(intptr_t)handle;
 
-	if (env->ExceptionCheck())
+	if (session == NULL)
 	{
-		env->ExceptionDescribe();
+		LOGE("Session is NULL");
+
 		return ret;
 	}
 
-	RAROpenArchiveData data;
-	memset(&data, 0, sizeof(RAROpenArchiveData));
-
-	data.ArcName = filename;
-	data.OpenMode = RAR_OM_LIST;
+	int count = (int)session->size();
 
-	HANDLE handle = RAROpenArchive(&data);
+//	LOGD("Found %d pages", count);
 
-	if (handle && !data.OpenResult)
+	if (count > 0)
 	{
-		RARHeaderData header;
-		memset(&header, 0, sizeof(RARHeaderData));
+		ret = (jobjectArray)env->NewObjectArray(count, stringClass, NULL);
 
-		Strings list;
+		// OutOfMemoryError is thrown in Java
+		if (env->ExceptionCheck()) return NULL;
 
-		// read all entries
-		while (RARReadHeader(handle, &header) == 0)
+		for(int i = 0; i < count; ++i)
 		{
-//			LOGD("Found %s", header.FileName);
+			const char *str = session->getEntry(i)->name;
 
-			// add file to list only if not a directory and not NULL
-			if ((header.Flags & LHD_DIRECTORY) == 0) list.addString(header.FileName);
+			// create a jstring from a UTF-8 string
+			// TODO: fix Modified UTF-8 format
+			jstring newStr = env->NewStringUTF(str);
+
+			if (env->ExceptionCheck())
+			{
+				// OutOfMemoryError is thrown in Java
+				env->DeleteLocalRef(ret);
+				return NULL;
+			}
+			else if (newStr)
+			{
+				env->SetObjectArrayElement(ret, i, newStr);
 
-			// skip entry content
-			int result = RARProcessFile(handle, RAR_SKIP, NULL, NULL);
+				if (env->ExceptionCheck())
+				{
+					env->ExceptionDescribe();
+					break;
+				}
 
-			if (result)
+				env->DeleteLocalRef(newStr);
+			}
+			else
 			{
-				LOGE("Unable to process %s, error: %d", header.FileName, result);
+				LOGE("NewStringUTF returned NULL for %s", str);
 			}
 		}
+	}
 
-		RARCloseArchive(handle);
+	return ret;
+}
 
-		int count = (int)list.size();
+// number of values per entry returned by nativeGetInfos, must be the same in RarFile.java
+#define INFO_COUNT 6
 
-//		LOGD("Found %d pages", count);
+JNIEXPORT jlongArray JNICALL Java_net_kervala_comicsreader_RarFile_nativeGetInfos(JNIEnv *env, jclass, jlong handle)
+{
+	RarSession *session = (RarSession*)(intptr_t)handle;
 
-		if (count > 0)
-		{
-			ret = (jobjectArray)env->NewObjectArray(count, stringClass, NULL);
+	if (session == NULL)
+	{
+		LOGE("Session is NULL");
 
-			if (env->ExceptionCheck())
-			{
-				env->ExceptionDescribe();
-			}
-			else
-			{
-				Strings *tmp = &list;
+		return NULL;
+	}
 
-				int i = 0;
+	int count = (int)session->size();
 
-				// don't put more strings than allocated
-				while(tmp && i < count)
-				{
-					const char *str = tmp->getString();
-
-					if (str)
-					{
-						// create a jstring from a UTF-8 string
-						// TODO: fix Modified UTF-8 format
-						jstring newStr = env->NewStringUTF(str);
-
-						if (env->ExceptionCheck())
-						{
-							env->ExceptionDescribe();
-							break;
-						}
-						else if (newStr)
-						{
-							// if string is NULL, don't increase list size
-							env->SetObjectArrayElement(ret, i++, newStr);
-
-							if (env->ExceptionCheck())
-							{
-								env->ExceptionDescribe();
-								break;
-							}
-
-							env->DeleteLocalRef(newStr);
-						}
-						else
-						{
-							LOGE("NewStringUTF returned NULL for %s", str);
-						}
-					}
-					else
-					{
-						LOGE("NULL filename returned for item %d", i);
-					}
-
-					tmp = tmp->getNext();
-				}
-			}
-		}
+	if (count < 1) return NULL;
+
+	jlong *infos = new jlong[count * INFO_COUNT];
+
+	// pack all values of an entry together
+	for(int i = 0; i < count; ++i)
+	{
+		const RarEntry *entry = session->getEntry(i);
+		jlong *info = infos + i * INFO_COUNT;
+
+		info[0] = entry->unpSize;
+		info[1] = entry->packSize;
+		info[2] = entry->position;
+		info[3] = entry->solid ? 1 : 0;
+		info[4] = entry->crc;
+		info[5] = entry->mtime;
 	}
-	else
+
+	jlongArray ret = env->NewLongArray(count * INFO_COUNT);
+
+	if (env->ExceptionCheck())
 	{
-		displayError(data.OpenResult, filename);
+		// OutOfMemoryError is thrown in Java
+		ret = NULL;
 	}
+	else if (ret)
+	{
+		// copy all values at once
+		env->SetLongArrayRegion(ret, 0, count * INFO_COUNT, infos);
+
+		if (env->ExceptionCheck())
+		{
+			env->ExceptionDescribe();
+			env->DeleteLocalRef(ret);
+			ret = NULL;
+		}
+	}
+
+	delete [] infos;
 
-	env->ReleaseStringUTFChars(jFilename, filename);
-	
 	return ret;
 }
 
 class Buffer
 {
 public:
-	Buffer(JNIEnv *env, size_t size)
+	Buffer()
 	{
+		m_data = NULL;
+		m_size = 0;
 		m_position = 0;
+		m_env = NULL;
+		m_token = NULL;
+		m_failed = false;
+		m_stopWhenFull = false;
+	}
+
+	virtual ~Buffer()
+	{
+	}
+
+	void appendBytes(unsigned char *addr, size_t size)
+	{
+		// to avoid overflows
+		if (size + m_position > m_size) size = m_size - m_position;
+
+		if (size < 1) return;
+
+		if (copyBytes(addr, size))
+		{
+			m_position += size;
+		}
+		else
+		{
+			m_failed = true;
+		}
+	}
+
+	// a Java exception can be pending, no JNI function must be called anymore
+	bool hasFailed() const { return m_failed; }
+
+	// only the beginning of entry is needed, decompression is stopped once buffer is full
+	void setStopWhenFull() { m_stopWhenFull = true; }
+	bool isStopped() const { return m_stopWhenFull && m_position >= m_size; }
+
+	size_t getSize() const { return m_size; }
+	size_t getPosition() const { return m_position; }
+
+	// Java object used to cancel extraction
+	void setToken(JNIEnv *env, jobject token)
+	{
 		m_env = env;
+		m_token = token;
+	}
 
-		if (size < 1)
+	bool isCancelled() const
+	{
+		if (m_token == NULL || cancelledField == NULL) return false;
+
+		if (m_env->GetBooleanField(m_token, cancelledField) == JNI_TRUE) return true;
+
+		if (parentField == NULL) return false;
+
+		// a load is also cancelled with the loads which started it
+		jobject token = m_env->GetObjectField(m_token, parentField);
+
+		while (token != NULL)
 		{
-			m_buffer = NULL;
-			m_size = 0;
+			bool cancelled = m_env->GetBooleanField(token, cancelledField) == JNI_TRUE;
+			jobject parent = cancelled ? NULL : m_env->GetObjectField(token, parentField);
 
+			m_env->DeleteLocalRef(token);
+
+			if (cancelled) return true;
+
+			token = parent;
+		}
+
+		return false;
+	}
+
+protected:
+	virtual bool copyBytes(unsigned char *addr, size_t size) = 0;
+
+	uint8_t *m_data;
+	size_t m_size;
+	size_t m_position;
+	JNIEnv *m_env;
+	jobject m_token;
+	bool m_failed;
+	bool m_stopWhenFull;
+};
+
+// data are copied in a Java byte array
+class ArrayBuffer : public Buffer
+{
+public:
+	ArrayBuffer(JNIEnv *env, size_t size)
+	{
+		m_env = env;
+		m_array = NULL;
+		m_offset = 0;
+
+		if (size < 1)
+		{
 			LOGE("Unable to allocate less than 1 byte");
 			return;
 		}
 
+		// Java arrays are indexed by an int
+		if (size > INT_MAX)
+		{
+			LOGE("Unable to allocate %lld bytes in a Java array", (long long)size);
+			return;
+		}
+
 		// allocates a new Java buffer
-#ifdef USE_DIRECTBYTEBUFFER
-		m_buffer = new uint8_t[size];
-#else
-		m_buffer = env->NewByteArray(size);
+		m_array = env->NewByteArray((jsize)size);
 
+		// OutOfMemoryError is thrown in Java
 		if (env->ExceptionCheck())
 		{
-			m_size = 0;
-			m_buffer = NULL;
-			m_env->ExceptionDescribe();
+			m_array = NULL;
 			return;
 		}
 
-		if (m_buffer == NULL)
+		if (m_array == NULL)
 		{
 			LOGE("Unable to allocate %d bytes in Java", (int)size);
+			return;
 		}
-#endif
 
 		m_size = size;
 	}
 
-	~Buffer()
+	// use an array allocated by Java
+	ArrayBuffer(JNIEnv *env, jbyteArray array, size_t offset, size_t size)
 	{
-	}
+		m_env = env;
+		m_array = NULL;
+		m_offset = offset;
 
-	void appendBytes(unsigned char *addr, size_t size)
-	{
-		// to avoid overflows
-		if (size + m_position > m_size) size = m_size - m_position;
+		if (array == NULL) return;
+
+		size_t length = env->GetArrayLength(array);
 
-		if (size > 0)
+		if (offset + size > length)
 		{
-#ifdef USE_DIRECTBYTEBUFFER
-			memcpy(m_buffer + m_position, addr, size);
-#else
-			// copy C++ buffer data to Java buffer
-			m_env->SetByteArrayRegion(m_buffer, m_position, size, (jbyte *)addr);
+			LOGE("Array is too small, %d bytes for %d", (int)(length - offset), (int)size);
+			return;
+		}
 
-			if (m_env->ExceptionCheck())
-			{
-				m_env->ExceptionDescribe();
-				return;
-			}
-#endif
+		m_array = array;
+		m_size = size;
+	}
 
-			m_position += size;
+	void release()
+	{
+		if (m_array)
+		{
+			m_env->DeleteLocalRef(m_array);
+
+			m_array = NULL;
 		}
 	}
 
-	void release()
+	jbyteArray getArray() const { return m_array; }
+
+protected:
+	bool copyBytes(unsigned char *addr, size_t size)
+	{
+		// copy C++ buffer data to Java buffer
+		m_env->SetByteArrayRegion(m_array, m_offset + m_position, size, (jbyte *)addr);
+
+		// exception is thrown in Java
+		if (m_env->ExceptionCheck()) return false;
+
+		return true;
+	}
+
+private:
+	jbyteArray m_array;
+	size_t m_offset;
+};
+
+// data are copied in memory of a direct ByteBuffer allocated by Java
+class DirectBuffer : public Buffer
+{
+public:
+	DirectBuffer(JNIEnv *env, jobject buffer, size_t size)
 	{
-		if (m_buffer)
+		if (buffer == NULL) return;
+
+		uint8_t *data = (uint8_t*)env->GetDirectBufferAddress(buffer);
+		jlong capacity = env->GetDirectBufferCapacity(buffer);
+
+		if (data == NULL || capacity < 0)
 		{
-			m_env->DeleteLocalRef(m_buffer);
+			LOGE("Buffer is not a direct buffer");
+			return;
+		}
 
-			m_buffer = NULL;
+		if ((size_t)capacity < size)
+		{
+			LOGE("Direct buffer is too small, %d bytes for %d", (int)capacity, (int)size);
+			return;
 		}
+
+		m_data = data;
+		m_size = size;
 	}
 
-#ifndef USE_DIRECTBYTEBUFFER
-	jbyteArray getBuffer() const { return m_buffer; }
-#endif
+	bool isValid() const { return m_data != NULL; }
 
-	size_t getSize() const { return m_size; }
+protected:
+	bool copyBytes(unsigned char *addr, size_t size)
+	{
+		memcpy(m_data + m_position, addr, size);
 
-#ifdef USE_DIRECTBYTEBUFFER
-	jobject getByteBuffer()
+		return true;
+	}
+};
+
+// data are written in a file, they never go through Java memory
+class FileBuffer : public Buffer
+{
+public:
+	FileBuffer(const char *filename, size_t size)
 	{
-		return m_env->NewDirectByteBuffer(m_buffer, m_size);
+		m_file = fopen(filename, "wb");
+
+		if (m_file == NULL)
+		{
+			LOGE("Unable to create %s", filename);
+			return;
+		}
+
+		m_size = size;
 	}
-#endif
 
-private:
-#ifdef USE_DIRECTBYTEBUFFER
-	uint8_t *m_buffer;
-#else
-	jbyteArray m_buffer;
-#endif
+	~FileBuffer()
+	{
+		close();
+	}
 
-	size_t m_size;
-	size_t m_position;
-	JNIEnv *m_env;
+	bool isValid() const { return m_file != NULL; }
+
+	bool close()
+	{
+		if (m_file == NULL) return false;
+
+		bool res = fclose(m_file) == 0;
+
+		m_file = NULL;
+
+		return res;
+	}
+
+protected:
+	bool copyBytes(unsigned char *addr, size_t size)
+	{
+		if (fwrite(addr, 1, size, m_file) == size) return true;
+
+		LOGE("Unable to write %d bytes", (int)size);
+
+		return false;
+	}
+
+private:
+	FILE *m_file;
 };
 
 int CALLBACK callbackData(UINT msg, LPARAM UserData, LPARAM P1, LPARAM P2)
@@ -394,130 +560,216 @@ int CALLBACK callbackData(UINT msg, LPARAM UserData, LPARAM P1, LPARAM P2)
 	{
 		Buffer *buffer = (Buffer*)UserData;
 
-		if (buffer) buffer->appendBytes((unsigned char*)P1, (size_t)P2);
+		if (buffer)
+		{
+			// data can't be saved, stop decompression
+			if (buffer->hasFailed()) return -1;
+
+			// user doesn't need this entry anymore, stop decompression
+			if (buffer->isCancelled()) return -1;
+
+			if (P2 > 0) buffer->appendBytes((unsigned char*)P1, (size_t)P2);
+
+			if (buffer->hasFailed()) return -1;
+
+			// rest of entry is not needed
+			if (buffer->isStopped()) return -1;
+		}
 	}
 
 	return 1;
 }
 
-JNIEXPORT jbyteArray JNICALL Java_net_kervala_comicsreader_RarFile_nativeGetData(JNIEnv *env, jclass, jstring jFilename, jstring jEntry)
+static RarSession* getSession(jlong handle)
+{
+	RarSession *session = (RarSession*)(intptr_t)handle;
+
+	if (session == NULL) LOGE("Session is NULL");
+
+	return session;
+}
+
+JNIEXPORT jbyteArray JNICALL Java_net_kervala_comicsreader_RarFile_nativeGetData(JNIEnv *env, jclass, jlong handle, jint index, jobject token)
 {
 	jbyteArray ret = NULL;
 
-	const char *filename = env->GetStringUTFChars(jFilename, NULL);
+	RarSession *session = getSession(handle);
 
-	if (env->ExceptionCheck())
+	if (session == NULL) return ret;
+
+	const RarEntry *entry = session->getEntry(index);
+
+	if (entry == NULL)
 	{
-		env->ExceptionDescribe();
+		LOGE("Entry %d doesn't exist", (int)index);
 		return ret;
 	}
 
-	if (filename == NULL)
+	if (entry->unpSize > 0)
 	{
-		LOGE("Unable to get filename C string");
-		return ret;
+		// set buffer related variables
+		ArrayBuffer buffer(env, entry->unpSize);
+		buffer.setToken(env, token);
+
+		if (buffer.getArray() == NULL)
+		{
+			// else OutOfMemoryError is thrown in Java
+			if (!env->ExceptionCheck()) LOGE("Error while allocating %lld bytes", (long long)entry->unpSize);
+		}
+		else if (session->extract(index, callbackData, (LPARAM)&buffer) || buffer.hasFailed())
+		{
+			buffer.release();
+		}
+		else
+		{
+			ret = buffer.getArray();
+		}
 	}
 
-	const char *entry = env->GetStringUTFChars(jEntry, NULL);
+	return ret;
+}
 
-	if (env->ExceptionCheck())
-	{
-		LOGE("Unable to get entry C string: %p", entry);
+JNIEXPORT jint JNICALL Java_net_kervala_comicsreader_RarFile_nativeGetDataInto(JNIEnv *env, jclass, jlong handle, jint index, jobject jBuffer, jobject token)
+{
+	RarSession *session = getSession(handle);
 
-		// release previous string because it succeeded
-		env->ReleaseStringUTFChars(jFilename, filename);
+	if (session == NULL) return -1;
 
-		env->ExceptionDescribe();
+	const RarEntry *entry = session->getEntry(index);
 
-		return ret;
+	if (entry == NULL)
+	{
+		LOGE("Entry %d doesn't exist", (int)index);
+		return -1;
 	}
 
+	DirectBuffer buffer(env, jBuffer, entry->unpSize);
+
+	if (!buffer.isValid()) return -1;
+
+	buffer.setToken(env, token);
+
+	if (session->extract(index, callbackData, (LPARAM)&buffer)) return -1;
+
+	return (jint)buffer.getPosition();
+}
+
+JNIEXPORT jint JNICALL Java_net_kervala_comicsreader_RarFile_nativeGetDataIntoArray(JNIEnv *env, jclass, jlong handle, jint index, jbyteArray jArray, jint offset, jobject token)
+{
+	RarSession *session = getSession(handle);
+
+	if (session == NULL) return -1;
+
+	const RarEntry *entry = session->getEntry(index);
+
 	if (entry == NULL)
 	{
-		// release previous string because it succeeded
-		env->ReleaseStringUTFChars(jFilename, filename);
-
-		LOGE("Unable to get entry C string");
-		return ret;
+		LOGE("Entry %d doesn't exist", (int)index);
+		return -1;
 	}
 
-	RAROpenArchiveData data;
-	memset(&data, 0, sizeof(RAROpenArchiveData));
+	if (offset < 0) return -1;
 
-	data.ArcName = filename;
-	data.OpenMode = RAR_OM_EXTRACT;
+	ArrayBuffer buffer(env, jArray, offset, entry->unpSize);
 
-	HANDLE handle = RAROpenArchive(&data);
+	if (buffer.getArray() == NULL) return -1;
 
-	if (handle && !data.OpenResult)
+	buffer.setToken(env, token);
+
+	if (session->extract(index, callbackData, (LPARAM)&buffer)) return -1;
+
+	return (jint)buffer.getPosition();
+}
+
+JNIEXPORT jint JNICALL Java_net_kervala_comicsreader_RarFile_nativeGetHeader(JNIEnv *env, jclass, jlong handle, jint index, jbyteArray jArray, jobject token)
+{
+	RarSession *session = getSession(handle);
+
+	if (session == NULL || jArray == NULL) return -1;
+
+	// entries depend on previous ones and the position of sequential extraction would be lost
+	if (session->isSolid()) return -1;
+
+	const RarEntry *entry = session->getEntry(index);
+
+	if (entry == NULL)
 	{
-		RARHeaderData header;
-		memset(&header, 0, sizeof(RARHeaderData));
+		LOGE("Entry %d doesn't exist", (int)index);
+		return -1;
+	}
 
-		// process each entry
-		while (RARReadHeader(handle, &header) == 0)
-		{
-			// check if we must process this entry
-			if (strcmp(header.FileName, entry) == 0)
-			{
-				if (header.UnpSize > 0)
-				{
-					// set buffer related variables
-					Buffer buffer(env, header.UnpSize);
-					
-					if (buffer.getBuffer() == NULL)
-					{
-						LOGE("Error while allocating %d bytes", (int)header.UnpSize);
-					}
-					else
-					{
-						// set buffer callback
-						RARSetCallback(handle, callbackData, (LPARAM)&buffer);
-
-						// don't use RAR_EXTRACT because files will be extracted in current directory
-						int result = RARProcessFile(handle, RAR_TEST, NULL, NULL);
-
-						if (result)
-						{
-							buffer.release();
-
-							LOGE("Unable to process %s, error: %d", header.FileName, result);
-						}
-						else
-						{
-							ret = buffer.getBuffer();
-						}
-					}
-				}
+	size_t size = env->GetArrayLength(jArray);
 
-				break;
-			}
-			else
-			{
-				// skip this entry
-				int result = RARProcessFile(handle, RAR_SKIP, NULL, NULL);
+	if (entry->unpSize < (int64)size) size = (size_t)entry->unpSize;
 
-				if (result)
-				{
-					LOGE("Unable to skip %s, error: %d", header.FileName, result);
-				}
-			}
-		}
+	if (size < 1) return 0;
+
+	ArrayBuffer buffer(env, jArray, 0, size);
+
+	if (buffer.getArray() == NULL) return -1;
 
-		RARCloseArchive(handle);
+	buffer.setToken(env, token);
+	buffer.setStopWhenFull();
+
+	int error = session->extract(index, callbackData, (LPARAM)&buffer);
+
+	// cancelled by callback once header was read
+	if (buffer.hasFailed() || (error && !(error == ERAR_CANCELLED && buffer.isStopped()))) return -1;
+
+	return (jint)buffer.getPosition();
+}
+
+JNIEXPORT jlong JNICALL Java_net_kervala_comicsreader_RarFile_nativeExtractToFile(JNIEnv *env, jclass, jlong handle, jint index, jstring jFilename, jobject token)
+{
+	RarSession *session = getSession(handle);
+
+	if (session == NULL) return -1;
+
+	const RarEntry *entry = session->getEntry(index);
+
+	if (entry == NULL)
+	{
+		LOGE("Entry %d doesn't exist", (int)index);
+		return -1;
 	}
-	else
+
+	const char *filename = env->GetStringUTFChars(jFilename, NULL);
+
+	// OutOfMemoryError is thrown in Java
+	if (env->ExceptionCheck()) return -1;
+
+	if (filename == NULL)
 	{
-		displayError(data.OpenResult, filename);
+		LOGE("Unable to get filename C string");
+		return -1;
+	}
+
+	jlong ret = -1;
+
+	FileBuffer buffer(filename, entry->unpSize);
+
+	if (buffer.isValid())
+	{
+		buffer.setToken(env, token);
+
+		int error = session->extract(index, callbackData, (LPARAM)&buffer);
+
+		// file must be closed to be sure all data are written
+		if (buffer.close() && !error) ret = (jlong)buffer.getPosition();
 	}
 
-	// release UTF-8 strings
-	env->ReleaseStringUTFChars(jEntry, entry);
 	env->ReleaseStringUTFChars(jFilename, filename);
 
 	return ret;
 }
 
+JNIEXPORT jboolean JNICALL Java_net_kervala_comicsreader_RarFile_nativeIsSolid(JNIEnv *env, jclass, jlong handle)
+{
+	RarSession *session = getSession(handle);
+
+	return session && session->isSolid() ? JNI_TRUE : JNI_FALSE;
+}
+
 JNIEXPORT jstring JNICALL Java_net_kervala_comicsreader_RarFile_nativeGetVersion(JNIEnv *env, jclass)
 {
 	char version[32];
@@ -7,21 +7,85 @@
 #ifdef __cplusplus
 extern "C" {
 #endif
+/*
+ * Class:     net_kervala_comicsreader_RarFile
+ * Method:    nativeOpen
+ * Signature: (Ljava/lang/String;I)J
+ */
+JNIEXPORT jlong JNICALL Java_net_kervala_comicsreader_RarFile_nativeOpen
+  (JNIEnv *, jclass, jstring, jint);
+
+/*
+ * Class:     net_kervala_comicsreader_RarFile
+ * Method:    nativeClose
+ * Signature: (J)V
+ */
+JNIEXPORT void JNICALL Java_net_kervala_comicsreader_RarFile_nativeClose
+  (JNIEnv *, jclass, jlong);
+
 /*
  * Class:     net_kervala_comicsreader_RarFile
  * Method:    nativeGetEntries
- * Signature: (Ljava/lang/String;)[Ljava/lang/String;
+ * Signature: (J)[Ljava/lang/String;
  */
 JNIEXPORT jobjectArray JNICALL Java_net_kervala_comicsreader_RarFile_nativeGetEntries
-  (JNIEnv *, jclass, jstring);
+  (JNIEnv *, jclass, jlong);
+
+/*
+ * Class:     net_kervala_comicsreader_RarFile
+ * Method:    nativeGetInfos
+ * Signature: (J)[J
+ */
+JNIEXPORT jlongArray JNICALL Java_net_kervala_comicsreader_RarFile_nativeGetInfos
+  (JNIEnv *, jclass, jlong);
 
 /*
  * Class:     net_kervala_comicsreader_RarFile
  * Method:    nativeGetData
- * Signature: (Ljava/lang/String;Ljava/lang/String;)[B
+ * Signature: (JILnet/kervala/comicsreader/LoadToken;)[B
  */
 JNIEXPORT jbyteArray JNICALL Java_net_kervala_comicsreader_RarFile_nativeGetData
-  (JNIEnv *, jclass, jstring, jstring);
+  (JNIEnv *, jclass, jlong, jint, jobject);
+
+/*
+ * Class:     net_kervala_comicsreader_RarFile
+ * Method:    nativeGetDataInto
+ * Signature: (JILjava/nio/ByteBuffer;Lnet/kervala/comicsreader/LoadToken;)I
+ */
+JNIEXPORT jint JNICALL Java_net_kervala_comicsreader_RarFile_nativeGetDataInto
+  (JNIEnv *, jclass, jlong, jint, jobject, jobject);
+
+/*
+ * Class:     net_kervala_comicsreader_RarFile
+ * Method:    nativeGetDataIntoArray
+ * Signature: (JI[BILnet/kervala/comicsreader/LoadToken;)I
+ */
+JNIEXPORT jint JNICALL Java_net_kervala_comicsreader_RarFile_nativeGetDataIntoArray
+  (JNIEnv *, jclass, jlong, jint, jbyteArray, jint, jobject);
+
+/*
+ * Class:     net_kervala_comicsreader_RarFile
+ * Method:    nativeGetHeader
+ * Signature: (JI[BLnet/kervala/comicsreader/LoadToken;)I
+ */
+JNIEXPORT jint JNICALL Java_net_kervala_comicsreader_RarFile_nativeGetHeader
+  (JNIEnv *, jclass, jlong, jint, jbyteArray, jobject);
+
+/*
+ * Class:     net_kervala_comicsreader_RarFile
+ * Method:    nativeExtractToFile
+ * Signature: (JILjava/lang/String;Lnet/kervala/comicsreader/LoadToken;)J
+ */
+JNIEXPORT jlong JNICALL Java_net_kervala_comicsreader_RarFile_nativeExtractToFile
+  (JNIEnv *, jclass, jlong, jint, jstring, jobject);
+
+/*
+ * Class:     net_kervala_comicsreader_RarFile
+ * Method:    nativeIsSolid
+ * Signature: (J)Z
+ */
+JNIEXPORT jboolean JNICALL Java_net_kervala_comicsreader_RarFile_nativeIsSolid
+  (JNIEnv *, jclass, jlong);
 
 /*
  * Class:     net_kervala_comicsreader_RarFile
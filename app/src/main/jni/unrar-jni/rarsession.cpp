@@ -0,0 +1,363 @@
+/*
+ * ComicsReader is an Android application to read comics
+ * Copyright (C) 2011-2018 Cedric OCHS
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+#include "rarsession.h"
+
+#include <time.h>
+
+#define INVALID_CURSOR ((size_t)-1)
+
+// in milliseconds
+static int64 getTime()
+{
+	struct timespec ts;
+	clock_gettime(CLOCK_MONOTONIC, &ts);
+
+	return (int64)ts.tv_sec * 1000 + ts.tv_nsec / 1000000;
+}
+
+static int errorToDll(RAR_EXIT error)
+{
+	switch(error)
+	{
+		case RARX_SUCCESS: return ERAR_SUCCESS;
+		case RARX_FATAL: return ERAR_EREAD;
+		case RARX_CRC: return ERAR_BAD_DATA;
+		case RARX_OPEN: return ERAR_EOPEN;
+		case RARX_MEMORY: return ERAR_NO_MEMORY;
+		case RARX_BADPWD: return ERAR_BAD_PASSWORD;
+		default: return ERAR_UNKNOWN;
+	}
+}
+
+static void displayError(int error, const char *filename)
+{
+	switch(error)
+	{
+		case ERAR_END_ARCHIVE:
+		LOGE("Unable to open %s, ERAR_END_ARCHIVE", filename);
+		break;
+
+		case ERAR_NO_MEMORY:
+		LOGE("Unable to open %s, ERAR_NO_MEMORY", filename);
+		break;
+
+		case ERAR_BAD_DATA:
+		LOGE("Unable to open %s, ERAR_BAD_DATA", filename);
+		break;
+
+		case ERAR_BAD_ARCHIVE:
+		LOGE("Unable to open %s, ERAR_BAD_ARCHIVE", filename);
+		break;
+
+		case ERAR_UNKNOWN_FORMAT:
+		LOGE("Unable to open %s, ERAR_UNKNOWN_FORMAT", filename);
+		break;
+
+		case ERAR_EOPEN:
+		LOGE("Unable to open %s, ERAR_EOPEN", filename);
+		break;
+
+		case ERAR_ECREATE:
+		LOGE("Unable to open %s, ERAR_ECREATE", filename);
+		break;
+
+		case ERAR_ECLOSE:
+		LOGE("Unable to open %s, ERAR_ECLOSE", filename);
+		break;
+
+		case ERAR_EREAD:
+		LOGE("Unable to open %s, ERAR_EREAD", filename);
+		break;
+
+		case ERAR_EWRITE:
+		LOGE("Unable to open %s, ERAR_EWRITE", filename);
+		break;
+
+		case ERAR_SMALL_BUF:
+		LOGE("Unable to open %s, ERAR_SMALL_BUF", filename);
+		break;
+
+		case ERAR_UNKNOWN:
+		LOGE("Unable to open %s, ERAR_UNKNOWN", filename);
+		break;
+
+		case ERAR_MISSING_PASSWORD:
+		LOGE("Unable to open %s, ERAR_MISSING_PASSWORD", filename);
+		break;
+
+		default:
+		LOGE("Unable to open %s, unknown error: %d", filename, error);
+	}
+}
+
+RarSession::RarSession():m_arc(&m_cmd)
+{
+	m_extract = NULL;
+	m_cursor = INVALID_CURSOR;
+	m_opened = false;
+}
+
+RarSession::~RarSession()
+{
+	close();
+}
+
+bool RarSession::open(const char *filename, int threads)
+{
+	if (m_opened) close();
+
+	try
+	{
+		ErrHandler.Clean();
+
+		wchar arcName[NM];
+		CharToWide(filename, arcName, ASIZE(arcName));
+
+		// same options as RAROpenArchive
+		m_cmd.DllError = 0;
+		m_cmd.FileArgs.AddString(L"*");
+		m_cmd.AddArcName(arcName);
+		m_cmd.Overwrite = OVERWRITE_ALL;
+		m_cmd.VersionControl = 1;
+		m_cmd.OpenShared = true;
+
+#ifdef RAR_SMP
+		// default value is the number of CPU cores
+		if (threads > 0) m_cmd.Threads = Min((uint)threads, MaxPoolThreads);
+
+		LOGD("Using %u threads to unpack %s", m_cmd.Threads, filename);
+#endif
+
+		if (!m_arc.Open(arcName, FMF_OPENSHARED))
+		{
+			displayError(ERAR_EOPEN, filename);
+			return false;
+		}
+
+		if (!m_arc.IsArchive(true))
+		{
+			displayError(ERAR_BAD_ARCHIVE, filename);
+			m_arc.Close();
+			return false;
+		}
+
+		m_extract = new CmdExtract(&m_cmd);
+		m_extract->ExtractArchiveInit(m_arc);
+
+		m_opened = readEntries();
+	}
+	catch (RAR_EXIT error)
+	{
+		displayError(errorToDll(error), filename);
+	}
+	catch (std::bad_alloc&)
+	{
+		displayError(ERAR_NO_MEMORY, filename);
+	}
+
+	if (!m_opened) close();
+
+	return m_opened;
+}
+
+void RarSession::close()
+{
+	for(size_t i = 0; i < m_entries.Size(); ++i)
+	{
+		delete [] m_entries[i].name;
+	}
+
+	m_entries.Reset();
+
+	if (m_arc.IsOpened()) m_arc.Close();
+
+	// stop unpack threads
+	delete m_extract;
+	m_extract = NULL;
+
+	m_cursor = INVALID_CURSOR;
+	m_opened = false;
+}
+
+const RarEntry* RarSession::getEntry(size_t index)
+{
+	if (index >= m_entries.Size()) return NULL;
+
+	return m_entries.Addr(index);
+}
+
+bool RarSession::readEntries()
+{
+	char name[NM];
+
+	// headers copied from RAR 5.0 quick open record instead of being read in archive
+	int quickOpenHeaders = 0;
+	int headers = 0;
+
+	int64 start = getTime();
+
+	// read all headers only once and remember their positions
+	while (m_arc.SearchBlock(HEAD_FILE) > 0)
+	{
+		FileHeader *hd = &m_arc.FileHead;
+
+		++headers;
+
+		// quick open data only move their own position, file pointer stays behind
+		if (m_arc.Tell() != m_arc.File::Tell()) ++quickOpenHeaders;
+
+		// add file to list only if not a directory
+		if (!hd->Dir && !hd->SplitBefore)
+		{
+			WideToChar(hd->FileName, name, ASIZE(name));
+
+			RarEntry entry;
+			entry.name = new char[strlen(name)+1];
+			strcpy(entry.name, name);
+			entry.position = m_arc.CurBlockPos;
+			entry.unpSize = hd->UnpSize;
+			entry.packSize = hd->PackSize;
+			entry.crc = hd->FileHash.Type == HASH_CRC32 ? (int64)hd->FileHash.CRC32 : -1;
+			entry.mtime = (int64)(hd->mtime.GetUnixNS() / 1000000);
+			entry.solid = hd->Solid;
+
+			m_entries.Push(entry);
+		}
+
+		m_arc.SeekToNext();
+	}
+
+	// headers are read from one contiguous block with quick open, else they are spread in the whole archive
+	LOGD("Listed %d entries in %d ms, %d of %d headers from quick open data", (int)m_entries.Size(), (int)(getTime() - start), quickOpenHeaders, headers);
+
+	return m_entries.Size() > 0;
+}
+
+int RarSession::processEntry(size_t index, int operation, UNRARCALLBACK callback, LPARAM userData)
+{
+	// go directly to the header of this entry
+	m_arc.Seek(m_entries[index].position, SEEK_SET);
+
+	size_t headerSize = m_arc.SearchBlock(HEAD_FILE);
+
+	if (headerSize == 0) return ERAR_BAD_DATA;
+
+	m_cmd.DllError = 0;
+	m_cmd.DllOpMode = operation;
+	m_cmd.Callback = callback;
+	m_cmd.UserData = userData;
+	*m_cmd.ExtrPath = 0;
+	*m_cmd.DllDestName = 0;
+
+	// don't use RAR_EXTRACT because files will be extracted in current directory
+	wcscpy(m_cmd.Command, L"T");
+	m_cmd.Test = true;
+
+	bool repeat = false;
+	m_extract->ExtractCurrentFile(m_arc, headerSize, repeat);
+
+	return m_cmd.DllError;
+}
+
+int RarSession::extract(size_t index, UNRARCALLBACK callback, LPARAM userData)
+{
+	if (!m_opened || index >= m_entries.Size()) return ERAR_EOPEN;
+
+	size_t first = index;
+
+	if (m_arc.Solid)
+	{
+		if (m_cursor != INVALID_CURSOR && m_cursor <= index)
+		{
+			// continue from last processed entry
+			first = m_cursor;
+		}
+		else
+		{
+			// restart from the beginning of the solid block
+			while(first > 0 && m_entries[first].solid) --first;
+		}
+	}
+
+	int result = ERAR_SUCCESS;
+
+	// entry to continue from if cancelled while skipping
+	size_t cursor = INVALID_CURSOR;
+
+	try
+	{
+		ErrHandler.Clean();
+
+		// previous entries of a solid block must be decompressed too
+		for(size_t i = first; i < index && result == ERAR_SUCCESS; ++i)
+		{
+			// callback is not called while skipping, send it no data to know if we must continue
+			if (callback && callback(UCM_PROCESSDATA, userData, 0, 0) == -1)
+			{
+				result = ERAR_CANCELLED;
+				cursor = i;
+				break;
+			}
+
+			result = processEntry(i, RAR_SKIP, NULL, 0);
+
+			if (result)
+			{
+				LOGE("Unable to skip %s, error: %d", m_entries[i].name, result);
+			}
+		}
+
+		if (result == ERAR_SUCCESS)
+		{
+			result = processEntry(index, RAR_TEST, callback, userData);
+
+			if (result)
+			{
+				LOGE("Unable to process %s, error: %d", m_entries[index].name, result);
+			}
+		}
+	}
+	catch (RAR_EXIT error)
+	{
+		if (error == RARX_USERBREAK)
+		{
+			result = ERAR_CANCELLED;
+
+			LOGD("Processing of %s cancelled", m_entries[index].name);
+		}
+		else
+		{
+			result = m_cmd.DllError != 0 ? m_cmd.DllError : errorToDll(error);
+
+			LOGE("Unable to process %s, error: %d", m_entries[index].name, result);
+		}
+	}
+	catch (std::bad_alloc&)
+	{
+		result = ERAR_NO_MEMORY;
+
+		LOGE("Unable to process %s, ERAR_NO_MEMORY", m_entries[index].name);
+	}
+
+	// solid state is only reliable if everything succeeded or if cancelled between 2 entries
+	m_cursor = result == ERAR_SUCCESS ? index + 1 : cursor;
+
+	return result;
+}
@@ -0,0 +1,90 @@
+/*
+ * ComicsReader is an Android application to read comics
+ * Copyright (C) 2011-2018 Cedric OCHS
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+#ifndef RARSESSION_H
+#define RARSESSION_H
+
+#include <android/log.h>
+
+#include "rartypes.hpp"
+#include "rar.hpp"
+#include "dll.hpp"
+
+#define  LOG_TAG    "libunrar-jni"
+#define  LOGI(...)  __android_log_print(ANDROID_LOG_INFO, LOG_TAG, __VA_ARGS__)
+#define  LOGE(...)  __android_log_print(ANDROID_LOG_ERROR, LOG_TAG, __VA_ARGS__)
+#define  LOGD(...)  __android_log_print(ANDROID_LOG_DEBUG, LOG_TAG, __VA_ARGS__)
+
+// returned by extract when callback returned -1
+#define ERAR_CANCELLED 255
+
+// an entry of the archive with the position of its header
+struct RarEntry
+{
+	char *name;
+	int64 position;
+	int64 unpSize;
+	int64 packSize;
+	// -1 if entry is not checked with a CRC32
+	int64 crc;
+	// in milliseconds since 1970
+	int64 mtime;
+	bool solid;
+};
+
+// keep an archive opened between several extractions
+class RarSession
+{
+	public:
+
+	RarSession();
+	~RarSession();
+
+	// threads is the number of threads used to unpack RAR 5.0 entries, 0 for default
+	bool open(const char *filename, int threads);
+	void close();
+
+	size_t size() { return m_entries.Size(); }
+	bool isSolid() const { return m_arc.Solid; }
+	const RarEntry* getEntry(size_t index);
+
+	// process entry at index and send its content to callback, callback can return -1 to cancel
+	int extract(size_t index, UNRARCALLBACK callback, LPARAM userData);
+
+	private:
+
+	bool readEntries();
+	int processEntry(size_t index, int operation, UNRARCALLBACK callback, LPARAM userData);
+
+	// don't change the order, Archive and CmdExtract use CommandData
+	CommandData m_cmd;
+	Archive m_arc;
+
+	// created in open because CmdExtract constructor reads the number of threads,
+	// its unpack threads are kept alive until session is closed
+	CmdExtract *m_extract;
+
+	Array<RarEntry> m_entries;
+
+	// index of the entry following the last one processed
+	size_t m_cursor;
+	bool m_opened;
+};
+
+#endif
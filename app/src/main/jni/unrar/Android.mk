@@ -3,9 +3,13 @@ LOCAL_PATH := $(call my-dir)
 include $(CLEAR_VARS)
 
 LOCAL_MODULE := unrar
-LOCAL_CFLAGS += -Wall -DNOFILECREATE -DGUI -DSILENT -DNOVOLUME -DRARDLL -DUNRAR -DRAR_NOCRYPT \
-	-D_FILE_OFFSET_BITS=64 -D_LARGEFILE_SOURCE -fvisibility=hidden
+UNRAR_CFLAGS := -DNOFILECREATE -DGUI -DSILENT -DNOVOLUME -DRARDLL -DUNRAR -DRAR_NOCRYPT \
+	-D_FILE_OFFSET_BITS=64 -D_LARGEFILE_SOURCE -DRAR_SMP
+
+LOCAL_CFLAGS += -Wall $(UNRAR_CFLAGS) -fvisibility=hidden
 LOCAL_EXPORT_C_INCLUDES := $(LOCAL_PATH)
+# unrar-jni uses unrar classes, it must see them with the same options
+LOCAL_EXPORT_CFLAGS := $(UNRAR_CFLAGS)
 
 LOCAL_SRC_FILES += \
 	rarjni.cpp rar.cpp strlist.cpp strfn.cpp pathfn.cpp smallfn.cpp \